@@ -0,0 +1,451 @@
+/*
+ * Copyright 2023-2025 Michael Büchner, Deutsche Digitale Bibliothek
+ *
+ * This program is free software: you can redistribute it and/or modify 
+ * it under the terms of the GNU General Public License as published by 
+ * the Free Software Foundation, either version 3 of the License, or 
+ * (at your option) any later version. 
+ *  
+ * This program is distributed in the hope that it will be useful, 
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of 
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the 
+ * GNU General Public License for more details. 
+ * 
+ * You should have received a copy of the GNU General Public License 
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.ddb.labs.dzpfcs;
+
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import eu.clarin.sru.server.SRUDiagnosticList;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+/**
+ * Solr <code>newspaper-issues/select</code> responses for the benchmarks.
+ * <p>
+ * Responses are generated deterministically in the shape of the DDB API
+ * (<code>fl=id,paper_title,pagenumber</code>, unified highlighting on
+ * <code>plainpagefulltext</code> with <code>&lt;Hit&gt;</code> markers). A
+ * recorded response can be used instead by setting the system property
+ * <code>dzpfcs.fixture.&lt;records&gt;</code> to its path, e.g.
+ * <code>-Ddzpfcs.fixture.250=berlin-250.json</code>.
+ * </p>
+ */
+public final class BenchmarkFixtures {
+
+    private static final JsonFactory JSON_FACTORY = new JsonFactory();
+
+    private static final String[] WORDS = {
+        "Berlin", "Hamburg", "Zeitung", "Stadt", "Regierung", "Reichstag", "Abend", "Markt", "Preise", "Getreide",
+        "Bahnhof", "Kaiser", "Verein", "Versammlung", "gestern", "heute", "wurde", "welche", "nach", "über",
+        "der", "die", "das", "und", "in", "mit", "von", "für", "dem", "den", "auf", "eine", "nicht", "sich"
+    };
+
+    private static final String[] TITLES = {
+        "Berliner Börsen-Zeitung", "Hamburger Nachrichten", "Vossische Zeitung", "Dresdner Nachrichten",
+        "Münchner Neueste Nachrichten", "Kölnische Zeitung"
+    };
+
+    private BenchmarkFixtures() {
+    }
+
+    /**
+     * Returns a Solr JSON response with <code>records</code> documents and
+     * their highlighting snippets.
+     *
+     * @param records number of documents
+     * @return the UTF-8 encoded response
+     */
+    public static byte[] solrResponse(int records) {
+        final String recorded = System.getProperty("dzpfcs.fixture." + records);
+        if (recorded != null) {
+            try {
+                return Files.readAllBytes(Path.of(recorded));
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        final Fixture f = new Fixture(records);
+        final ByteArrayOutputStream out = new ByteArrayOutputStream(records * 1024);
+        try (final JsonGenerator g = JSON_FACTORY.createGenerator(out, JsonEncoding.UTF8)) {
+            g.writeStartObject();
+            g.writeObjectFieldStart("responseHeader");
+            g.writeNumberField("status", 0);
+            g.writeNumberField("QTime", f.qtime);
+            g.writeEndObject();
+
+            g.writeObjectFieldStart("response");
+            g.writeNumberField("numFound", f.numFound);
+            g.writeNumberField("start", 0);
+            g.writeBooleanField("numFoundExact", true);
+            g.writeArrayFieldStart("docs");
+            for (int i = 0; i < records; i++) {
+                g.writeStartObject();
+                g.writeStringField("id", f.ids[i]);
+                g.writeStringField("paper_title", f.titles[i]);
+                g.writeStringField("pagenumber", f.pagenumbers[i]);
+                g.writeEndObject();
+            }
+            g.writeEndArray();
+            g.writeEndObject();
+
+            g.writeObjectFieldStart("highlighting");
+            for (int i = 0; i < records; i++) {
+                g.writeObjectFieldStart(f.ids[i]);
+                g.writeArrayFieldStart("plainpagefulltext");
+                g.writeString(f.snippets[i]);
+                g.writeEndArray();
+                g.writeEndObject();
+            }
+            g.writeEndObject();
+            g.writeEndObject();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Returns the same response as {@link #solrResponse(int)} in the Solr
+     * <code>wt=javabin</code> format.
+     *
+     * @param records number of documents
+     * @param nextCursorMark the cursor mark of the next page, may be
+     * <code>null</code>
+     * @return the encoded response
+     */
+    public static byte[] solrJavabinResponse(int records, String nextCursorMark) {
+        final Fixture f = new Fixture(records);
+        final JavaBinWriter w = new JavaBinWriter(records * 512);
+        w.version();
+        w.namedList(nextCursorMark != null ? 4 : 3);
+
+        w.externString("responseHeader");
+        w.namedList(2);
+        w.externString("status");
+        w.smallInt(0);
+        w.externString("QTime");
+        w.smallInt(f.qtime);
+
+        w.externString("response");
+        w.docList(f.numFound, records);
+        for (int i = 0; i < records; i++) {
+            w.doc(3);
+            w.externString("id");
+            w.string(f.ids[i]);
+            w.externString("paper_title");
+            w.string(f.titles[i]);
+            w.externString("pagenumber");
+            w.string(f.pagenumbers[i]);
+        }
+
+        w.externString("highlighting");
+        w.namedList(records);
+        for (int i = 0; i < records; i++) {
+            w.string(f.ids[i]);
+            w.namedList(1);
+            w.externString("plainpagefulltext");
+            w.array(1);
+            w.string(f.snippets[i]);
+        }
+
+        if (nextCursorMark != null) {
+            w.externString("nextCursorMark");
+            w.string(nextCursorMark);
+        }
+        return w.toByteArray();
+    }
+
+    /**
+     * The generated content of a response.
+     */
+    private static final class Fixture {
+
+        private final int qtime;
+        private final long numFound;
+        private final String[] ids, titles, pagenumbers, snippets;
+
+        private Fixture(int records) {
+            final Random random = new Random(42L + records);
+            ids = new String[records];
+            titles = new String[records];
+            pagenumbers = new String[records];
+            snippets = new String[records];
+            for (int i = 0; i < records; i++) {
+                ids[i] = ddbId(random) + "-" + (1 + random.nextInt(16));
+            }
+            qtime = 12 + random.nextInt(200);
+            numFound = 1_000_000L + random.nextInt(5_000_000);
+            for (int i = 0; i < records; i++) {
+                titles[i] = TITLES[random.nextInt(TITLES.length)];
+                pagenumbers[i] = Integer.toString(1 + random.nextInt(16));
+            }
+            for (int i = 0; i < records; i++) {
+                snippets[i] = snippet(random);
+            }
+        }
+    }
+
+    /**
+     * Returns a highlighted OCR-like sentence with one to three hits.
+     *
+     * @param random the source of randomness
+     * @return the snippet with <code>&lt;Hit&gt;</code> markers
+     */
+    public static String snippet(Random random) {
+        final StringBuilder sb = new StringBuilder(320);
+        final int words = 30 + random.nextInt(30);
+        final int hits = 1 + random.nextInt(3);
+        for (int w = 0; w < words; w++) {
+            if (w > 0) {
+                sb.append(' ');
+            }
+            if (w % (words / hits) == words / (2 * hits)) {
+                sb.append("<Hit>Berlin</Hit>");
+            } else {
+                sb.append(WORDS[random.nextInt(WORDS.length)]);
+            }
+            if (random.nextInt(12) == 0) {
+                sb.append(random.nextBoolean() ? "," : ".");
+            }
+        }
+        return sb.append('.').toString();
+    }
+
+    private static String ddbId(Random random) {
+        final String alphabet = "ABCDEFGHIJKLMNOPQRSTUVWXYZ234567";
+        final StringBuilder sb = new StringBuilder(32);
+        for (int i = 0; i < 32; i++) {
+            sb.append(alphabet.charAt(random.nextInt(alphabet.length())));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Returns a diagnostic list that ignores all diagnostics.
+     *
+     * @return a diagnostic list
+     */
+    public static SRUDiagnosticList ignoringDiagnostics() {
+        return new SRUDiagnosticList() {
+            public void addDiagnostic(String uri, String details, String message) {
+            }
+
+            public void addDiagnostic(int code, String details, String message) {
+            }
+        };
+    }
+
+    /**
+     * Returns an XML document in a canonical form, to compare the output of
+     * different StAX implementations: without XML declaration, with adjacent
+     * text coalesced, attributes and namespace declarations sorted, empty
+     * elements as start and end tag and the same escaping everywhere.
+     *
+     * @param xml the document
+     * @return the canonical form
+     * @throws XMLStreamException if the document is not well-formed
+     */
+    public static String canonicalXml(byte[] xml) throws XMLStreamException {
+        final XMLInputFactory factory = XMLInputFactory.newDefaultFactory();
+        factory.setProperty(XMLInputFactory.IS_COALESCING, true);
+        final XMLStreamReader reader = factory.createXMLStreamReader(new ByteArrayInputStream(xml));
+        final StringBuilder out = new StringBuilder(xml.length);
+        while (reader.hasNext()) {
+            switch (reader.next()) {
+                case XMLStreamConstants.START_ELEMENT -> {
+                    out.append('<').append(qName(reader.getPrefix(), reader.getLocalName()));
+                    final TreeMap<String, String> namespaces = new TreeMap<>();
+                    for (int i = 0; i < reader.getNamespaceCount(); i++) {
+                        final String prefix = reader.getNamespacePrefix(i);
+                        namespaces.put(prefix == null || prefix.isEmpty() ? "xmlns" : "xmlns:" + prefix, reader.getNamespaceURI(i));
+                    }
+                    final TreeMap<String, String> attributes = new TreeMap<>();
+                    for (int i = 0; i < reader.getAttributeCount(); i++) {
+                        attributes.put(qName(reader.getAttributePrefix(i), reader.getAttributeLocalName(i)), reader.getAttributeValue(i));
+                    }
+                    for (Map<String, String> map : List.of(namespaces, attributes)) {
+                        for (Map.Entry<String, String> e : map.entrySet()) {
+                            out.append(' ').append(e.getKey()).append("=\"");
+                            escape(e.getValue(), out).append('"');
+                        }
+                    }
+                    out.append('>');
+                }
+                case XMLStreamConstants.END_ELEMENT ->
+                    out.append("</").append(qName(reader.getPrefix(), reader.getLocalName())).append('>');
+                case XMLStreamConstants.CHARACTERS, XMLStreamConstants.CDATA, XMLStreamConstants.SPACE ->
+                    escape(reader.getText(), out);
+                case XMLStreamConstants.PROCESSING_INSTRUCTION ->
+                    out.append("<?").append(reader.getPITarget()).append(' ').append(reader.getPIData()).append("?>");
+                default -> {
+                    // declaration, comments
+                }
+            }
+        }
+        reader.close();
+        return out.toString();
+    }
+
+    private static String qName(String prefix, String localName) {
+        if (prefix == null || prefix.isEmpty()) {
+            return localName;
+        }
+        return prefix + ":" + localName;
+    }
+
+    private static StringBuilder escape(String text, StringBuilder out) {
+        for (int i = 0; i < text.length(); i++) {
+            final char c = text.charAt(i);
+            switch (c) {
+                case '&' -> out.append("&amp;");
+                case '<' -> out.append("&lt;");
+                case '>' -> out.append("&gt;");
+                case '"' -> out.append("&quot;");
+                case '\r' -> out.append("&#xD;");
+                default -> out.append(c);
+            }
+        }
+        return out;
+    }
+
+    /**
+     * Minimal writer of the Solr javabin format (version 2) for the fixtures.
+     */
+    private static final class JavaBinWriter {
+
+        private static final int STR = 1 << 5, SINT = 2 << 5, SLONG = 3 << 5, ARR = 4 << 5, ORDERED_MAP = 5 << 5, EXTERN_STRING = 7 << 5;
+        private static final int SOLRDOC = 11, SOLRDOCLST = 12, NULL = 0, BOOL_TRUE = 1;
+
+        private final ByteArrayOutputStream out;
+        private final Map<String, Integer> externStrings = new HashMap<>();
+
+        private JavaBinWriter(int size) {
+            this.out = new ByteArrayOutputStream(size);
+        }
+
+        private void version() {
+            out.write(2);
+        }
+
+        private void namedList(int size) {
+            tag(ORDERED_MAP, size);
+        }
+
+        private void array(int size) {
+            tag(ARR, size);
+        }
+
+        private void docList(long numFound, int docs) {
+            out.write(SOLRDOCLST);
+            array(4);
+            smallLong(numFound);
+            smallInt(0);
+            out.write(NULL);
+            out.write(BOOL_TRUE);
+            array(docs);
+        }
+
+        private void doc(int fields) {
+            out.write(SOLRDOC);
+            namedList(fields);
+        }
+
+        private void string(String s) {
+            final byte[] utf8 = s.getBytes(StandardCharsets.UTF_8);
+            tag(STR, utf8.length);
+            out.writeBytes(utf8);
+        }
+
+        private void externString(String s) {
+            final Integer index = externStrings.get(s);
+            if (index != null) {
+                tag(EXTERN_STRING, index);
+            } else {
+                tag(EXTERN_STRING, 0);
+                string(s);
+                externStrings.put(s, externStrings.size() + 1);
+            }
+        }
+
+        private void smallInt(int v) {
+            if ((v & ~0x0f) == 0) {
+                out.write(SINT | v);
+            } else {
+                out.write(SINT | 0x10 | (v & 0x0f));
+                vlong(v >>> 4);
+            }
+        }
+
+        private void smallLong(long v) {
+            if ((v & ~0x0fL) == 0) {
+                out.write(SLONG | (int) v);
+            } else {
+                out.write(SLONG | 0x10 | (int) (v & 0x0f));
+                vlong(v >>> 4);
+            }
+        }
+
+        private void tag(int tag, int size) {
+            if (size < 0x1f) {
+                out.write(tag | size);
+            } else {
+                out.write(tag | 0x1f);
+                vlong(size - 0x1f);
+            }
+        }
+
+        private void vlong(long v) {
+            while ((v & ~0x7fL) != 0) {
+                out.write((int) ((v & 0x7f) | 0x80));
+                v >>>= 7;
+            }
+            out.write((int) v);
+        }
+
+        private byte[] toByteArray() {
+            return out.toByteArray();
+        }
+    }
+
+    /**
+     * An {@link OutputStream} that discards all bytes but counts them.
+     */
+    public static final class CountingNullOutputStream extends OutputStream {
+
+        private long count;
+
+        @Override
+        public void write(int b) {
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            count += len;
+        }
+
+        public long getCount() {
+            return count;
+        }
+    }
+}
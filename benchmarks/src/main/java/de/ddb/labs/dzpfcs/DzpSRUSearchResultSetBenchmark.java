@@ -0,0 +1,104 @@
+/*
+ * Copyright 2023-2025 Michael Büchner, Deutsche Digitale Bibliothek
+ *
+ * This program is free software: you can redistribute it and/or modify 
+ * it under the terms of the GNU General Public License as published by 
+ * the Free Software Foundation, either version 3 of the License, or 
+ * (at your option) any later version. 
+ *  
+ * This program is distributed in the hope that it will be useful, 
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of 
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the 
+ * GNU General Public License for more details. 
+ * 
+ * You should have received a copy of the GNU General Public License 
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.ddb.labs.dzpfcs;
+
+import de.ddb.labs.dzpfcs.searcher.Results;
+import de.ddb.labs.dzpfcs.searcher.SolrResponse;
+import de.ddb.labs.dzpfcs.searcher.SolrResponseDecoder;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamWriter;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Serialization of a result page to FCS records with
+ * {@link DzpSRUSearchResultSet#writeRecord(XMLStreamWriter)}. Run with
+ * <code>-prof gc</code> to see the bytes allocated per serialized page
+ * (divide <code>gc.alloc.rate.norm</code> by <code>records</code> for the
+ * allocation per record). The StAX implementation is a parameter, like the
+ * context parameter <code>de.ddb.labs.dzpfcs.xml.outputFactory</code>; the
+ * setup checks that its output is identical to the one of the JDK in
+ * canonical form.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class DzpSRUSearchResultSetBenchmark {
+
+    @Param({"10", "250", "1000"})
+    public int records;
+
+    @Param({"jdk", "woodstox"})
+    public String xmlOutputFactory;
+
+    private XMLOutputFactory factory;
+
+    private Results results;
+
+    @Setup
+    public void setup() throws Exception {
+        factory = DzpXMLOutputFactory.newInstance(xmlOutputFactory);
+        final SolrResponse response = SolrResponseDecoder.decode(new ByteArrayInputStream(BenchmarkFixtures.solrResponse(records)));
+        results = new Results("https://www.deutsche-digitale-bibliothek.de/newspaper", "\"Berlin\"", response.getDocs(), response.getNumFound(), 0);
+
+        final ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        write(DzpXMLOutputFactory.newInstance("jdk"), expected);
+        final ByteArrayOutputStream actual = new ByteArrayOutputStream();
+        write(factory, actual);
+        if (!BenchmarkFixtures.canonicalXml(expected.toByteArray()).equals(BenchmarkFixtures.canonicalXml(actual.toByteArray()))) {
+            throw new IllegalStateException("Output of " + factory.getClass().getName() + " differs from the JDK in canonical form");
+        }
+    }
+
+    @Benchmark
+    public long writeRecords() throws Exception {
+        final BenchmarkFixtures.CountingNullOutputStream out = new BenchmarkFixtures.CountingNullOutputStream();
+        write(factory, out);
+        return out.getCount();
+    }
+
+    private void write(XMLOutputFactory factory, OutputStream out) throws Exception {
+        final XMLStreamWriter writer = factory.createXMLStreamWriter(out, "UTF-8");
+        final DzpSRUSearchResultSet resultSet = new DzpSRUSearchResultSet(null, null, BenchmarkFixtures.ignoringDiagnostics(), List.of(), null, results);
+
+        writer.writeStartDocument("UTF-8", "1.0");
+        writer.writeStartElement("records");
+        while (resultSet.nextRecord()) {
+            resultSet.writeRecord(writer);
+        }
+        writer.writeEndElement();
+        writer.writeEndDocument();
+        writer.flush();
+    }
+}
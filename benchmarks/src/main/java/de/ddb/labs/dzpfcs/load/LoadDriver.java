@@ -0,0 +1,274 @@
+/*
+ * Copyright 2023-2025 Michael Büchner, Deutsche Digitale Bibliothek
+ *
+ * This program is free software: you can redistribute it and/or modify 
+ * it under the terms of the GNU General Public License as published by 
+ * the Free Software Foundation, either version 3 of the License, or 
+ * (at your option) any later version. 
+ *  
+ * This program is distributed in the hope that it will be useful, 
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of 
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the 
+ * GNU General Public License for more details. 
+ * 
+ * You should have received a copy of the GNU General Public License 
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.ddb.labs.dzpfcs.load;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Closed-loop load driver for a deployed endpoint. A number of concurrent
+ * clients send <em>searchRetrieve</em> requests drawn from a weighted mix (see
+ * <code>load/default-mix.txt</code>) for a fixed duration after a warm-up,
+ * and the driver reports throughput, latency percentiles and error rates.
+ * <p>
+ * A request fails if it cannot be sent, its status is not 200 or the response
+ * contains an SRU diagnostic. With <code>--max-p99-ms</code> and
+ * <code>--max-error-rate</code> the driver exits with status 1 when the run
+ * exceeds them, so it can be used as a regression gate.
+ * </p>
+ * <pre>
+ * java -cp benchmarks/target/benchmarks.jar de.ddb.labs.dzpfcs.load.LoadDriver \
+ *     --url http://localhost:8080/ --concurrency 32 --warmup 10 --duration 60 \
+ *     [--mix mix.txt] [--max-p99-ms 500] [--max-error-rate 0.01]
+ * </pre>
+ */
+public final class LoadDriver {
+
+    private static final String DIAGNOSTIC = "info:srw/diagnostic/";
+
+    private final HttpClient client;
+    private final String baseUrl;
+    private final List<String> mix;
+
+    /**
+     * Constructor.
+     *
+     * @param baseUrl the URL of the endpoint
+     * @param mix the request mix, see {@link #loadMix(String)}
+     */
+    public LoadDriver(String baseUrl, List<String> mix) {
+        this.client = HttpClient.newBuilder()
+                .connectTimeout(Duration.ofSeconds(10))
+                .executor(Executors.newVirtualThreadPerTaskExecutor())
+                .build();
+        this.baseUrl = baseUrl.contains("?") ? baseUrl + "&" : baseUrl + "?";
+        this.mix = mix;
+    }
+
+    public static void main(String[] args) throws Exception {
+        final Map<String, String> options = Options.parse(args);
+        final String url = options.getOrDefault("url", "http://localhost:8080/");
+        final int concurrency = Integer.parseInt(options.getOrDefault("concurrency", "16"));
+        final long warmup = Long.parseLong(options.getOrDefault("warmup", "10"));
+        final long duration = Long.parseLong(options.getOrDefault("duration", "60"));
+        final List<String> mix = loadMix(options.get("mix"));
+
+        final LoadDriver driver = new LoadDriver(url, mix);
+        System.out.printf("Load on %s with %d clients, %d s warm-up, %d s measurement, %d request types%n",
+                url, concurrency, warmup, duration, new HashSet<>(mix).size());
+
+        driver.run(concurrency, TimeUnit.SECONDS.toNanos(warmup));
+        final Report report = driver.run(concurrency, TimeUnit.SECONDS.toNanos(duration));
+        report.print(System.out);
+
+        boolean failed = false;
+        if (options.containsKey("max-p99-ms") && report.percentileMillis(0.99) > Double.parseDouble(options.get("max-p99-ms"))) {
+            System.out.printf("FAILED: p99 %.1f ms exceeds %s ms%n", report.percentileMillis(0.99), options.get("max-p99-ms"));
+            failed = true;
+        }
+        if (options.containsKey("max-error-rate") && report.errorRate() > Double.parseDouble(options.get("max-error-rate"))) {
+            System.out.printf("FAILED: error rate %.4f exceeds %s%n", report.errorRate(), options.get("max-error-rate"));
+            failed = true;
+        }
+        System.exit(failed ? 1 : 0);
+    }
+
+    /**
+     * Runs the clients for <code>nanos</code> and collects their results.
+     *
+     * @param concurrency the number of clients
+     * @param nanos the duration of the run
+     * @return the results of the run
+     * @throws InterruptedException if interrupted while waiting for the
+     * clients
+     */
+    public Report run(int concurrency, long nanos) throws InterruptedException {
+        final Client[] clients = new Client[concurrency];
+        final long start = System.nanoTime();
+        final long end = start + nanos;
+        try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            for (int i = 0; i < concurrency; i++) {
+                clients[i] = new Client(end);
+                executor.submit(clients[i]);
+            }
+        }
+        return new Report(clients, System.nanoTime() - start);
+    }
+
+    private HttpRequest nextRequest() {
+        final ThreadLocalRandom random = ThreadLocalRandom.current();
+        final String params = mix.get(random.nextInt(mix.size()))
+                .replace("{start}", Integer.toString(1 + random.nextInt(5000)));
+        return HttpRequest.newBuilder(URI.create(baseUrl + "operation=searchRetrieve&" + params))
+                .timeout(Duration.ofMinutes(1))
+                .GET()
+                .build();
+    }
+
+    /**
+     * One client sending requests one after another until the end time.
+     */
+    private final class Client implements Runnable {
+
+        private final long end;
+        private long[] latencies = new long[1024];
+        private int count;
+        private int httpErrors;
+        private int diagnostics;
+        private int ioErrors;
+
+        private Client(long end) {
+            this.end = end;
+        }
+
+        @Override
+        public void run() {
+            while (System.nanoTime() < end) {
+                final HttpRequest request = nextRequest();
+                final long start = System.nanoTime();
+                try {
+                    final HttpResponse<String> response = client.send(request, HttpResponse.BodyHandlers.ofString());
+                    record(System.nanoTime() - start);
+                    if (response.statusCode() != 200) {
+                        httpErrors++;
+                    } else if (response.body().contains(DIAGNOSTIC)) {
+                        diagnostics++;
+                    }
+                } catch (IOException e) {
+                    record(System.nanoTime() - start);
+                    ioErrors++;
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+
+        private void record(long nanos) {
+            if (count == latencies.length) {
+                latencies = Arrays.copyOf(latencies, count * 2);
+            }
+            latencies[count++] = nanos;
+        }
+    }
+
+    /**
+     * Throughput, latency percentiles and error rates of a run.
+     */
+    public static final class Report {
+
+        private final long[] latencies;
+        private final long elapsedNanos;
+        private final int httpErrors;
+        private final int diagnostics;
+        private final int ioErrors;
+
+        private Report(Client[] clients, long elapsedNanos) {
+            int total = 0, http = 0, diag = 0, io = 0;
+            for (Client c : clients) {
+                total += c.count;
+                http += c.httpErrors;
+                diag += c.diagnostics;
+                io += c.ioErrors;
+            }
+            this.latencies = new long[total];
+            int pos = 0;
+            for (Client c : clients) {
+                System.arraycopy(c.latencies, 0, latencies, pos, c.count);
+                pos += c.count;
+            }
+            Arrays.sort(latencies);
+            this.elapsedNanos = elapsedNanos;
+            this.httpErrors = http;
+            this.diagnostics = diag;
+            this.ioErrors = io;
+        }
+
+        public double percentileMillis(double p) {
+            if (latencies.length == 0) {
+                return 0;
+            }
+            final int index = (int) Math.min(latencies.length - 1, Math.ceil(p * latencies.length) - 1);
+            return latencies[Math.max(0, index)] / 1e6;
+        }
+
+        public double errorRate() {
+            return latencies.length == 0 ? 1.0 : (double) (httpErrors + diagnostics + ioErrors) / latencies.length;
+        }
+
+        public void print(PrintStream out) {
+            out.printf("requests:    %d in %.1f s%n", latencies.length, elapsedNanos / 1e9);
+            out.printf("throughput:  %.1f req/s%n", latencies.length / (elapsedNanos / 1e9));
+            out.printf("latency ms:  p50 %.1f, p90 %.1f, p99 %.1f, p99.9 %.1f, max %.1f%n",
+                    percentileMillis(0.5), percentileMillis(0.9), percentileMillis(0.99), percentileMillis(0.999), percentileMillis(1.0));
+            out.printf("errors:      %.4f (HTTP %d, SRU diagnostics %d, I/O %d)%n", errorRate(), httpErrors, diagnostics, ioErrors);
+        }
+    }
+
+    /**
+     * Reads the weighted request mix, each request type repeated by its
+     * weight.
+     *
+     * @param path the file of the mix, <code>null</code> for
+     * <code>load/default-mix.txt</code>
+     * @return the request parameters of the mix
+     * @throws IOException if the mix cannot be read or is empty
+     */
+    public static List<String> loadMix(String path) throws IOException {
+        final List<String> mix = new ArrayList<>();
+        try (InputStream in = path != null ? Files.newInputStream(Path.of(path)) : LoadDriver.class.getResourceAsStream("/load/default-mix.txt");
+                BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                line = line.strip();
+                if (line.isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+                final int space = line.indexOf(' ');
+                final int weight = Integer.parseInt(line.substring(0, space));
+                final String params = line.substring(space + 1).strip();
+                for (int i = 0; i < weight; i++) {
+                    mix.add(params);
+                }
+            }
+        }
+        if (mix.isEmpty()) {
+            throw new IOException("Request mix is empty");
+        }
+        return mix;
+    }
+}
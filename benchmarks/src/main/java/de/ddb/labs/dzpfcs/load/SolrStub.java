@@ -0,0 +1,235 @@
+/*
+ * Copyright 2023-2025 Michael Büchner, Deutsche Digitale Bibliothek
+ *
+ * This program is free software: you can redistribute it and/or modify 
+ * it under the terms of the GNU General Public License as published by 
+ * the Free Software Foundation, either version 3 of the License, or 
+ * (at your option) any later version. 
+ *  
+ * This program is distributed in the hope that it will be useful, 
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of 
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the 
+ * GNU General Public License for more details. 
+ * 
+ * You should have received a copy of the GNU General Public License 
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.ddb.labs.dzpfcs.load;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import de.ddb.labs.dzpfcs.BenchmarkFixtures;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.stream.Stream;
+
+/**
+ * Offline stand-in for the Solr <code>newspaper-issues/select</code> endpoint
+ * of the DDB API, for load tests without the live API.
+ * <p>
+ * Answers every request on any path with a Solr JSON response: either a
+ * recorded response from a fixture directory (chosen by the query
+ * <code>q</code>) or a generated response with <code>rows</code> documents
+ * (see {@link BenchmarkFixtures#solrResponse(int)}). Without fixtures,
+ * requests with <code>wt=javabin</code> get the generated response in the
+ * javabin format. Requests with a <code>cursorMark</code> get a
+ * <code>nextCursorMark</code>. Latency and server errors can be injected.
+ * </p>
+ * <pre>
+ * java -cp benchmarks/target/benchmarks.jar de.ddb.labs.dzpfcs.load.SolrStub \
+ *     --port 8983 --latency-ms 40 --jitter-ms 20 --error-rate 0.01 [--fixtures dir]
+ * </pre>
+ * Point <code>DZP_FCS_SOLR_ENDPOINT</code> in <code>.env</code> to
+ * <code>http://localhost:8983/search/index/newspaper-issues/select</code>.
+ */
+public final class SolrStub {
+
+    private static final int MAX_ROWS = 1000;
+
+    private static final byte[] ERROR = "{\"responseHeader\":{\"status\":500,\"QTime\":0},\"error\":{\"msg\":\"injected error\",\"code\":500}}"
+            .getBytes(StandardCharsets.UTF_8);
+
+    private final List<byte[]> recorded;
+    private final Map<Integer, byte[]> generated = new ConcurrentHashMap<>();
+    private final Map<Integer, byte[]> generatedJavabin = new ConcurrentHashMap<>();
+    private final long latencyMillis;
+    private final long jitterMillis;
+    private final double errorRate;
+
+    private SolrStub(List<byte[]> recorded, long latencyMillis, long jitterMillis, double errorRate) {
+        this.recorded = recorded;
+        this.latencyMillis = latencyMillis;
+        this.jitterMillis = jitterMillis;
+        this.errorRate = errorRate;
+    }
+
+    public static void main(String[] args) throws IOException {
+        final Map<String, String> options = Options.parse(args);
+        final int port = Integer.parseInt(options.getOrDefault("port", "8983"));
+        final String fixtures = options.get("fixtures");
+
+        final List<byte[]> recorded = fixtures != null ? load(Path.of(fixtures)) : List.of();
+        final long latencyMillis = Long.parseLong(options.getOrDefault("latency-ms", "0"));
+        final long jitterMillis = Long.parseLong(options.getOrDefault("jitter-ms", "0"));
+        final double errorRate = Double.parseDouble(options.getOrDefault("error-rate", "0"));
+
+        final HttpServer server = start(port, recorded, latencyMillis, jitterMillis, errorRate);
+        System.out.printf("Solr stub listening on http://localhost:%d/search/index/newspaper-issues/select (%s, latency %d ms + up to %d ms jitter, error rate %.3f)%n",
+                server.getAddress().getPort(), fixtures != null ? recorded.size() + " recorded responses" : "generated responses",
+                latencyMillis, jitterMillis, errorRate);
+    }
+
+    /**
+     * Starts a stub.
+     *
+     * @param port the port to listen on, 0 for any free port
+     * @param recorded the recorded responses, empty for generated ones
+     * @param latencyMillis the latency of each response
+     * @param jitterMillis the maximum random latency added to
+     * <code>latencyMillis</code>
+     * @param errorRate the fraction of requests answered with a server error
+     * @return the started server, stop it with {@link HttpServer#stop(int)}
+     * @throws IOException if the server cannot be started
+     */
+    public static HttpServer start(int port, List<byte[]> recorded, long latencyMillis, long jitterMillis, double errorRate) throws IOException {
+        final SolrStub stub = new SolrStub(recorded, latencyMillis, jitterMillis, errorRate);
+        final HttpServer server = HttpServer.create(new InetSocketAddress(port), 1024);
+        server.setExecutor(Executors.newVirtualThreadPerTaskExecutor());
+        server.createContext("/", stub::handle);
+        server.start();
+        return server;
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try (exchange) {
+            final Map<String, String> params = params(exchange.getRequestURI().getRawQuery());
+            final ThreadLocalRandom random = ThreadLocalRandom.current();
+
+            final long delay = latencyMillis + (jitterMillis > 0 ? random.nextLong(jitterMillis + 1) : 0);
+            if (delay > 0) {
+                try {
+                    Thread.sleep(delay);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+
+            if (errorRate > 0 && random.nextDouble() < errorRate) {
+                send(exchange, 500, ERROR, "application/json;charset=utf-8");
+                return;
+            }
+
+            final String cursorMark = params.get("cursorMark");
+            if (recorded.isEmpty() && "javabin".equals(params.get("wt"))) {
+                final int rows = rows(params);
+                final byte[] body = cursorMark != null
+                        ? BenchmarkFixtures.solrJavabinResponse(rows, nextCursorMark(cursorMark))
+                        : generatedJavabin.computeIfAbsent(rows, r -> BenchmarkFixtures.solrJavabinResponse(r, null));
+                send(exchange, 200, body, "application/octet-stream");
+                return;
+            }
+
+            byte[] body = response(params);
+            if (cursorMark != null) {
+                body = withNextCursorMark(body, cursorMark);
+            }
+            send(exchange, 200, body, "application/json;charset=utf-8");
+        }
+    }
+
+    private byte[] response(Map<String, String> params) {
+        if (!recorded.isEmpty()) {
+            final String q = params.getOrDefault("q", "");
+            return recorded.get(Math.floorMod(q.hashCode(), recorded.size()));
+        }
+        return generated.computeIfAbsent(rows(params), BenchmarkFixtures::solrResponse);
+    }
+
+    private static int rows(Map<String, String> params) {
+        int rows;
+        try {
+            rows = Integer.parseInt(params.getOrDefault("rows", "10"));
+        } catch (NumberFormatException e) {
+            rows = 10;
+        }
+        return Math.max(0, Math.min(rows, MAX_ROWS));
+    }
+
+    private static String nextCursorMark(String cursorMark) {
+        return Base64.getEncoder().encodeToString(("next:" + cursorMark).getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Adds a <code>nextCursorMark</code> derived from the current one as first
+     * field of the response object.
+     */
+    private static byte[] withNextCursorMark(byte[] body, String cursorMark) {
+        int start = 0;
+        while (start < body.length && body[start] != '{') {
+            start++;
+        }
+        final byte[] field = ("{\"nextCursorMark\":\"" + nextCursorMark(cursorMark) + "\",").getBytes(StandardCharsets.UTF_8);
+        final byte[] out = new byte[field.length + body.length - start - 1];
+        System.arraycopy(field, 0, out, 0, field.length);
+        System.arraycopy(body, start + 1, out, field.length, body.length - start - 1);
+        return out;
+    }
+
+    private static void send(HttpExchange exchange, int status, byte[] body, String contentType) throws IOException {
+        exchange.getResponseHeaders().set("Content-Type", contentType);
+        exchange.sendResponseHeaders(status, body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+
+    private static Map<String, String> params(String rawQuery) {
+        final Map<String, String> params = new HashMap<>();
+        if (rawQuery == null) {
+            return params;
+        }
+        for (String pair : rawQuery.split("&")) {
+            final int eq = pair.indexOf('=');
+            if (eq > 0) {
+                params.putIfAbsent(URLDecoder.decode(pair.substring(0, eq), StandardCharsets.UTF_8),
+                        URLDecoder.decode(pair.substring(eq + 1), StandardCharsets.UTF_8));
+            }
+        }
+        return params;
+    }
+
+    /**
+     * Reads the recorded responses, the <code>*.json</code> files of a
+     * directory.
+     *
+     * @param dir the directory
+     * @return the responses in the order of their file names
+     * @throws IOException if the directory holds no fixtures or cannot be read
+     */
+    public static List<byte[]> load(Path dir) throws IOException {
+        final List<byte[]> responses = new ArrayList<>();
+        try (Stream<Path> files = Files.list(dir)) {
+            for (Path file : files.filter(f -> f.toString().endsWith(".json")).sorted().toList()) {
+                responses.add(Files.readAllBytes(file));
+            }
+        }
+        if (responses.isEmpty()) {
+            throw new IOException("No *.json fixtures in " + dir);
+        }
+        return responses;
+    }
+}
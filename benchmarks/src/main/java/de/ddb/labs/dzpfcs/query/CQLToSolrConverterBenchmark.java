@@ -0,0 +1,108 @@
+/*
+ * Copyright 2023-2025 Michael Büchner, Deutsche Digitale Bibliothek
+ *
+ * This program is free software: you can redistribute it and/or modify 
+ * it under the terms of the GNU General Public License as published by 
+ * the Free Software Foundation, either version 3 of the License, or 
+ * (at your option) any later version. 
+ *  
+ * This program is distributed in the hope that it will be useful, 
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of 
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the 
+ * GNU General Public License for more details. 
+ * 
+ * You should have received a copy of the GNU General Public License 
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.ddb.labs.dzpfcs.query;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.z3950.zing.cql.CQLNode;
+import org.z3950.zing.cql.CQLParser;
+
+/**
+ * Conversion of parsed CQL queries to Solr queries, as written and in
+ * canonical form, on a shallow and a deep boolean tree and on a deep tree
+ * with repeated terms and nested chains of the same operator (which
+ * canonicalization flattens and deduplicates).
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class CQLToSolrConverterBenchmark {
+
+    @Param({"shallow", "deep", "redundant"})
+    public String tree;
+
+    private CQLNode node;
+
+    @Setup
+    public void setup() throws Exception {
+        final String cql = switch (tree) {
+            case "shallow" ->
+                "Berlin AND Hamburg";
+            case "redundant" ->
+                redundantQuery(6, 8);
+            default ->
+                deepQuery(6);
+        };
+        node = new CQLParser().parse(cql);
+    }
+
+    /**
+     * A balanced tree of alternating AND/OR nodes with <code>2^depth</code>
+     * terms.
+     */
+    static String deepQuery(int depth) {
+        return deepQuery(depth, new int[]{0});
+    }
+
+    private static String deepQuery(int depth, int[] term) {
+        if (depth == 0) {
+            return "\"term" + (term[0]++) + "\"";
+        }
+        final String op = depth % 2 == 0 ? " AND " : " OR ";
+        return "(" + deepQuery(depth - 1, term) + op + deepQuery(depth - 1, term) + ")";
+    }
+
+    /**
+     * A balanced tree of AND nodes with OR nodes every third level and
+     * <code>2^depth</code> terms out of <code>distinct</code> different ones,
+     * in varying order.
+     */
+    static String redundantQuery(int depth, int distinct) {
+        return redundantQuery(depth, distinct, new int[]{0});
+    }
+
+    private static String redundantQuery(int depth, int distinct, int[] term) {
+        if (depth == 0) {
+            return "\"term" + (term[0]++ * 5 % distinct) + "\"";
+        }
+        final String op = depth % 3 == 0 ? " OR " : " AND ";
+        return "(" + redundantQuery(depth - 1, distinct, term) + op + redundantQuery(depth - 1, distinct, term) + ")";
+    }
+
+    @Benchmark
+    public CanonicalQuery canonicalize() throws Exception {
+        return CQLToSolrConverter.canonicalize(node);
+    }
+
+    @Benchmark
+    public String convert() throws Exception {
+        return CQLToSolrConverter.convertCQLtoSolrQuery(node);
+    }
+}
@@ -0,0 +1,69 @@
+/*
+ * Copyright 2023-2025 Michael Büchner, Deutsche Digitale Bibliothek
+ *
+ * This program is free software: you can redistribute it and/or modify 
+ * it under the terms of the GNU General Public License as published by 
+ * the Free Software Foundation, either version 3 of the License, or 
+ * (at your option) any later version. 
+ *  
+ * This program is distributed in the hope that it will be useful, 
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of 
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the 
+ * GNU General Public License for more details. 
+ * 
+ * You should have received a copy of the GNU General Public License 
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.ddb.labs.dzpfcs.searcher;
+
+import de.ddb.labs.dzpfcs.BenchmarkFixtures;
+import java.io.ByteArrayInputStream;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Decoding of a Solr response into {@link ResultsEntry} objects with their
+ * snippets, as done for every page fetched by the search, in both response
+ * formats (JSON and javabin). The setup prints the size of the responses.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class SolrResponseDecoderBenchmark {
+
+    @Param({"10", "250", "1000"})
+    public int records;
+
+    @Param({"json", "javabin"})
+    public String transport;
+
+    private byte[] response;
+
+    @Setup
+    public void setup() {
+        response = "javabin".equals(transport)
+                ? BenchmarkFixtures.solrJavabinResponse(records, null)
+                : BenchmarkFixtures.solrResponse(records);
+        System.out.printf("%n%s response with %d records: %d bytes%n", transport, records, response.length);
+    }
+
+    @Benchmark
+    public SolrResponse decode() throws Exception {
+        return "javabin".equals(transport)
+                ? JavaBinResponseDecoder.decode(new ByteArrayInputStream(response))
+                : SolrResponseDecoder.decode(new ByteArrayInputStream(response));
+    }
+}
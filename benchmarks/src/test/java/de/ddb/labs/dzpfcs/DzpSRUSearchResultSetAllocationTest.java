@@ -0,0 +1,97 @@
+/*
+ * Copyright 2023-2025 Michael Büchner, Deutsche Digitale Bibliothek
+ *
+ * This program is free software: you can redistribute it and/or modify 
+ * it under the terms of the GNU General Public License as published by 
+ * the Free Software Foundation, either version 3 of the License, or 
+ * (at your option) any later version. 
+ *  
+ * This program is distributed in the hope that it will be useful, 
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of 
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the 
+ * GNU General Public License for more details. 
+ * 
+ * You should have received a copy of the GNU General Public License 
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.ddb.labs.dzpfcs;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+import com.sun.management.ThreadMXBean;
+import de.ddb.labs.dzpfcs.searcher.Results;
+import de.ddb.labs.dzpfcs.searcher.SolrResponse;
+import de.ddb.labs.dzpfcs.searcher.SolrResponseDecoder;
+import java.io.ByteArrayInputStream;
+import java.lang.management.ManagementFactory;
+import java.util.List;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamWriter;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Allocation budget of the serialization of FCS records with
+ * {@link DzpSRUSearchResultSet#writeRecord(XMLStreamWriter)}.
+ */
+class DzpSRUSearchResultSetAllocationTest {
+
+    private static final int RECORDS = 1000;
+
+    /**
+     * Maximum number of bytes allocated per serialized record. Writing a
+     * record allocates little more than the link of the record and the state
+     * of the StAX writer; copying the list of entries of a 1000-record page
+     * per record, as writeRecord did before, allocates about 4 KiB per copy
+     * and exceeds it.
+     */
+    private static final long MAX_BYTES_PER_RECORD = 3 * 1024;
+
+    @Test
+    void allocationPerRecordIsWithinBudget() throws Exception {
+        final ThreadMXBean threads = (ThreadMXBean) ManagementFactory.getThreadMXBean();
+        assumeTrue(threads.isThreadAllocatedMemorySupported(), "allocation per thread cannot be measured on this JVM");
+        threads.setThreadAllocatedMemoryEnabled(true);
+
+        final SolrResponse response = SolrResponseDecoder.decode(new ByteArrayInputStream(BenchmarkFixtures.solrResponse(RECORDS)));
+        final Results results = new Results("https://www.deutsche-digitale-bibliothek.de/newspaper", "\"Berlin\"", response.getDocs(), response.getNumFound(), 0);
+        final XMLOutputFactory factory = XMLOutputFactory.newDefaultFactory();
+
+        // load and initialize the classes on the path before measuring
+        write(factory, results, threads);
+
+        final long allocated = write(factory, results, threads);
+        assertTrue(allocated / RECORDS <= MAX_BYTES_PER_RECORD,
+                "allocated " + allocated / RECORDS + " bytes per record, budget is " + MAX_BYTES_PER_RECORD);
+    }
+
+    /**
+     * Writes all records of <code>results</code>.
+     *
+     * @return the number of bytes allocated in
+     * {@link DzpSRUSearchResultSet#writeRecord(XMLStreamWriter)}
+     */
+    private static long write(XMLOutputFactory factory, Results results, ThreadMXBean threads) throws Exception {
+        final XMLStreamWriter writer = factory.createXMLStreamWriter(new BenchmarkFixtures.CountingNullOutputStream(), "UTF-8");
+        final DzpSRUSearchResultSet resultSet = new DzpSRUSearchResultSet(null, null, BenchmarkFixtures.ignoringDiagnostics(), List.of(), null, results);
+        final long thread = Thread.currentThread().threadId();
+
+        long allocated = 0;
+        int written = 0;
+        writer.writeStartDocument("UTF-8", "1.0");
+        writer.writeStartElement("records");
+        while (resultSet.nextRecord()) {
+            final long before = threads.getThreadAllocatedBytes(thread);
+            resultSet.writeRecord(writer);
+            allocated += threads.getThreadAllocatedBytes(thread) - before;
+            written++;
+        }
+        writer.writeEndElement();
+        writer.writeEndDocument();
+        writer.flush();
+
+        assertEquals(RECORDS, written);
+        return allocated;
+    }
+}
@@ -0,0 +1,65 @@
+/*
+ * Copyright 2023-2025 Michael Büchner, Deutsche Digitale Bibliothek
+ *
+ * This program is free software: you can redistribute it and/or modify 
+ * it under the terms of the GNU General Public License as published by 
+ * the Free Software Foundation, either version 3 of the License, or 
+ * (at your option) any later version. 
+ *  
+ * This program is distributed in the hope that it will be useful, 
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of 
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the 
+ * GNU General Public License for more details. 
+ * 
+ * You should have received a copy of the GNU General Public License 
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.ddb.labs.dzpfcs;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import de.ddb.labs.dzpfcs.searcher.Results;
+import de.ddb.labs.dzpfcs.searcher.SolrResponse;
+import de.ddb.labs.dzpfcs.searcher.SolrResponseDecoder;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.List;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamWriter;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+/**
+ * The StAX implementations of {@link DzpXMLOutputFactory} write the same FCS
+ * records, compared in canonical form.
+ */
+class DzpXMLOutputFactoryCompatibilityTest {
+
+    @ParameterizedTest
+    @ValueSource(ints = {1, 250, 1000})
+    void woodstoxWritesTheSameRecordsAsTheJdk(int records) throws Exception {
+        final SolrResponse response = SolrResponseDecoder.decode(new ByteArrayInputStream(BenchmarkFixtures.solrResponse(records)));
+        final Results results = new Results("https://www.deutsche-digitale-bibliothek.de/newspaper", "\"Berlin\" AND Hamburg", response.getDocs(), response.getNumFound(), 0);
+
+        final String jdk = BenchmarkFixtures.canonicalXml(write(DzpXMLOutputFactory.newInstance("jdk"), results));
+        final String woodstox = BenchmarkFixtures.canonicalXml(write(DzpXMLOutputFactory.newInstance("woodstox"), results));
+
+        assertEquals(jdk, woodstox);
+    }
+
+    private static byte[] write(XMLOutputFactory factory, Results results) throws Exception {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final XMLStreamWriter writer = factory.createXMLStreamWriter(out, "UTF-8");
+        final DzpSRUSearchResultSet resultSet = new DzpSRUSearchResultSet(null, null, BenchmarkFixtures.ignoringDiagnostics(), List.of(), null, results);
+
+        writer.writeStartDocument("UTF-8", "1.0");
+        writer.writeStartElement("records");
+        while (resultSet.nextRecord()) {
+            resultSet.writeRecord(writer);
+        }
+        writer.writeEndElement();
+        writer.writeEndDocument();
+        writer.flush();
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,145 @@
+/*
+ * Copyright 2023-2025 Michael Büchner, Deutsche Digitale Bibliothek
+ *
+ * This program is free software: you can redistribute it and/or modify 
+ * it under the terms of the GNU General Public License as published by 
+ * the Free Software Foundation, either version 3 of the License, or 
+ * (at your option) any later version. 
+ *  
+ * This program is distributed in the hope that it will be useful, 
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of 
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the 
+ * GNU General Public License for more details. 
+ * 
+ * You should have received a copy of the GNU General Public License 
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.ddb.labs.dzpfcs.load;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.sun.net.httpserver.HttpServer;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+import org.apache.catalina.Context;
+import org.apache.catalina.deploy.ApplicationParameter;
+import org.apache.catalina.startup.Tomcat;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Regression gate on throughput and latency of the deployed endpoint. The
+ * web application in <code>src/main/webapp</code> of the endpoint runs in an
+ * embedded Tomcat against a {@link SolrStub} answering with the recorded
+ * responses in <code>fixtures/newspaper-issues</code>, and the
+ * {@link LoadDriver} sends the mix <code>load/gate-mix.txt</code>.
+ * <p>
+ * Runs with <code>mvn -f benchmarks/pom.xml -Pload-gate verify</code>; the
+ * limits and durations are system properties of the profile.
+ * </p>
+ */
+class LoadGateIT {
+
+    private static final String SELECT_PATH = "/search/index/newspaper-issues/select";
+
+    private static HttpServer solr;
+
+    private static Tomcat tomcat;
+
+    private static String endpoint;
+
+    @BeforeAll
+    static void start() throws Exception {
+        solr = SolrStub.start(0,
+                SolrStub.load(resource("/fixtures/newspaper-issues")),
+                Long.getLong("loadGate.solrLatencyMillis", 20),
+                Long.getLong("loadGate.solrJitterMillis", 10),
+                0);
+
+        // the endpoint reads the Solr endpoint from .env in the working directory
+        Files.writeString(Path.of(".env"),
+                "DZP_FCS_SOLR_ENDPOINT=http://localhost:" + solr.getAddress().getPort() + SELECT_PATH + "\n",
+                StandardCharsets.UTF_8);
+
+        tomcat = new Tomcat();
+        tomcat.setBaseDir(Files.createTempDirectory("tomcat").toString());
+        tomcat.setPort(0);
+        tomcat.setAddDefaultWebXmlToWebapp(false);
+        tomcat.getConnector();
+        final Context context = tomcat.addWebapp("", Path.of(System.getProperty("loadGate.webapp", "../src/main/webapp")).toAbsolutePath().toString());
+        // measure the search path, not the rate limits of a single client
+        // or responses served from the cache
+        override(context, "de.ddb.labs.dzpfcs.ingress.enabled", "false");
+        override(context, "de.ddb.labs.dzpfcs.responseCache.enabled", "false");
+        tomcat.start();
+
+        endpoint = "http://localhost:" + tomcat.getConnector().getLocalPort() + "/";
+        awaitReady(Duration.ofSeconds(Long.getLong("loadGate.readySeconds", 60)));
+    }
+
+    @AfterAll
+    static void stop() throws Exception {
+        if (tomcat != null) {
+            tomcat.stop();
+            tomcat.destroy();
+        }
+        if (solr != null) {
+            solr.stop(0);
+        }
+    }
+
+    @Test
+    void throughputAndLatencyWithinLimits() throws Exception {
+        final int concurrency = Integer.getInteger("loadGate.concurrency", 16);
+        final double maxP99Millis = Double.parseDouble(System.getProperty("loadGate.maxP99Millis", "500"));
+        final double maxErrorRate = Double.parseDouble(System.getProperty("loadGate.maxErrorRate", "0.01"));
+
+        final LoadDriver driver = new LoadDriver(endpoint, LoadDriver.loadMix(resource("/load/gate-mix.txt").toString()));
+        driver.run(concurrency, TimeUnit.SECONDS.toNanos(Long.getLong("loadGate.warmupSeconds", 10)));
+        final LoadDriver.Report report = driver.run(concurrency, TimeUnit.SECONDS.toNanos(Long.getLong("loadGate.durationSeconds", 30)));
+        report.print(System.out);
+
+        assertTrue(report.errorRate() <= maxErrorRate,
+                "error rate " + report.errorRate() + " exceeds " + maxErrorRate);
+        assertTrue(report.percentileMillis(0.99) <= maxP99Millis,
+                "p99 " + report.percentileMillis(0.99) + " ms exceeds " + maxP99Millis + " ms");
+    }
+
+    private static void override(Context context, String name, String value) {
+        final ApplicationParameter parameter = new ApplicationParameter();
+        parameter.setName(name);
+        parameter.setValue(value);
+        parameter.setOverride(false);
+        context.addApplicationParameter(parameter);
+    }
+
+    /**
+     * Waits until the warm-up of the endpoint is done.
+     */
+    private static void awaitReady(Duration timeout) throws Exception {
+        final HttpClient client = HttpClient.newHttpClient();
+        final HttpRequest ready = HttpRequest.newBuilder(URI.create(endpoint + "ready")).GET().build();
+        final long end = System.nanoTime() + timeout.toNanos();
+        int status;
+        do {
+            status = client.send(ready, HttpResponse.BodyHandlers.discarding()).statusCode();
+            if (status != 200) {
+                Thread.sleep(250);
+            }
+        } while (status != 200 && System.nanoTime() < end);
+        assertEquals(200, status, "endpoint not ready after " + timeout);
+    }
+
+    private static Path resource(String name) throws Exception {
+        return Path.of(LoadGateIT.class.getResource(name).toURI());
+    }
+}
@@ -0,0 +1,64 @@
+/*
+ * Copyright 2023-2025 Michael Büchner, Deutsche Digitale Bibliothek
+ *
+ * This program is free software: you can redistribute it and/or modify 
+ * it under the terms of the GNU General Public License as published by 
+ * the Free Software Foundation, either version 3 of the License, or 
+ * (at your option) any later version. 
+ *  
+ * This program is distributed in the hope that it will be useful, 
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of 
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the 
+ * GNU General Public License for more details. 
+ * 
+ * You should have received a copy of the GNU General Public License 
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.ddb.labs.dzpfcs;
+
+import java.util.Map;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Typed access to the endpoint configuration parameters gathered from the
+ * Servlet configuration and Servlet context (see
+ * <code>src/main/webapp/WEB-INF/web.xml</code>).
+ */
+public class DzpConfig {
+
+    private static final Logger LOGGER = LogManager.getLogger(DzpConfig.class);
+
+    private final Map<String, String> params;
+
+    public DzpConfig(Map<String, String> params) {
+        this.params = params;
+    }
+
+    public String getString(String name, String defaultValue) {
+        final String value = params.get(name);
+        return (value == null || value.isBlank()) ? defaultValue : value.trim();
+    }
+
+    public int getInt(String name, int defaultValue) {
+        return (int) getLong(name, defaultValue);
+    }
+
+    public long getLong(String name, long defaultValue) {
+        final String value = getString(name, null);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            LOGGER.warn("Parameter '{}' is not a number: '{}'. Using default {}", name, value, defaultValue);
+            return defaultValue;
+        }
+    }
+
+    public boolean getBoolean(String name, boolean defaultValue) {
+        final String value = getString(name, null);
+        return value == null ? defaultValue : Boolean.parseBoolean(value);
+    }
+}
@@ -16,16 +16,16 @@
  */
 package de.ddb.labs.dzpfcs;
 
-import com.jayway.jsonpath.Configuration;
-import com.jayway.jsonpath.JsonPath;
-import com.jayway.jsonpath.Option;
-import com.jayway.jsonpath.ReadContext;
-import com.jayway.jsonpath.TypeRef;
-import com.jayway.jsonpath.spi.json.JacksonJsonProvider;
-import com.jayway.jsonpath.spi.json.JsonProvider;
-import com.jayway.jsonpath.spi.mapper.JacksonMappingProvider;
-import com.jayway.jsonpath.spi.mapper.MappingProvider;
 import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Properties;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.util.ArrayList;
@@ -33,10 +33,13 @@ import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.regex.Pattern;
 import java.util.stream.Collectors;
 import javax.naming.InitialContext;
 import javax.naming.NamingException;
 import javax.servlet.ServletContext;
+import javax.xml.stream.FactoryConfigurationError;
+import javax.xml.stream.XMLOutputFactory;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import de.ddb.labs.dzpfcs.searcher.Results;
@@ -56,17 +59,32 @@ import eu.clarin.sru.server.fcs.ResourceInfo;
 import eu.clarin.sru.server.fcs.SimpleEndpointSearchEngineBase;
 import eu.clarin.sru.server.fcs.parser.QueryParserException;
 import eu.clarin.sru.server.fcs.utils.SimpleEndpointDescriptionParser;
+import de.ddb.labs.dzpfcs.ingress.ClientContext;
+import de.ddb.labs.dzpfcs.ingress.IngressScheduler;
+import de.ddb.labs.dzpfcs.metrics.DzpMetrics;
+import de.ddb.labs.dzpfcs.metrics.Readiness;
+import de.ddb.labs.dzpfcs.metrics.SearchTrace;
+import de.ddb.labs.dzpfcs.query.CQLIndexes;
 import de.ddb.labs.dzpfcs.query.CQLToSolrConverter;
-import de.ddb.labs.dzpfcs.searcher.ResultsEntry;
+import de.ddb.labs.dzpfcs.query.CanonicalQuery;
+import de.ddb.labs.dzpfcs.searcher.AdaptiveConcurrencyLimiter;
+import de.ddb.labs.dzpfcs.searcher.CircuitBreaker;
+import de.ddb.labs.dzpfcs.searcher.CursorCache;
+import de.ddb.labs.dzpfcs.searcher.HedgingPolicy;
+import de.ddb.labs.dzpfcs.searcher.ResultsCache;
+import de.ddb.labs.dzpfcs.searcher.ResultsStream;
+import de.ddb.labs.dzpfcs.searcher.SolrQuery;
+import de.ddb.labs.dzpfcs.searcher.SolrRequestPlan;
+import de.ddb.labs.dzpfcs.searcher.SolrRequestPlanner;
+import de.ddb.labs.dzpfcs.searcher.SnippetStore;
+import de.ddb.labs.dzpfcs.searcher.SolrSearcher;
 import eu.clarin.sru.server.SRUServer;
 import io.github.cdimascio.dotenv.Dotenv;
-import java.util.EnumSet;
+import java.time.Duration;
 import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
 import okhttp3.Dispatcher;
 import okhttp3.OkHttpClient;
-import okhttp3.Request;
-import okhttp3.Response;
 
 /**
  * Our implemention of a simple search engine to be used as a CLARIN-FCS
@@ -81,36 +99,142 @@ public class DzpEndpointSearchEngine extends SimpleEndpointSearchEngineBase {
     // set in `src/main/webapp/WEB-INF/web.xml` if you want to package a custom endpoint-description.xml file at another location
     private static final String RESOURCE_INVENTORY_URL = "de.ddb.labs.dzpfcs.resourceInventoryURL";
 
-    private final Dotenv dotenv = Dotenv.load();
+    // set in `src/main/webapp/WEB-INF/web.xml` if you want to use a custom resource-filters.properties file at another location
+    private static final String RESOURCE_FILTERS_URL = "de.ddb.labs.dzpfcs.resourceFiltersURL";
+
+    // in-process cache for parsed Solr results
+    private static final String RESULT_CACHE_ENABLED = "de.ddb.labs.dzpfcs.resultCache.enabled";
+    private static final String RESULT_CACHE_TTL_SECONDS = "de.ddb.labs.dzpfcs.resultCache.ttlSeconds";
+    private static final String RESULT_CACHE_MAX_BYTES = "de.ddb.labs.dzpfcs.resultCache.maxBytes";
+
+    // request the total number of hits separately (and concurrently to the page)
+    private static final String SOLR_SEPARATE_COUNT = "de.ddb.labs.dzpfcs.solr.separateCount";
+    private static final String SOLR_COUNT_TTL_SECONDS = "de.ddb.labs.dzpfcs.solr.countTtlSeconds";
+
+    // canonical form of converted CQL queries, for higher cache hit rates
+    private static final String QUERY_CANONICALIZE = "de.ddb.labs.dzpfcs.query.canonicalize";
+
+    // Solr fields of the CQL indexes title, date and pagenumber
+    private static final String QUERY_INDEX_TITLE = "de.ddb.labs.dzpfcs.query.index.title";
+    private static final String QUERY_INDEX_DATE = "de.ddb.labs.dzpfcs.query.index.date";
+    private static final String QUERY_INDEX_PAGENUMBER = "de.ddb.labs.dzpfcs.query.index.pagenumber";
+
+    // StAX implementation the SRU responses are written with: jdk, woodstox or a class name
+    private static final String XML_OUTPUT_FACTORY = "de.ddb.labs.dzpfcs.xml.outputFactory";
+
+    // response format of Solr requests: json or javabin
+    private static final String SOLR_TRANSPORT = "de.ddb.labs.dzpfcs.solr.transport";
+
+    // warm-up after a (re)start, the endpoint is ready afterwards
+    private static final String WARMUP_ENABLED = "de.ddb.labs.dzpfcs.warmup.enabled";
+    private static final String WARMUP_QUERIES = "de.ddb.labs.dzpfcs.warmup.queries";
+    private static final String WARMUP_QUERIES_SEPARATOR = "|";
+    private static final String WARMUP_ROUNDS = "de.ddb.labs.dzpfcs.warmup.rounds";
+    private static final String WARMUP_CONNECTIONS = "de.ddb.labs.dzpfcs.warmup.connections";
+    private static final int WARMUP_RECORDS = 10;
+
+    // persistent store of highlighting snippets
+    private static final String SNIPPET_STORE_ENABLED = "de.ddb.labs.dzpfcs.snippetStore.enabled";
+    private static final String SNIPPET_STORE_PATH = "de.ddb.labs.dzpfcs.snippetStore.path";
+    private static final String SNIPPET_STORE_MAX_BYTES = "de.ddb.labs.dzpfcs.snippetStore.maxBytes";
+    private static final String SNIPPET_STORE_TTL_SECONDS = "de.ddb.labs.dzpfcs.snippetStore.ttlSeconds";
+
+    // fetching large windows in chunks while the records are written
+    private static final String SOLR_CHUNK_SIZE = "de.ddb.labs.dzpfcs.solr.chunkSize";
+    private static final String SOLR_PREFETCH = "de.ddb.labs.dzpfcs.solr.prefetch";
+
+    // highlighting of Solr requests (defaults of the unified highlighter)
+    private static final String SOLR_HL_FRAGSIZE = "de.ddb.labs.dzpfcs.solr.hl.fragsize";
+    private static final String SOLR_HL_MAX_ANALYZED_CHARS = "de.ddb.labs.dzpfcs.solr.hl.maxAnalyzedChars";
+
+    // deep paging with Solr cursorMark
+    private static final int CURSORS_PER_QUERY = 64;
+    private static final String SOLR_CURSOR_ENABLED = "de.ddb.labs.dzpfcs.solr.cursor.enabled";
+    private static final String SOLR_CURSOR_THRESHOLD = "de.ddb.labs.dzpfcs.solr.cursor.threshold";
+    private static final String SOLR_CURSOR_MAX_WALK = "de.ddb.labs.dzpfcs.solr.cursor.maxWalk";
+    private static final String SOLR_CURSOR_MAX_QUERIES = "de.ddb.labs.dzpfcs.solr.cursor.maxQueries";
+    private static final String SOLR_CURSOR_TTL_SECONDS = "de.ddb.labs.dzpfcs.solr.cursor.ttlSeconds";
+
+    // connection to the DDB-API and adaptive limit of concurrent Solr calls
+    private static final String UPSTREAM_VIRTUAL_THREADS = "de.ddb.labs.dzpfcs.upstream.virtualThreads";
+    private static final String UPSTREAM_READ_TIMEOUT_SECONDS = "de.ddb.labs.dzpfcs.upstream.readTimeoutSeconds";
+    private static final String UPSTREAM_LIMIT_INITIAL = "de.ddb.labs.dzpfcs.upstream.limit.initial";
+    private static final String UPSTREAM_LIMIT_MIN = "de.ddb.labs.dzpfcs.upstream.limit.min";
+    private static final String UPSTREAM_LIMIT_MAX = "de.ddb.labs.dzpfcs.upstream.limit.max";
+    private static final String UPSTREAM_LIMIT_MAX_WAIT_MILLIS = "de.ddb.labs.dzpfcs.upstream.limit.maxWaitMillis";
+
+    // per-client rate limits and fair queuing of searchRetrieve requests
+    private static final String INGRESS_ENABLED = "de.ddb.labs.dzpfcs.ingress.enabled";
+    private static final String INGRESS_MAX_CONCURRENT = "de.ddb.labs.dzpfcs.ingress.maxConcurrent";
+    private static final String INGRESS_MAX_WAIT_MILLIS = "de.ddb.labs.dzpfcs.ingress.maxWaitMillis";
+    private static final String INGRESS_RECORDS_PER_SECOND = "de.ddb.labs.dzpfcs.ingress.recordsPerSecond";
+    private static final String INGRESS_BURST_RECORDS = "de.ddb.labs.dzpfcs.ingress.burstRecords";
+    private static final String INGRESS_METRICS_MAX_CLIENTS = "de.ddb.labs.dzpfcs.ingress.metrics.maxClients";
+
+    // circuit breaker and hedged requests toward the DDB-API
+    private static final String UPSTREAM_BREAKER_ENABLED = "de.ddb.labs.dzpfcs.upstream.breaker.enabled";
+    private static final String UPSTREAM_BREAKER_WINDOW = "de.ddb.labs.dzpfcs.upstream.breaker.window";
+    private static final String UPSTREAM_BREAKER_MIN_CALLS = "de.ddb.labs.dzpfcs.upstream.breaker.minCalls";
+    private static final String UPSTREAM_BREAKER_FAILURE_RATE = "de.ddb.labs.dzpfcs.upstream.breaker.failureRatePercent";
+    private static final String UPSTREAM_BREAKER_SLOW_CALL_MILLIS = "de.ddb.labs.dzpfcs.upstream.breaker.slowCallMillis";
+    private static final String UPSTREAM_BREAKER_SLOW_CALL_RATE = "de.ddb.labs.dzpfcs.upstream.breaker.slowCallRatePercent";
+    private static final String UPSTREAM_BREAKER_OPEN_SECONDS = "de.ddb.labs.dzpfcs.upstream.breaker.openSeconds";
+    private static final String UPSTREAM_BREAKER_PROBES = "de.ddb.labs.dzpfcs.upstream.breaker.probes";
+    private static final String UPSTREAM_HEDGE_ENABLED = "de.ddb.labs.dzpfcs.upstream.hedge.enabled";
+    private static final String UPSTREAM_HEDGE_PERCENTILE = "de.ddb.labs.dzpfcs.upstream.hedge.percentile";
+    private static final String UPSTREAM_HEDGE_MIN_DELAY_MILLIS = "de.ddb.labs.dzpfcs.upstream.hedge.minDelayMillis";
 
-    private final String dzp_api = dotenv.get("DZP_FCS_SOLR_ENDPOINT")
-            + "?df=plainpagefulltext"
-            + "&fl=id,paper_title,pagenumber"
-            + "&hl.bs.separator=."
-            + "&hl.bs.type=SENTENCE"
-            + "&hl.fl=plainpagefulltext"
-            + "&hl.method=unified"
-            + "&hl.simple.post=</Hit>"
-            + "&hl.simple.pre=<Hit>"
-            + "&hl=true"
-            + "&q={{query}}"
-            + "&rows={{rows}}"
-            + "&start={{start}}";
+    private final Dotenv dotenv = Dotenv.load();
 
     private Dispatcher dispatcher = null;
 
     private OkHttpClient client = null;
 
+    private SolrSearcher searcher = null;
+
+    private SolrRequestPlanner planner = null;
+
+    private SnippetStore snippetStore = null;
+
+    private IngressScheduler scheduler = null;
+
+    /**
+     * Number of records fetched at once for windows larger than this, 0 to
+     * always fetch the whole window before writing.
+     */
+    private int chunkSize = 0;
+
+    private boolean prefetch = true;
+
+    /**
+     * Whether CQL queries are converted to Solr queries in canonical form.
+     */
+    private boolean canonicalize = true;
+
+    private CQLIndexes indexes = CQLIndexes.DEFAULT;
+
     /**
      * Endpoint Description with resources, capabilities etc.
      */
     private static EndpointDescription endpointDescription;
 
     /**
-     * List of our endpoint's resources (identified by PID Strings)
+     * List of our endpoint's resources and sub-resources (identified by PID
+     * Strings)
      */
     private static List<String> pids;
 
+    /**
+     * Our endpoint's resources and sub-resources by PID.
+     */
+    private static Map<String, ResourceInfo> resources;
+
+    /**
+     * Solr filter query per (sub-)resource PID. Resources without a filter
+     * search the whole index.
+     */
+    private static Map<String, String> resourceFilters;
+
     /**
      * Our default corpus if SRU requests do no explicitely request a resource
      * by PID with the <code>x-fcs-context</code> parameter. Must not be
@@ -176,19 +300,67 @@ public class DzpEndpointSearchEngine extends SimpleEndpointSearchEngineBase {
     }
 
     /**
-     * Parses the list of root resource PIDs from the
-     * {@link EndpointDescription}.
+     * Load the Solr filter queries of the (sub-)resources from the bundled
+     * <code>resource-filters.properties</code> or from the
+     * <code>RESOURCE_FILTERS_URL</code>. Keys are resource PIDs, values are
+     * Solr filter queries.
      *
-     * Note: This only considers root resources and not subresources!
+     * @param context the {@link ServletContext} for the Servlet
+     * @param params additional parameters gathered from the Servlet
+     * configuration and Servlet context.
+     * @return filter query per resource PID
+     * @throws SRUConfigException an error occurred during loading/reading the
+     * <code>resource-filters.properties</code> file
+     */
+    protected Map<String, String> loadResourceFilters(ServletContext context, Map<String, String> params) throws SRUConfigException {
+        try {
+            URL url;
+            String rfu = params.get(RESOURCE_FILTERS_URL);
+            if ((rfu == null) || rfu.isEmpty()) {
+                url = context.getResource("/WEB-INF/resource-filters.properties");
+                LOGGER.debug("using bundled 'resource-filters.properties' file");
+            } else {
+                url = new File(rfu).toURI().toURL();
+                LOGGER.debug("using external file '{}'", rfu);
+            }
+            final Map<String, String> filters = new HashMap<>();
+            if (url == null) {
+                return filters;
+            }
+            final Properties properties = new Properties();
+            try (InputStream in = url.openStream(); Reader reader = new InputStreamReader(in, StandardCharsets.UTF_8)) {
+                properties.load(reader);
+            }
+            for (String pid : properties.stringPropertyNames()) {
+                filters.put(pid, properties.getProperty(pid).trim());
+            }
+            return filters;
+        } catch (IOException e) {
+            throw new SRUConfigException("Error reading Solr filter queries of resources", e);
+        }
+    }
+
+    /**
+     * Parses the resources and sub-resources from the
+     * {@link EndpointDescription}.
      *
      * @param ed the {@link EndpointDescription} for the Servlet
-     * @return a list of String with root resource PIDs
+     * @return the resources and sub-resources by PID, in document order
      * @throws eu.clarin.sru.server.SRUException
      */
-    protected List<String> getCollectionsFromEndpointDescription(EndpointDescription ed) throws SRUException {
-        // NOTE: only root resources!
-        return ed.getResourceList(EndpointDescription.PID_ROOT).stream().map(ResourceInfo::getPid)
-                .collect(Collectors.toList());
+    protected Map<String, ResourceInfo> getCollectionsFromEndpointDescription(EndpointDescription ed) throws SRUException {
+        final Map<String, ResourceInfo> collections = new LinkedHashMap<>();
+        addCollections(ed.getResourceList(EndpointDescription.PID_ROOT), collections);
+        return collections;
+    }
+
+    private static void addCollections(List<ResourceInfo> infos, Map<String, ResourceInfo> collections) {
+        for (ResourceInfo info : infos) {
+            collections.put(info.getPid(), info);
+            if (info.hasSubResources()) {
+                addCollections(info.getSubResources(), collections);
+            }
+        }
     }
 
     /**
@@ -229,6 +401,7 @@ public class DzpEndpointSearchEngine extends SimpleEndpointSearchEngineBase {
     @Override
     protected void doInit(ServletContext context, SRUServerConfig config, SRUQueryParserRegistry.Builder queryParsersBuilder, Map<String, String> params) throws SRUConfigException {
 
+        final long initStart = System.nanoTime();
         LOGGER.info("SRUServlet::doInit {}", config.getPort());
 
         /* register custom query parsers */
@@ -239,11 +412,21 @@ public class DzpEndpointSearchEngine extends SimpleEndpointSearchEngineBase {
 
         /* process endpoint description, load available PIDs */
         try {
-            pids = getCollectionsFromEndpointDescription(endpointDescription);
+            resources = getCollectionsFromEndpointDescription(endpointDescription);
+            pids = new ArrayList<>(resources.keySet());
         } catch (SRUException e) {
             throw new SRUConfigException("Error extracting resource pids", e);
         }
-        LOGGER.info("Got root resource PIDs: {}", pids);
+        LOGGER.info("Got resource PIDs: {}", pids);
+
+        /* load Solr filter queries of (sub-)resources */
+        resourceFilters = loadResourceFilters(context, params);
+        for (String pid : resourceFilters.keySet()) {
+            if (!pids.contains(pid)) {
+                throw new SRUConfigException("Solr filter query for unknown resource pid '" + pid + "'!");
+            }
+        }
+        LOGGER.info("Got Solr filter queries of resources: {}", resourceFilters);
 
         /* set default corpus ID */
         // or params.get("DEFAULT_RESOURCE_PID")
@@ -256,38 +439,166 @@ public class DzpEndpointSearchEngine extends SimpleEndpointSearchEngineBase {
 
         LOGGER.info("DZP Solr Endpoint is " + dotenv.get("DZP_FCS_SOLR_ENDPOINT"));
 
-        // configure JsonPath to use Jackson
-        Configuration.setDefaults(new Configuration.Defaults() {
-
-            private final JsonProvider jsonProvider = new JacksonJsonProvider();
-            private final MappingProvider mappingProvider = new JacksonMappingProvider();
+        final DzpConfig cfg = new DzpConfig(params);
 
-            @Override
-            public JsonProvider jsonProvider() {
-                return jsonProvider;
-            }
-
-            @Override
-            public MappingProvider mappingProvider() {
-                return mappingProvider;
-            }
-
-            @Override
-            public Set<Option> options() {
-                return EnumSet.noneOf(Option.class);
-            }
-        });
+        // the SRU server looks up its XMLOutputFactory after this
+        // initialization and finds DzpXMLOutputFactory as service provider of
+        // this web application, unless the JVM-wide system property is set
+        final String xmlOutputFactory = cfg.getString(XML_OUTPUT_FACTORY, "jdk");
+        if (System.getProperty(DzpXMLOutputFactory.PROPERTY) != null) {
+            LOGGER.info("XMLOutputFactory set by system property {}, {} is ignored", DzpXMLOutputFactory.PROPERTY, XML_OUTPUT_FACTORY);
+        }
+        try {
+            DzpXMLOutputFactory.configure(xmlOutputFactory);
+            LOGGER.info("SRU responses are written with {}", XMLOutputFactory.newFactory());
+        } catch (ReflectiveOperationException | RuntimeException | FactoryConfigurationError e) {
+            throw new SRUConfigException("Error creating XMLOutputFactory " + xmlOutputFactory, e);
+        }
 
-        this.dispatcher = new Dispatcher(Executors.newFixedThreadPool(128));
-        dispatcher.setMaxRequests(16);
-        dispatcher.setMaxRequestsPerHost(16);
+        // the adaptive limiter decides how many calls run concurrently, the
+        // dispatcher only has to allow its maximum
+        final AdaptiveConcurrencyLimiter limiter = new AdaptiveConcurrencyLimiter(
+                cfg.getInt(UPSTREAM_LIMIT_INITIAL, 16),
+                cfg.getInt(UPSTREAM_LIMIT_MIN, 4),
+                cfg.getInt(UPSTREAM_LIMIT_MAX, 128),
+                cfg.getLong(UPSTREAM_LIMIT_MAX_WAIT_MILLIS, 1000));
+        LOGGER.info("Adaptive Solr concurrency limit: {} (min={}, max={})", limiter.getLimit(), limiter.getMinLimit(), limiter.getMaxLimit());
+
+        if (cfg.getBoolean(UPSTREAM_VIRTUAL_THREADS, true)) {
+            this.dispatcher = new Dispatcher(Executors.newVirtualThreadPerTaskExecutor());
+            LOGGER.info("Solr calls run on virtual threads");
+        } else {
+            this.dispatcher = new Dispatcher(Executors.newFixedThreadPool(128));
+        }
+        dispatcher.setMaxRequests(limiter.getMaxLimit());
+        dispatcher.setMaxRequestsPerHost(limiter.getMaxLimit());
 
         this.client = new OkHttpClient().newBuilder()
                 .followRedirects(false)
                 .followSslRedirects(false)
                 .dispatcher(dispatcher)
-                .readTimeout(3, TimeUnit.MINUTES)
+                .readTimeout(cfg.getLong(UPSTREAM_READ_TIMEOUT_SECONDS, 180), TimeUnit.SECONDS)
                 .build();
+
+        ResultsCache cache = null;
+        if (cfg.getBoolean(RESULT_CACHE_ENABLED, true)) {
+            final long maxBytes = cfg.getLong(RESULT_CACHE_MAX_BYTES, 64L * 1024 * 1024);
+            final long ttlSeconds = cfg.getLong(RESULT_CACHE_TTL_SECONDS, 300);
+            cache = new ResultsCache(maxBytes, Duration.ofSeconds(ttlSeconds));
+            LOGGER.info("Results cache enabled (maxBytes={}, ttlSeconds={})", maxBytes, ttlSeconds);
+        }
+
+        final boolean separateCount = cfg.getBoolean(SOLR_SEPARATE_COUNT, false);
+        final Duration countTtl = Duration.ofSeconds(cfg.getLong(SOLR_COUNT_TTL_SECONDS, 300));
+        LOGGER.info("Separate Solr count request: {}", separateCount);
+
+        CursorCache cursors = null;
+        if (cfg.getBoolean(SOLR_CURSOR_ENABLED, true)) {
+            final int threshold = cfg.getInt(SOLR_CURSOR_THRESHOLD, 1000);
+            final int maxWalk = cfg.getInt(SOLR_CURSOR_MAX_WALK, 1000);
+            cursors = new CursorCache(
+                    cfg.getInt(SOLR_CURSOR_MAX_QUERIES, 1000),
+                    CURSORS_PER_QUERY,
+                    Duration.ofSeconds(cfg.getLong(SOLR_CURSOR_TTL_SECONDS, 600)),
+                    threshold,
+                    maxWalk);
+            LOGGER.info("Solr cursor paging enabled (threshold={}, maxWalk={})", threshold, maxWalk);
+        }
+
+        final String transport = cfg.getString(SOLR_TRANSPORT, "json");
+        if (!"json".equalsIgnoreCase(transport) && !"javabin".equalsIgnoreCase(transport)) {
+            LOGGER.warn("Parameter '{}' is neither 'json' nor 'javabin': '{}'. Using json", SOLR_TRANSPORT, transport);
+        }
+        final boolean javabin = "javabin".equalsIgnoreCase(transport);
+        LOGGER.info("Solr response format: {}", javabin ? "javabin" : "json");
+
+        CircuitBreaker breaker = null;
+        if (cfg.getBoolean(UPSTREAM_BREAKER_ENABLED, true)) {
+            breaker = new CircuitBreaker(
+                    cfg.getInt(UPSTREAM_BREAKER_WINDOW, 50),
+                    cfg.getInt(UPSTREAM_BREAKER_MIN_CALLS, 20),
+                    cfg.getInt(UPSTREAM_BREAKER_FAILURE_RATE, 50) / 100.0,
+                    cfg.getLong(UPSTREAM_BREAKER_SLOW_CALL_MILLIS, 10000),
+                    cfg.getInt(UPSTREAM_BREAKER_SLOW_CALL_RATE, 80) / 100.0,
+                    TimeUnit.SECONDS.toMillis(cfg.getLong(UPSTREAM_BREAKER_OPEN_SECONDS, 30)),
+                    cfg.getInt(UPSTREAM_BREAKER_PROBES, 3));
+            LOGGER.info("Circuit breaker for the DDB-API enabled");
+        }
+
+        HedgingPolicy hedging = null;
+        if (cfg.getBoolean(UPSTREAM_HEDGE_ENABLED, false)) {
+            final int percentile = cfg.getInt(UPSTREAM_HEDGE_PERCENTILE, 95);
+            hedging = new HedgingPolicy(percentile / 100.0, cfg.getLong(UPSTREAM_HEDGE_MIN_DELAY_MILLIS, 50));
+            LOGGER.info("Hedged Solr requests enabled (after p{} latency)", percentile);
+        }
+
+        this.chunkSize = Math.max(0, cfg.getInt(SOLR_CHUNK_SIZE, 100));
+        this.prefetch = cfg.getBoolean(SOLR_PREFETCH, true);
+        if (chunkSize > 0) {
+            LOGGER.info("Large result windows are fetched in chunks of {} records (prefetch={})", chunkSize, prefetch);
+        }
+
+        if (cfg.getBoolean(SNIPPET_STORE_ENABLED, false)) {
+            final Path path = Path.of(cfg.getString(SNIPPET_STORE_PATH, Path.of(System.getProperty("java.io.tmpdir"), "dzp-fcs", "snippets.dat").toString()));
+            try {
+                this.snippetStore = new SnippetStore(path,
+                        cfg.getLong(SNIPPET_STORE_MAX_BYTES, 256L * 1024 * 1024),
+                        Duration.ofSeconds(cfg.getLong(SNIPPET_STORE_TTL_SECONDS, 7 * 24 * 3600)));
+            } catch (IOException e) {
+                throw new SRUConfigException("Error opening snippet store " + path, e);
+            }
+        }
+
+        if (cfg.getBoolean(INGRESS_ENABLED, true)) {
+            this.scheduler = new IngressScheduler(
+                    cfg.getInt(INGRESS_MAX_CONCURRENT, 16),
+                    cfg.getLong(INGRESS_MAX_WAIT_MILLIS, 10000),
+                    cfg.getLong(INGRESS_RECORDS_PER_SECOND, 1000),
+                    cfg.getLong(INGRESS_BURST_RECORDS, 5000),
+                    cfg.getInt(INGRESS_METRICS_MAX_CLIENTS, 0));
+            LOGGER.info("Ingress scheduling enabled (maxConcurrent={}, recordsPerSecond={} per client)",
+                    cfg.getInt(INGRESS_MAX_CONCURRENT, 16), cfg.getLong(INGRESS_RECORDS_PER_SECOND, 1000));
+        }
+
+        this.canonicalize = cfg.getBoolean(QUERY_CANONICALIZE, true);
+        this.indexes = new CQLIndexes(cfg.getString(QUERY_INDEX_TITLE, "paper_title"),
+                cfg.getString(QUERY_INDEX_DATE, "publication_date"),
+                cfg.getString(QUERY_INDEX_PAGENUMBER, "pagenumber"));
+        LOGGER.info("CQL indexes: {}", indexes);
+
+        this.planner = new SolrRequestPlanner(cfg.getInt(SOLR_HL_FRAGSIZE, 0), cfg.getInt(SOLR_HL_MAX_ANALYZED_CHARS, 0));
+        this.searcher = new SolrSearcher(dotenv.get("DZP_FCS_SOLR_ENDPOINT"), client, cache, separateCount, countTtl, limiter, cursors, javabin, breaker, hedging, snippetStore);
+
+        /* warm up in the background, the endpoint is ready afterwards */
+        if (cfg.getBoolean(WARMUP_ENABLED, true)) {
+            final List<String> warmupQueries = new ArrayList<>();
+            for (String q : cfg.getString(WARMUP_QUERIES, "Berlin|\"Kaiser Wilhelm\"|Zeitung AND Hamburg").split(Pattern.quote(WARMUP_QUERIES_SEPARATOR))) {
+                if (!q.isBlank()) {
+                    warmupQueries.add(q.strip());
+                }
+            }
+            final Warmup warmup = new Warmup(initStart, client, dotenv.get("DZP_FCS_SOLR_ENDPOINT"), searcher,
+                    planner.plan(null, List.of(), WARMUP_RECORDS), defaultCorpusId, resourceFilters.get(defaultCorpusId),
+                    warmupQueries, canonicalize, indexes, cfg.getInt(WARMUP_ROUNDS, 3), cfg.getInt(WARMUP_CONNECTIONS, 4), WARMUP_RECORDS);
+            Thread.ofVirtual().name("dzp-fcs-warmup").start(warmup);
+        } else {
+            Readiness.ready(System.nanoTime() - initStart);
+        }
+    }
+
+    /**
+     * Destroy the search engine and write the snippet store to disk.
+     */
+    @Override
+    public void destroy() {
+        if (snippetStore != null) {
+            try {
+                snippetStore.close();
+            } catch (IOException e) {
+                LOGGER.warn("Error closing snippet store", e);
+            }
+        }
+        super.destroy();
     }
 
     /**
@@ -302,108 +613,116 @@ public class DzpEndpointSearchEngine extends SimpleEndpointSearchEngineBase {
      */
     @Override
     public SRUSearchResultSet search(SRUServerConfig config, SRURequest request, SRUDiagnosticList diagnostics) throws SRUException {
+        DzpMetrics.REQUESTS.increment();
+        final long start = System.nanoTime();
+        final SearchTrace trace = SearchTrace.current();
+        final ClientContext client = ClientContext.current();
+        if (trace != null && client != null) {
+            trace.client(client.getClientKey());
+        }
+        try {
+            if (scheduler != null) {
+                scheduler.admit(client, request.getMaximumRecords());
+            }
+            final DzpSRUSearchResultSet resultSet = doSearch(config, request, diagnostics);
+            DzpMetrics.RECORDS.record(resultSet.getRecordCount());
+            if (trace != null) {
+                trace.records(resultSet.getRecordCount());
+            }
+            return resultSet;
+        } catch (SRUException e) {
+            DzpMetrics.error(e);
+            if (trace != null) {
+                trace.error(e);
+            }
+            ResponseCacheFilter.doNotCache();
+            throw e;
+        } finally {
+            DzpMetrics.SEARCH.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    /**
+     * Search and wrap the results into a {@link DzpSRUSearchResultSet}.
+     *
+     * @param config
+     * @param request
+     * @param diagnostics
+     * @return
+     * @throws SRUException
+     * @see #search(SRUServerConfig, SRURequest, SRUDiagnosticList)
+     */
+    protected DzpSRUSearchResultSet doSearch(SRUServerConfig config, SRURequest request, SRUDiagnosticList diagnostics) throws SRUException {
         /* parse and translate query */
-        final String myQuery = parseQuery(request);
+        final ParsedQuery parsed = parseQuery(request);
+        final SolrQuery myQuery = parsed.solr();
+        final String linkQuery = parsed.link();
 
         /* validate params */
         List<String> pids = parsePids(request);
         pids = checkPids(pids, diagnostics);
         LOGGER.debug("Search restricted to PIDs: {}", pids);
-        /* we restrict our search to the first PID (since most clients only request a single one?) */
-        final String pid = checkPid(pids);
-        LOGGER.debug("Search restricted to first PID: {}", pid);
 
-        final List<String> dataviews = parseDataViews(request, diagnostics, pid);
+        final List<String> dataviews = parseDataViews(request, diagnostics, pids);
         LOGGER.debug("Search requested dataviews: {}", dataviews);
 
         final int startRecord = ((request.getStartRecord() < 1) ? 1 : request.getStartRecord()) - 1;
         final int maximumRecords = request.getMaximumRecords();
 
-        // check for correct startRecord
-        final String apiQuery01 = dzp_api
-                .replace("{{query}}", myQuery)
-                .replace("{{rows}}", Integer.toString(0))
-                .replace("{{start}}", Integer.toString(0));
-
-        String json = "";
-        final Request apiRequest01 = new Request.Builder()
-                .url(apiQuery01)
-                .build();
-
-        try (final Response response01 = client.newCall(apiRequest01).execute()) {
-            json = response01.body().string();
-            if (!response01.isSuccessful()) {
-                throw new Exception("Response code of DDB-API is " + response01.code() + ". Request URL: " + response01.request().url().toString());
-            }
-        } catch (Exception e) {
-            throw new SRUException(SRUConstants.SRU_GENERAL_SYSTEM_ERROR, e.getMessage());
-        }
-
-        final ReadContext ctx01 = JsonPath.parse(json);
-        final Integer numFound = ctx01.read("$.response.numFound", Integer.class);
+        /* request only the fields and snippets the response will show */
+        final SolrRequestPlan plan = planner.plan(request.getRecordSchemaIdentifier(), dataviews, maximumRecords);
+        LOGGER.debug("Solr request plan: {}", plan);
 
-        if (startRecord > numFound) {
-            throw new SRUException(SRUConstants.SRU_FIRST_RECORD_POSITION_OUT_OF_RANGE);
-        }
-
-        // query results
-        final String apiQuery02 = dzp_api
-                .replace("{{query}}", myQuery)
-                .replace("{{rows}}", Integer.toString(maximumRecords))
-                .replace("{{start}}", Integer.toString(startRecord));
-
-        json = "";
-        final Request apiRequest02 = new Request.Builder()
-                .url(apiQuery02)
-                .build();
-
-        try (final Response response02 = client.newCall(apiRequest02).execute()) {
-            json = response02.body().string();
-            if (!response02.isSuccessful()) {
-                throw new Exception("Response code of DDB-API is " + response02.code() + ". Request URL: " + response02.request().url().toString());
-            }
-        } catch (Exception e) {
-            throw new SRUException(SRUConstants.SRU_GENERAL_SYSTEM_ERROR, e.getMessage());
+        /* restrict the query of each resource by its filter */
+        final Map<String, SolrQuery> queries = new LinkedHashMap<>();
+        for (String pid : pids) {
+            queries.put(pid, myQuery.withFilter(resourceFilters.get(pid)));
         }
 
-        final ReadContext ctx02 = JsonPath.parse(json);
-
-        final List<ResultsEntry> docList = ctx02.read("$.response.docs[*]", new TypeRef<List<ResultsEntry>>() {
-        });
-
-        for (ResultsEntry doc : docList) {
-            if (doc.getId() == null || doc.getId().isBlank()) {
-                continue;
-            }
-            final String jsonQuery = "$.highlighting['" + doc.getId() + "'].plainpagefulltext[*]";
-            final List<String> list = ctx02.read(jsonQuery, new TypeRef<List<String>>() {
-            });
-            doc.setPlainpagefulltext(list);
+        /* large windows: fetch the records in chunks while they are written */
+        if (chunkSize > 0 && maximumRecords > chunkSize) {
+            final List<ResultsStream> streams = searcher.stream(queries, startRecord, maximumRecords, plan, chunkSize, prefetch);
+            return new DzpSRUSearchResultSet(config, request, diagnostics, dataviews, linkQuery, streams.toArray(new ResultsStream[streams.size()]));
         }
 
-        /* start search (query = myQuery, offset = startRecord, limit = maximumRecords) */
-        final Results results = new Results(pid, myQuery, docList, numFound, startRecord);
+        /* start search in all resources (offset = startRecord, limit = maximumRecords) */
+        final List<Results> results = searcher.searchAll(queries, startRecord, maximumRecords, plan);
 
-        if (results == null) {
+        if (results == null || results.isEmpty()) {
             throw new SRUException(SRUConstants.SRU_GENERAL_SYSTEM_ERROR, "Error in Searcher");
         }
 
         /* wrap results into custom SRUSearchResultSet */
-        return new DzpSRUSearchResultSet(config, request, diagnostics, dataviews, results);
+        return new DzpSRUSearchResultSet(config, request, diagnostics, dataviews, linkQuery, results);
     }
 
     /**
-     * Extract and parse the query from the {@link SRURequest}.
+     * A query of a request, converted to Solr.
+     *
+     * @param solr the Solr query to search with, with the filter queries of
+     * the query
+     * @param link the query for the links of the records to the DDB newspaper
+     * portal, converted as written by the user. The canonical query is only
+     * fit for searching and cache keys: it is reordered and without its
+     * filter queries (e.g. <code>*:*</code> for <code>date &gt; 1900</code>).
+     */
+    protected record ParsedQuery(SolrQuery solr, String link) {
+    }
+
+    /**
+     * Extract and parse the query from the {@link SRURequest}. The CQL query
+     * is converted once as written and, if enabled, once canonicalized.
      *
      * @param request the {@link SRURequest} with request parameters
-     * @return the raw query as String
+     * @return the Solr query and the query for the links of the records
      * @throws SRUException if an error occurred trying to extract or to parse
      * the query
      *
      * @see #search(SRUServerConfig, SRURequest, SRUDiagnosticList)
      */
-    protected String parseQuery(SRURequest request) throws SRUException {
-        final String myQuery;
+    protected ParsedQuery parseQuery(SRURequest request) throws SRUException {
+        final SolrQuery myQuery;
+        final String written;
         if (request.isQueryType(Constants.FCS_QUERY_TYPE_CQL)) {
             /*
              * Got a CQL query (either SRU 1.1 or higher).
@@ -413,18 +732,29 @@ public class DzpEndpointSearchEngine extends SimpleEndpointSearchEngineBase {
             LOGGER.info("FCS-CQL query: {}", q.getRawQuery());
 
             try {
-                myQuery = CQLToSolrConverter.convertCQLtoSolrQuery(q.getParsedQuery());
-                LOGGER.debug("Converted Solr: {}", myQuery);
+                written = CQLToSolrConverter.convertCQLtoSolrQuery(q.getParsedQuery(), indexes);
+                if (canonicalize) {
+                    final CanonicalQuery canonical = CQLToSolrConverter.canonicalize(q.getParsedQuery(), indexes);
+                    myQuery = new SolrQuery(canonical.query(), canonical.filters());
+                    LOGGER.debug("Converted Solr: {} (hash {})", myQuery, canonical.hash());
+                } else {
+                    myQuery = new SolrQuery(written);
+                    LOGGER.debug("Converted Solr: {}", myQuery);
+                }
             } catch (QueryParserException e) {
                 throw new SRUException(SRUConstants.SRU_CANNOT_PROCESS_QUERY_REASON_UNKNOWN, "Converting query with queryType 'cql' to MYQUERY failed.", e);
             }
+            final SearchTrace trace = SearchTrace.current();
+            if (trace != null) {
+                trace.query(q.getRawQuery(), myQuery.toString());
+            }
         } else {
             /*
              * Got something else we don't support. Send error ...
              */
             throw new SRUException(SRUConstants.SRU_CANNOT_PROCESS_QUERY_REASON_UNKNOWN, "Queries with queryType '" + request.getQueryType() + "' are not supported by this FCS Endpoint.");
         }
-        return myQuery;
+        return new ParsedQuery(myQuery, written);
     }
 
     /**
@@ -493,7 +823,7 @@ public class DzpEndpointSearchEngine extends SimpleEndpointSearchEngineBase {
             if (!DzpEndpointSearchEngine.pids.contains(pid)) {
                 // allow only valid resources that can be queried by CQL
                 diagnostics.addDiagnostic(Constants.FCS_DIAGNOSTIC_PERSISTENT_IDENTIFIER_INVALID, pid, "Resource PID for search is not valid or can not be queried by FCS/CQL!");
-            } else {
+            } else if (!knownPids.contains(pid)) {
                 knownPids.add(pid);
             }
         }
@@ -506,41 +836,6 @@ public class DzpEndpointSearchEngine extends SimpleEndpointSearchEngineBase {
         return knownPids;
     }
 
-    /**
-     * Validate the requested resource PIDs from the {@link SRURequest} to be
-     * only a single PID as this endpoint can only handle searching through one
-     * resource at a time.
-     *
-     * NOTE: The CLARIN SRU/FCS Aggregator also only seems to request results
-     * for each resource separately, we only allow requests with one resource!
-     *
-     * Returns the resource PID. Raises an {@link SRUException} if more than one
-     * resource PID in <code>pids</code>.
-     *
-     * @param pids the list of resource PIDs
-     * @return the resource PID as String
-     * @throws SRUException if no valid resource PIDs left
-     *
-     * @see #search(SRUServerConfig, SRURequest, SRUDiagnosticList)
-     * @see #checkPids(List, SRUDiagnosticList)
-     */
-    protected String checkPid(List<String> pids) throws SRUException {
-        // NOTE: we only search for first PID
-        // (FCS Aggregator only provides one resource PID per search request, so
-        // multiple PIDs should usually not happen)
-        final String pid;
-        if (pids.size() > 1) {
-            throw new SRUException(SRUConstants.SRU_UNSUPPORTED_PARAMETER_VALUE, "Parameter '" + DzpConstants.X_FCS_CONTEXT_KEY + "' received multiple PIDs. Endpoint only supports a single PIDs for querying by CQL/FCS-QL/LexCQL.");
-        } else if (pids.isEmpty()) {
-            pid = defaultCorpusId;
-            LOGGER.debug("Falling back to default resource: {}", pid);
-            pids.add(pid);
-        } else {
-            pid = pids.get(0);
-        }
-        return pid;
-    }
-
     /**
      * Extract and parse the requested result Data Views from the
      * {@link SRURequest}.
@@ -549,20 +844,20 @@ public class DzpEndpointSearchEngine extends SimpleEndpointSearchEngineBase {
      * parameter was used and is non-empty.
      *
      * Validates the requested Data Views against the ones declared in the
-     * servlet's {@link EndpointDescription} for the resource identified by the
-     * value in <code>pid</code>. For each non-valid Data View generate a SRU
-     * diagnostic.
+     * servlet's {@link EndpointDescription} for the resources identified by
+     * the values in <code>pids</code>. For each Data View not available in a
+     * resource generate a SRU diagnostic.
      *
      * @param request the {@link SRURequest} with request parameters
      * @param diagnostics the {@link SRUDiagnosticList} object for storing
      * non-fatal diagnostics
-     * @param pid resource PID String, to validate requested Data Views
+     * @param pids resource PID Strings, to validate requested Data Views
      * @return a list of String Data View identifiers, may be empty
      * @throws eu.clarin.sru.server.SRUException
      *
      * @see #search(SRUServerConfig, SRURequest, SRUDiagnosticList)
      */
-    protected List<String> parseDataViews(SRURequest request, SRUDiagnosticList diagnostics, String pid) throws SRUException {
+    protected List<String> parseDataViews(SRURequest request, SRUDiagnosticList diagnostics, List<String> pids) throws SRUException {
         List<String> extraDataviews = new ArrayList<>();
         if (request != null) {
             for (String erd : request.getExtraRequestDataNames()) {
@@ -578,15 +873,15 @@ public class DzpEndpointSearchEngine extends SimpleEndpointSearchEngineBase {
             return new ArrayList<>();
         }
 
-        final Set<String> resourceDataViews = endpointDescription.getResourceList(pid).get(0).getAvailableDataViews().stream().map(DataView::getIdentifier).collect(Collectors.toSet());
-
-        final List<String> allowedDataViews = new ArrayList<>();
-        for (String dv : extraDataviews) {
-            if (!resourceDataViews.contains(dv)) {
-                // allow only valid dataviews for this resource that can be requested
-                diagnostics.addDiagnostic(Constants.FCS_DIAGNOSTIC_PERSISTENT_IDENTIFIER_INVALID, pid, "DataViews with identifier '" + dv + "' for resource PID='" + pid + "' is not valid!");
-            } else {
-                allowedDataViews.add(dv);
+        final List<String> allowedDataViews = new ArrayList<>(extraDataviews);
+        for (String pid : pids) {
+            final Set<String> resourceDataViews = resources.get(pid).getAvailableDataViews().stream().map(DataView::getIdentifier).collect(Collectors.toSet());
+            for (String dv : extraDataviews) {
+                if (!resourceDataViews.contains(dv)) {
+                    // allow only valid dataviews for all resources that can be requested
+                    diagnostics.addDiagnostic(Constants.FCS_DIAGNOSTIC_PERSISTENT_IDENTIFIER_INVALID, pid, "DataViews with identifier '" + dv + "' for resource PID='" + pid + "' is not valid!");
+                    allowedDataViews.remove(dv);
+                }
             }
         }
         return allowedDataViews;
@@ -23,6 +23,8 @@ import javax.xml.stream.XMLStreamException;
 import javax.xml.stream.XMLStreamWriter;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
+import de.ddb.labs.dzpfcs.metrics.DzpMetrics;
+import de.ddb.labs.dzpfcs.metrics.SearchTrace;
 import de.ddb.labs.dzpfcs.searcher.Results;
 import eu.clarin.sru.server.SRUConstants;
 import eu.clarin.sru.server.SRUDiagnostic;
@@ -33,19 +35,10 @@ import eu.clarin.sru.server.SRUSearchResultSet;
 import eu.clarin.sru.server.SRUServerConfig;
 import eu.clarin.sru.server.fcs.XMLStreamWriterHelper;
 import de.ddb.labs.dzpfcs.searcher.ResultsEntry;
-import java.io.ByteArrayInputStream;
-import java.io.IOException;
-import java.io.InputStream;
-import java.nio.charset.StandardCharsets;
-import java.util.HashMap;
-import java.util.Map;
+import de.ddb.labs.dzpfcs.searcher.ResultsStream;
+import de.ddb.labs.dzpfcs.searcher.Snippet;
 import java.util.NoSuchElementException;
-import org.xml.sax.Attributes;
-import javax.xml.parsers.ParserConfigurationException;
-import javax.xml.parsers.SAXParser;
-import javax.xml.parsers.SAXParserFactory;
-import org.xml.sax.SAXException;
-import org.xml.sax.helpers.DefaultHandler;
+import java.util.concurrent.TimeUnit;
 
 /**
  * A result set of a <em>searchRetrieve</em> operation. It it used to iterate
@@ -92,23 +85,45 @@ public class DzpSRUSearchResultSet extends SRUSearchResultSet {
     private final Set<String> extraDataviews;
 
     /**
-     * Results wrapper container for easy access to metadata (total count etc.)
+     * The query for the links of the records, as written by the user, or
+     * <code>null</code> for the query of the results.
      */
-    private Results results; // FIXME: change to correct result object
+    private final String query;
+
+    /**
+     * Results per resource, in the order they are written.
+     */
+    private final ResultsStream[] results;
+
+    /**
+     * Index of the first record of each resource in this result set.
+     */
+    private final int[] firstRecord;
+
+    /**
+     * Index of the resource of the current record in {@link #results}.
+     */
+    private int currentResource = 0;
+
+    /**
+     * Results of the current record.
+     */
+    private ResultsStream currentResults;
+
+    /**
+     * The current record, <code>null</code> if it could not be fetched.
+     */
+    private ResultsEntry currentEntry;
 
     /**
      * The record cursor position for iterating through the result set.
      */
     private int currentRecordCursor = 0;
 
-    protected static final SAXParserFactory factory;
-
-    static {
-        factory = SAXParserFactory.newInstance();
-        factory.setNamespaceAware(true);
-        factory.setValidating(false);
-        factory.setXIncludeAware(false);
-    }
+    /**
+     * Time spent in {@link #writeRecord(XMLStreamWriter)} so far.
+     */
+    private long serializeNanos = 0;
 
     /**
      * Constructor.
@@ -120,14 +135,61 @@ public class DzpSRUSearchResultSet extends SRUSearchResultSet {
      * non-fatal diagnostics
      * @param dataviews a list of String Data View identifiers to generate
      * responses for. May be empty but must not be <code>null</code>.
+     * @param query the query for the links of the records, as written by the
+     * user, or <code>null</code> for the query of the results
      * @param results the actual results from the search engine
      */
-    protected DzpSRUSearchResultSet(SRUServerConfig serverConfig, SRURequest request, SRUDiagnosticList diagnostics, List<String> dataviews, Results results) {
+    protected DzpSRUSearchResultSet(SRUServerConfig serverConfig, SRURequest request, SRUDiagnosticList diagnostics, List<String> dataviews, String query, Results results) {
+        this(serverConfig, request, diagnostics, dataviews, query, List.of(results));
+    }
+
+    /**
+     * Constructor for the results of several resources. Records are written
+     * grouped by resource, in the order of <code>results</code>.
+     *
+     * @param serverConfig the {@link SRUServerConfig} object for this search
+     * engine
+     * @param request the {@link SRURequest} with request parameters
+     * @param diagnostics the {@link SRUDiagnosticList} object for storing
+     * non-fatal diagnostics
+     * @param dataviews a list of String Data View identifiers to generate
+     * responses for. May be empty but must not be <code>null</code>.
+     * @param query the query for the links of the records, as written by the
+     * user, or <code>null</code> for the query of the results
+     * @param results the actual results from the search engine per resource
+     */
+    protected DzpSRUSearchResultSet(SRUServerConfig serverConfig, SRURequest request, SRUDiagnosticList diagnostics, List<String> dataviews, String query, List<Results> results) {
+        this(serverConfig, request, diagnostics, dataviews, query, results.stream().map(ResultsStream::of).toArray(ResultsStream[]::new));
+    }
+
+    /**
+     * Constructor for results that are fetched while the records are written.
+     * Records are written grouped by resource, in the order of
+     * <code>results</code>.
+     *
+     * @param serverConfig the {@link SRUServerConfig} object for this search
+     * engine
+     * @param request the {@link SRURequest} with request parameters
+     * @param diagnostics the {@link SRUDiagnosticList} object for storing
+     * non-fatal diagnostics
+     * @param dataviews a list of String Data View identifiers to generate
+     * responses for. May be empty but must not be <code>null</code>.
+     * @param query the query for the links of the records, as written by the
+     * user, or <code>null</code> for the query of the results
+     * @param results the streams of results from the search engine per
+     * resource
+     */
+    protected DzpSRUSearchResultSet(SRUServerConfig serverConfig, SRURequest request, SRUDiagnosticList diagnostics, List<String> dataviews, String query, ResultsStream[] results) {
         super(diagnostics);
         this.serverConfig = serverConfig;
         this.request = request;
+        this.query = query;
 
         this.results = results;
+        this.firstRecord = new int[this.results.length + 1];
+        for (int i = 0; i < this.results.length; i++) {
+            firstRecord[i + 1] = firstRecord[i] + this.results[i].size();
+        }
         currentRecordCursor = -1;
 
         extraDataviews = new HashSet<>(dataviews);
@@ -173,6 +235,11 @@ public class DzpSRUSearchResultSet extends SRUSearchResultSet {
                 && !DzpConstants.CLARIN_FCS_RECORD_SCHEMA.equals(getRecordSchemaIdentifier())) {
             return new SRUDiagnostic(SRUConstants.SRU_RECORD_NOT_AVAILABLE_IN_THIS_SCHEMA, getRecordSchemaIdentifier(), "Record is not available in record schema \"" + getRecordSchemaIdentifier() + "\".");
         }
+        if (currentEntry == null) {
+            // fewer records fetched in a chunk than counted before, or the
+            // chunk could not be fetched after the response was started
+            return new SRUDiagnostic(SRUConstants.SRU_RECORD_TEMPORARILY_UNAVAILABLE, null, "Record is temporarily not available.");
+        }
 
         return null;
     }
@@ -187,7 +254,11 @@ public class DzpSRUSearchResultSet extends SRUSearchResultSet {
      */
     @Override
     public int getTotalRecordCount() {
-        return (int) results.getTotal();
+        long total = 0;
+        for (ResultsStream r : results) {
+            total += r.getTotal();
+        }
+        return (int) Math.min(total, Integer.MAX_VALUE);
     }
 
     /**
@@ -199,7 +270,7 @@ public class DzpSRUSearchResultSet extends SRUSearchResultSet {
      */
     @Override
     public int getRecordCount() {
-        return results.getResults().size();
+        return firstRecord[results.length];
     }
 
     /**
@@ -221,26 +292,63 @@ public class DzpSRUSearchResultSet extends SRUSearchResultSet {
     public boolean nextRecord() throws SRUException {
         if (currentRecordCursor < (getRecordCount() - 1)) {
             currentRecordCursor++;
+            while (currentRecordCursor >= firstRecord[currentResource + 1]) {
+                // records of this resource are written
+                results[currentResource].close();
+                currentResource++;
+            }
+            currentResults = results[currentResource];
+            currentEntry = currentResults.get(currentRecordCursor - firstRecord[currentResource]);
+            if (currentEntry == null) {
+                // the response is incomplete, see writeRecord
+                ResponseCacheFilter.doNotCache();
+            }
             return true;
         }
+        if (currentRecordCursor == getRecordCount() - 1 && serializeNanos > 0) {
+            // all records written
+            DzpMetrics.SERIALIZE.record(serializeNanos, TimeUnit.NANOSECONDS);
+            final SearchTrace trace = SearchTrace.current();
+            if (trace != null) {
+                trace.serialized(serializeNanos);
+            }
+            serializeNanos = 0;
+        }
         return false;
     }
 
+    /**
+     * Release the records of all resources and cancel prefetching.
+     */
     @Override
-    public void writeRecord(XMLStreamWriter writer) throws XMLStreamException {
-        ResultsEntry result = results.getResults().get(currentRecordCursor);
-
-        XMLStreamWriterHelper.writeStartResource(writer, results.getPid(), null);
-        XMLStreamWriterHelper.writeStartResourceFragment(writer, result.getId(), result.getDzpUrl(results.getQuery()));
-
-        if (request != null && request.isQueryType(DzpConstants.SRU_QUERY_TYPE_LEX)) {
-            writeLexHitsDataview(writer, result);
-        } else {
-            writeHitsDataview(writer, result);
+    public void close() {
+        for (ResultsStream r : results) {
+            r.close();
         }
+    }
 
-        XMLStreamWriterHelper.writeEndResourceFragment(writer);
-        XMLStreamWriterHelper.writeEndResource(writer);
+    @Override
+    public void writeRecord(XMLStreamWriter writer) throws XMLStreamException {
+        final long start = System.nanoTime();
+        final ResultsEntry result = currentEntry;
+        try {
+            XMLStreamWriterHelper.writeStartResource(writer, currentResults.getPid(), null);
+            XMLStreamWriterHelper.writeStartResourceFragment(writer, result.getId(), result.getDzpUrl(query != null ? query : currentResults.getQuery()));
+
+            if (request != null && request.isQueryType(DzpConstants.SRU_QUERY_TYPE_LEX)) {
+                writeLexHitsDataview(writer, result);
+            } else {
+                writeHitsDataview(writer, result);
+            }
+
+            XMLStreamWriterHelper.writeEndResourceFragment(writer);
+            XMLStreamWriterHelper.writeEndResource(writer);
+        } catch (XMLStreamException | RuntimeException e) {
+            // the response is truncated
+            ResponseCacheFilter.doNotCache();
+            throw e;
+        }
+        serializeNanos += System.nanoTime() - start;
     }
 
     protected void writeHitsDataview(XMLStreamWriter writer, ResultsEntry result) throws XMLStreamException {
@@ -249,7 +357,9 @@ public class DzpSRUSearchResultSet extends SRUSearchResultSet {
         writer.writeStartElement(DzpConstants.FCS_HITS_NS, "Result");
         writer.writeNamespace(DzpConstants.FCS_HITS_PREFIX, DzpConstants.FCS_HITS_NS);
 
-        writeSolrHitsDataviewBytedXMLDoc(writer, result.getPlainpagefulltext().get(0));
+        if (result.getSnippetCount() > 0) {
+            writeSnippet(writer, result.getSnippet(0));
+        }
 
         writer.writeEndElement(); // "Result" element
         XMLStreamWriterHelper.writeEndDataView(writer);
@@ -269,7 +379,9 @@ public class DzpSRUSearchResultSet extends SRUSearchResultSet {
         writer.writeStartElement(DzpConstants.FCS_HITS_NS, "Result");
         writer.writeNamespace(DzpConstants.FCS_HITS_PREFIX, DzpConstants.FCS_HITS_NS);
 
-        writeSolrHitsDataviewBytedXMLDoc(writer, result.getPlainpagefulltext().get(0));
+        if (result.getSnippetCount() > 0) {
+            writeSnippet(writer, result.getSnippet(0));
+        }
 
         writer.writeEndElement(); // "Result" element
         XMLStreamWriterHelper.writeEndDataView(writer);
@@ -277,105 +389,33 @@ public class DzpSRUSearchResultSet extends SRUSearchResultSet {
 
     /**
      * Helper method for
-     * {@link #writeLexHitsDataview(XMLStreamWriter, ResultEntry)} and
-     * {@link #writeHitsDataview(XMLStreamWriter, ResultEntry)} to write an XML
-     * string to output. Also adds the <code>hits:</code> prefixes.
+     * {@link #writeLexHitsDataview(XMLStreamWriter, ResultsEntry)} and
+     * {@link #writeHitsDataview(XMLStreamWriter, ResultsEntry)} to write a
+     * snippet to output. Hits are written as <code>hits:Hit</code> elements,
+     * blank text between them is skipped.
      *
      * @param writer
-     * @param text
+     * @param snippet
      * @throws XMLStreamException
      */
-    protected static void writeSolrHitsDataviewBytedXMLDoc(XMLStreamWriter writer, String text) throws XMLStreamException {
-        final String marker = "writeSolrHitsDataviewBytedXMLDoc";
-
-        try {
+    protected static void writeSnippet(XMLStreamWriter writer, Snippet snippet) throws XMLStreamException {
+        final char[] text = snippet.getChars();
+        int pos = 0;
+        for (int h = 0; h < snippet.getHitCount(); h++) {
+            final int hitStart = snippet.getHitStart(h);
+            final int hitEnd = snippet.getHitEnd(h);
+            writeText(writer, snippet, text, pos, hitStart);
+            writer.writeStartElement(DzpConstants.FCS_HITS_NS, "Hit");
+            writeText(writer, snippet, text, hitStart, hitEnd);
+            writer.writeEndElement(); // "Hit" element
+            pos = hitEnd;
+        }
+        writeText(writer, snippet, text, pos, text.length);
+    }
 
-            final InputStream is = new ByteArrayInputStream(("<" + marker + ">" + text + "</" + marker + ">").getBytes(StandardCharsets.UTF_8));
-
-            final SAXParser parser = factory.newSAXParser();
-
-            parser.parse(is, new DefaultHandler() {
-                public boolean isBlank(final String s) {
-                    // from: org.apache.logging.log4j.util.Strings.isBlank()
-                    if (s == null || s.isEmpty()) {
-                        return true;
-                    }
-                    for (int i = 0; i < s.length(); i++) {
-                        char c = s.charAt(i);
-                        if (!Character.isWhitespace(c)) {
-                            return false;
-                        }
-                    }
-                    return true;
-                }
-
-                @Override
-                public void characters(char[] ch, int start, int length) throws SAXException {
-                    // LOGGER.info("characters: {}", Arrays.copyOfRange(ch, start, start + length));
-                    // strip blanks
-                    // TODO: maybe with indent == 0, just check for single line-breaks after element ends?
-                    if (isBlank(new String(ch, start, length))) {
-                        return;
-                    }
-
-                    try {
-                        writer.writeCharacters(ch, start, length);
-                    } catch (XMLStreamException e) {
-                        throw new SAXException(e);
-                    }
-                }
-
-                @Override
-                public void endElement(String uri, String localName, String qName) throws SAXException {
-                    if (qName.equals(marker)) {
-                        return;
-                    }
-                    try {
-                        writer.writeEndElement();
-                    } catch (XMLStreamException e) {
-                        throw new SAXException(e);
-                    }
-                }
-
-                private final Map<String, String> prefixes = new HashMap<>();
-
-                @Override
-                public void startPrefixMapping(String prefix, String uri) throws SAXException {
-                    super.startPrefixMapping(prefix, uri);
-                    // writer.writeNamespace(prefix, uri);
-                    prefixes.put(prefix, uri);
-                }
-
-                @Override
-                public void startElement(String uri, String localName, String qName, Attributes attributes)
-                        throws SAXException {
-                    if (qName.equals(marker)) {
-                        return;
-                    }
-                    try {
-                        if (qName.equals("Hit")) {
-                            writer.writeStartElement(DzpConstants.FCS_HITS_NS, qName);
-                        } else {
-                            writer.writeStartElement(qName);
-                            // writer.writeStartElement(qName, localName, uri);
-                        }
-                        if (!prefixes.isEmpty()) {
-                            for (Map.Entry<String, String> entry : prefixes.entrySet()) {
-                                writer.writeNamespace(entry.getKey(), entry.getValue());
-                            }
-                            prefixes.clear();
-                        }
-
-                        for (int i = 0; i < attributes.getLength(); i++) {
-                            writer.writeAttribute(attributes.getQName(i), attributes.getValue(i));
-                        }
-                    } catch (XMLStreamException e) {
-                        throw new SAXException(e);
-                    }
-                }
-            });
-        } catch (ParserConfigurationException | SAXException | IOException e) {
-            throw new XMLStreamException(e);
+    private static void writeText(XMLStreamWriter writer, Snippet snippet, char[] text, int start, int end) throws XMLStreamException {
+        if (!snippet.isBlank(start, end)) {
+            writer.writeCharacters(text, start, end - start);
         }
     }
 }
@@ -0,0 +1,174 @@
+/*
+ * Copyright 2023-2025 Michael Büchner, Deutsche Digitale Bibliothek
+ *
+ * This program is free software: you can redistribute it and/or modify 
+ * it under the terms of the GNU General Public License as published by 
+ * the Free Software Foundation, either version 3 of the License, or 
+ * (at your option) any later version. 
+ *  
+ * This program is distributed in the hope that it will be useful, 
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of 
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the 
+ * GNU General Public License for more details. 
+ * 
+ * You should have received a copy of the GNU General Public License 
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.ddb.labs.dzpfcs;
+
+import com.ctc.wstx.api.WstxOutputProperties;
+import com.ctc.wstx.stax.WstxOutputFactory;
+import java.io.OutputStream;
+import java.io.Writer;
+import javax.xml.stream.FactoryConfigurationError;
+import javax.xml.stream.XMLEventWriter;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
+import javax.xml.transform.Result;
+
+/**
+ * {@link XMLOutputFactory} of this web application, delegating to the StAX
+ * implementation configured with {@link #configure(String)}: the one of the
+ * JDK (the default) or Woodstox, non-repairing and without structural checks
+ * of the written document, which the SRU server and
+ * {@link DzpSRUSearchResultSet} write well-formed anyway. Woodstox writes
+ * UTF-8 directly to the output stream, without a
+ * {@link java.io.OutputStreamWriter}.
+ * <p>
+ * The SRU server creates its factory with
+ * {@link XMLOutputFactory#newFactory()}, which finds this class as service
+ * provider in <code>META-INF/services</code> through the class loader of the
+ * web application. Unlike the system property
+ * <code>javax.xml.stream.XMLOutputFactory</code>, which still takes
+ * precedence, this only applies to this web application, and as the
+ * configuration is a static field of a class of the web application, each
+ * deployment has its own.
+ * </p>
+ */
+public class DzpXMLOutputFactory extends XMLOutputFactory {
+
+    /**
+     * System property read by {@link XMLOutputFactory#newFactory()} before
+     * the service providers.
+     */
+    public static final String PROPERTY = "javax.xml.stream.XMLOutputFactory";
+
+    private static volatile String configured = "jdk";
+
+    private final XMLOutputFactory delegate;
+
+    /**
+     * Constructor for the service loader, creates the configured factory.
+     *
+     * @throws FactoryConfigurationError if the configured factory cannot be
+     * created
+     */
+    public DzpXMLOutputFactory() {
+        try {
+            this.delegate = newInstance(configured);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            throw new FactoryConfigurationError(e, "Error creating XMLOutputFactory " + configured);
+        }
+    }
+
+    /**
+     * Sets the StAX implementation of the factories created afterwards.
+     *
+     * @param name <code>jdk</code>, <code>woodstox</code> or the fully
+     * qualified name of an {@link XMLOutputFactory} class
+     * @return the class name of the implementation
+     * @throws ReflectiveOperationException if the class cannot be instantiated
+     */
+    public static String configure(String name) throws ReflectiveOperationException {
+        final String className = newInstance(name).getClass().getName();
+        configured = name;
+        return className;
+    }
+
+    /**
+     * Creates a configured factory, e.g. for benchmarks.
+     *
+     * @param name <code>jdk</code>, <code>woodstox</code> or the fully
+     * qualified name of an {@link XMLOutputFactory} class
+     * @return the factory
+     * @throws ReflectiveOperationException if the class cannot be instantiated
+     */
+    public static XMLOutputFactory newInstance(String name) throws ReflectiveOperationException {
+        if ("jdk".equalsIgnoreCase(name)) {
+            return XMLOutputFactory.newDefaultFactory();
+        }
+        if ("woodstox".equalsIgnoreCase(name)) {
+            final XMLOutputFactory factory = new WstxOutputFactory();
+            factory.setProperty(XMLOutputFactory.IS_REPAIRING_NAMESPACES, false);
+            factory.setProperty(WstxOutputProperties.P_OUTPUT_VALIDATE_STRUCTURE, false);
+            return factory;
+        }
+        final Class<? extends XMLOutputFactory> type = Class.forName(name, true, DzpXMLOutputFactory.class.getClassLoader())
+                .asSubclass(XMLOutputFactory.class);
+        if (type == DzpXMLOutputFactory.class) {
+            throw new ClassNotFoundException(name + " is not a StAX implementation");
+        }
+        return type.getDeclaredConstructor().newInstance();
+    }
+
+    @Override
+    public XMLStreamWriter createXMLStreamWriter(Writer stream) throws XMLStreamException {
+        return delegate.createXMLStreamWriter(stream);
+    }
+
+    @Override
+    public XMLStreamWriter createXMLStreamWriter(OutputStream stream) throws XMLStreamException {
+        return delegate.createXMLStreamWriter(stream);
+    }
+
+    @Override
+    public XMLStreamWriter createXMLStreamWriter(OutputStream stream, String encoding) throws XMLStreamException {
+        return delegate.createXMLStreamWriter(stream, encoding);
+    }
+
+    @Override
+    public XMLStreamWriter createXMLStreamWriter(Result result) throws XMLStreamException {
+        return delegate.createXMLStreamWriter(result);
+    }
+
+    @Override
+    public XMLEventWriter createXMLEventWriter(Result result) throws XMLStreamException {
+        return delegate.createXMLEventWriter(result);
+    }
+
+    @Override
+    public XMLEventWriter createXMLEventWriter(OutputStream stream) throws XMLStreamException {
+        return delegate.createXMLEventWriter(stream);
+    }
+
+    @Override
+    public XMLEventWriter createXMLEventWriter(OutputStream stream, String encoding) throws XMLStreamException {
+        return delegate.createXMLEventWriter(stream, encoding);
+    }
+
+    @Override
+    public XMLEventWriter createXMLEventWriter(Writer stream) throws XMLStreamException {
+        return delegate.createXMLEventWriter(stream);
+    }
+
+    @Override
+    public void setProperty(String name, Object value) {
+        delegate.setProperty(name, value);
+    }
+
+    @Override
+    public Object getProperty(String name) {
+        return delegate.getProperty(name);
+    }
+
+    @Override
+    public boolean isPropertySupported(String name) {
+        return delegate.isPropertySupported(name);
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getName() + " (" + delegate.getClass().getName() + ")";
+    }
+}
@@ -0,0 +1,459 @@
+/*
+ * Copyright 2023-2025 Michael Büchner, Deutsche Digitale Bibliothek
+ *
+ * This program is free software: you can redistribute it and/or modify 
+ * it under the terms of the GNU General Public License as published by 
+ * the Free Software Foundation, either version 3 of the License, or 
+ * (at your option) any later version. 
+ *  
+ * This program is distributed in the hope that it will be useful, 
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of 
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the 
+ * GNU General Public License for more details. 
+ * 
+ * You should have received a copy of the GNU General Public License 
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.ddb.labs.dzpfcs;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import de.ddb.labs.dzpfcs.metrics.DzpMetrics;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.HexFormat;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletContext;
+import javax.servlet.ServletException;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Caches complete SRU responses (e.g. of hot queries and <em>explain</em>)
+ * as gzipped bytes, so a repeated request is answered without searching and
+ * serializing again.
+ * <p>
+ * The cache key consists of all request parameters sorted by name. Values are
+ * used verbatim, because SRU 1.2 echoes the request in the response;
+ * equivalent queries still share the cached Solr results (see
+ * {@link de.ddb.labs.dzpfcs.query.CQLToSolrConverter#canonicalize(org.z3950.zing.cql.CQLNode)}).
+ * Only successful GET requests are cached, and no responses with diagnostics,
+ * e.g. of a temporarily unavailable endpoint. Neither are responses of
+ * requests that failed after the response was committed, e.g. while records
+ * were written, as their body is truncated: the search code marks them with
+ * {@link #doNotCache()}, and bodies that could not be written completely to
+ * the client are dropped as well.
+ * </p>
+ * <p>
+ * A response is passed through to the client while it is buffered, so a miss
+ * is not delayed. Responses are sent with an <code>ETag</code> and
+ * <code>Cache-Control</code>, also on a miss, so the ETag is chosen when the
+ * response is started rather than derived from the body. A matching
+ * <code>If-None-Match</code> is answered with <code>304 Not Modified</code>,
+ * and clients accepting gzip get the cached bytes as they are.
+ * </p>
+ */
+public class ResponseCacheFilter implements Filter {
+
+    private static final Logger LOGGER = LogManager.getLogger(ResponseCacheFilter.class);
+
+    private static final String ENABLED = "de.ddb.labs.dzpfcs.responseCache.enabled";
+    private static final String MAX_BYTES = "de.ddb.labs.dzpfcs.responseCache.maxBytes";
+    private static final String MAX_ENTRY_BYTES = "de.ddb.labs.dzpfcs.responseCache.maxEntryBytes";
+    private static final String TTL_SECONDS = "de.ddb.labs.dzpfcs.responseCache.ttlSeconds";
+    private static final String MAX_AGE_SECONDS = "de.ddb.labs.dzpfcs.responseCache.maxAgeSeconds";
+
+    /**
+     * Request attribute marking a response that must not be cached.
+     */
+    private static final String DO_NOT_CACHE = ResponseCacheFilter.class.getName() + ".doNotCache";
+
+    /**
+     * The request handled by the current thread, if it may be cached.
+     */
+    private static final ThreadLocal<ServletRequest> CURRENT = new ThreadLocal<>();
+
+    /**
+     * Marks SRU diagnostics in a response body.
+     */
+    private static final byte[] DIAGNOSTIC = "info:srw/diagnostic/".getBytes(StandardCharsets.US_ASCII);
+
+    /**
+     * Number of bytes of the SHA-256 digest used for the ETag.
+     */
+    private static final int ETAG_BYTES = 16;
+
+    private static final Counter NOT_MODIFIED = Counter.builder("dzpfcs.responses.not.modified")
+            .description("Number of conditional requests answered with 304 Not Modified")
+            .register(DzpMetrics.getRegistry());
+
+    /**
+     * A cached response.
+     *
+     * @param gzip the gzipped body
+     * @param length the size of the body
+     * @param contentType the content type with charset
+     * @param etag the entity tag, quoted
+     */
+    private record Entry(byte[] gzip, int length, String contentType, String etag) {
+    }
+
+    private boolean enabled = true;
+    private long maxBytes = 32L * 1024 * 1024;
+    private int maxEntryBytes = 1024 * 1024;
+    private long ttlSeconds = 300;
+    private long maxAgeSeconds = 60;
+
+    private Cache<String, Entry> cache;
+
+    @Override
+    public void init(FilterConfig filterConfig) throws ServletException {
+        final ServletContext context = filterConfig.getServletContext();
+        if (context.getInitParameter(ENABLED) != null) {
+            this.enabled = Boolean.parseBoolean(context.getInitParameter(ENABLED).trim());
+        }
+        try {
+            if (context.getInitParameter(MAX_BYTES) != null) {
+                this.maxBytes = Long.parseLong(context.getInitParameter(MAX_BYTES).trim());
+            }
+            if (context.getInitParameter(MAX_ENTRY_BYTES) != null) {
+                this.maxEntryBytes = Integer.parseInt(context.getInitParameter(MAX_ENTRY_BYTES).trim());
+            }
+            if (context.getInitParameter(TTL_SECONDS) != null) {
+                this.ttlSeconds = Long.parseLong(context.getInitParameter(TTL_SECONDS).trim());
+            }
+            if (context.getInitParameter(MAX_AGE_SECONDS) != null) {
+                this.maxAgeSeconds = Long.parseLong(context.getInitParameter(MAX_AGE_SECONDS).trim());
+            }
+        } catch (NumberFormatException e) {
+            throw new ServletException("Invalid response cache parameter: " + e.getMessage(), e);
+        }
+        if (enabled) {
+            this.cache = Caffeine.newBuilder()
+                    .maximumWeight(maxBytes)
+                    .weigher((String key, Entry entry) -> key.length() * 2 + entry.gzip().length)
+                    .expireAfterWrite(Duration.ofSeconds(ttlSeconds))
+                    .recordStats()
+                    .build();
+            CaffeineCacheMetrics.monitor(DzpMetrics.getRegistry(), cache, "responses");
+        }
+        LOGGER.info("Response cache enabled: {} (maxBytes {}, maxEntryBytes {}, ttl {} s, max-age {} s)",
+                enabled, maxBytes, maxEntryBytes, ttlSeconds, maxAgeSeconds);
+    }
+
+    @Override
+    public void doFilter(ServletRequest request, ServletResponse response, FilterChain chain) throws IOException, ServletException {
+        if (!enabled || !(request instanceof HttpServletRequest) || !(response instanceof HttpServletResponse)
+                || !"GET".equals(((HttpServletRequest) request).getMethod())) {
+            chain.doFilter(request, response);
+            return;
+        }
+        final HttpServletRequest httpRequest = (HttpServletRequest) request;
+        final HttpServletResponse httpResponse = (HttpServletResponse) response;
+        final String key = key(httpRequest);
+
+        final Entry entry = cache.getIfPresent(key);
+        if (entry != null) {
+            send(entry, httpRequest, httpResponse);
+            return;
+        }
+
+        final String etag = etag(key + '\u0000' + System.nanoTime());
+        final BufferingResponse buffering = new BufferingResponse(httpResponse, maxEntryBytes, () -> {
+            if (httpResponse.getStatus() == HttpServletResponse.SC_OK && request.getAttribute(DO_NOT_CACHE) == null) {
+                cacheHeaders(httpResponse, etag);
+            }
+        });
+        CURRENT.set(request);
+        try {
+            chain.doFilter(request, buffering);
+        } finally {
+            CURRENT.remove();
+        }
+        final byte[] body = buffering.body();
+        if (body != null && request.getAttribute(DO_NOT_CACHE) == null && buffering.getStatus() == HttpServletResponse.SC_OK
+                && buffering.getContentType() != null && indexOf(body, DIAGNOSTIC) < 0) {
+            cache.put(key, new Entry(gzip(body), body.length, buffering.getContentType(), etag));
+        }
+    }
+
+    /**
+     * Marks the response of the current request as not to be cached, e.g.
+     * because the search failed after the response was committed. Does
+     * nothing outside of a request through this filter.
+     */
+    public static void doNotCache() {
+        final ServletRequest request = CURRENT.get();
+        if (request != null) {
+            request.setAttribute(DO_NOT_CACHE, Boolean.TRUE);
+        }
+    }
+
+    @Override
+    public void destroy() {
+        if (cache != null) {
+            cache.invalidateAll();
+        }
+    }
+
+    /**
+     * Returns the cache key of a request: its parameters sorted by name.
+     */
+    private static String key(HttpServletRequest request) {
+        final StringBuilder key = new StringBuilder();
+        for (Map.Entry<String, String[]> parameter : new TreeMap<>(request.getParameterMap()).entrySet()) {
+            for (String value : parameter.getValue()) {
+                key.append(parameter.getKey()).append('=').append(value).append('&');
+            }
+        }
+        return key.toString();
+    }
+
+    /**
+     * Sends a cached response, or <code>304 Not Modified</code> if the client
+     * has it.
+     */
+    private void send(Entry entry, HttpServletRequest request, HttpServletResponse response) throws IOException {
+        cacheHeaders(response, entry.etag());
+        if (matches(request.getHeader("If-None-Match"), entry.etag())) {
+            NOT_MODIFIED.increment();
+            response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+            return;
+        }
+        response.setContentType(entry.contentType());
+        if (acceptsGzip(request.getHeader("Accept-Encoding"))) {
+            response.setHeader("Content-Encoding", "gzip");
+            response.setContentLength(entry.gzip().length);
+            response.getOutputStream().write(entry.gzip());
+        } else {
+            response.setContentLength(entry.length());
+            try (InputStream in = new GZIPInputStream(new ByteArrayInputStream(entry.gzip()))) {
+                in.transferTo(response.getOutputStream());
+            }
+        }
+    }
+
+    private void cacheHeaders(HttpServletResponse response, String etag) {
+        response.setHeader("ETag", etag);
+        response.setHeader("Cache-Control", "public, max-age=" + maxAgeSeconds);
+        response.setHeader("Vary", "Accept-Encoding");
+    }
+
+    private static boolean matches(String ifNoneMatch, String etag) {
+        if (ifNoneMatch == null) {
+            return false;
+        }
+        for (String tag : ifNoneMatch.split(",")) {
+            tag = tag.strip();
+            if (tag.startsWith("W/")) {
+                tag = tag.substring(2);
+            }
+            if (tag.equals(etag) || tag.equals("*")) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean acceptsGzip(String acceptEncoding) {
+        if (acceptEncoding == null) {
+            return false;
+        }
+        for (String coding : acceptEncoding.split(",")) {
+            final String[] parts = coding.strip().split(";");
+            if ("gzip".equalsIgnoreCase(parts[0].strip())) {
+                // gzip;q=0 refuses gzip
+                return parts.length < 2 || !parts[1].strip().matches("q=0(\\.0*)?");
+            }
+        }
+        return false;
+    }
+
+    private static byte[] gzip(byte[] body) throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream(body.length / 4);
+        try (GZIPOutputStream gzip = new GZIPOutputStream(out)) {
+            gzip.write(body);
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Returns a new entity tag, derived from the cache key of a response and
+     * the time it was started.
+     */
+    private static String etag(String seed) {
+        try {
+            final byte[] digest = MessageDigest.getInstance("SHA-256").digest(seed.getBytes(StandardCharsets.UTF_8));
+            return '"' + HexFormat.of().formatHex(Arrays.copyOf(digest, ETAG_BYTES)) + '"';
+        } catch (NoSuchAlgorithmException e) {
+            // every Java platform supports SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static int indexOf(byte[] body, byte[] pattern) {
+        outer:
+        for (int i = 0; i <= body.length - pattern.length; i++) {
+            for (int j = 0; j < pattern.length; j++) {
+                if (body[i + j] != pattern[j]) {
+                    continue outer;
+                }
+            }
+            return i;
+        }
+        return -1;
+    }
+
+    /**
+     * Passes the body of a response through and keeps a copy of up to
+     * <code>maxBytes</code>. Responses written with a writer are not kept.
+     * <code>beforeBody</code> runs before the first byte is passed through,
+     * while headers can still be set.
+     */
+    private static final class BufferingResponse extends HttpServletResponseWrapper {
+
+        private final int maxBytes;
+        private final Runnable beforeBody;
+        private BufferingOutputStream out;
+        private boolean writer = false;
+
+        private BufferingResponse(HttpServletResponse response, int maxBytes, Runnable beforeBody) {
+            super(response);
+            this.maxBytes = maxBytes;
+            this.beforeBody = beforeBody;
+        }
+
+        @Override
+        public ServletOutputStream getOutputStream() throws IOException {
+            if (out == null) {
+                out = new BufferingOutputStream(getResponse().getOutputStream(), maxBytes, beforeBody);
+            }
+            return out;
+        }
+
+        @Override
+        public PrintWriter getWriter() throws IOException {
+            writer = true;
+            return getResponse().getWriter();
+        }
+
+        /**
+         * Returns the complete body or <code>null</code> if it was not kept.
+         */
+        private byte[] body() {
+            return out != null && !writer && out.buffer != null ? out.buffer.toByteArray() : null;
+        }
+    }
+
+    /**
+     * Keeps a copy of the bytes passed through. The copy is dropped if the
+     * bytes could not be passed through, e.g. because the client closed the
+     * connection, as the body is incomplete then.
+     */
+    private static final class BufferingOutputStream extends ServletOutputStream {
+
+        private final ServletOutputStream out;
+        private final int maxBytes;
+        private Runnable beforeBody;
+        private ByteArrayOutputStream buffer = new ByteArrayOutputStream(8192);
+
+        private BufferingOutputStream(ServletOutputStream out, int maxBytes, Runnable beforeBody) {
+            this.out = out;
+            this.maxBytes = maxBytes;
+            this.beforeBody = beforeBody;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            beforeBody();
+            try {
+                out.write(b);
+            } catch (IOException e) {
+                buffer = null;
+                throw e;
+            }
+            if (buffer != null) {
+                if (buffer.size() < maxBytes) {
+                    buffer.write(b);
+                } else {
+                    buffer = null;
+                }
+            }
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            beforeBody();
+            try {
+                out.write(b, off, len);
+            } catch (IOException e) {
+                buffer = null;
+                throw e;
+            }
+            if (buffer != null) {
+                if (buffer.size() + len <= maxBytes) {
+                    buffer.write(b, off, len);
+                } else {
+                    // too large to cache
+                    buffer = null;
+                }
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            beforeBody();
+            try {
+                out.flush();
+            } catch (IOException e) {
+                buffer = null;
+                throw e;
+            }
+        }
+
+        private void beforeBody() {
+            if (beforeBody != null) {
+                beforeBody.run();
+                beforeBody = null;
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            out.close();
+        }
+
+        @Override
+        public boolean isReady() {
+            return out.isReady();
+        }
+
+        @Override
+        public void setWriteListener(WriteListener listener) {
+            out.setWriteListener(listener);
+        }
+    }
+}
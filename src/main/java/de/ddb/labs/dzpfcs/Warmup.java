@@ -0,0 +1,196 @@
+/*
+ * Copyright 2023-2025 Michael Büchner, Deutsche Digitale Bibliothek
+ *
+ * This program is free software: you can redistribute it and/or modify 
+ * it under the terms of the GNU General Public License as published by 
+ * the Free Software Foundation, either version 3 of the License, or 
+ * (at your option) any later version. 
+ *  
+ * This program is distributed in the hope that it will be useful, 
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of 
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the 
+ * GNU General Public License for more details. 
+ * 
+ * You should have received a copy of the GNU General Public License 
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.ddb.labs.dzpfcs;
+
+import de.ddb.labs.dzpfcs.metrics.Readiness;
+import de.ddb.labs.dzpfcs.query.CQLIndexes;
+import de.ddb.labs.dzpfcs.query.CQLToSolrConverter;
+import de.ddb.labs.dzpfcs.query.CanonicalQuery;
+import de.ddb.labs.dzpfcs.searcher.Results;
+import de.ddb.labs.dzpfcs.searcher.SolrQuery;
+import de.ddb.labs.dzpfcs.searcher.SolrRequestPlan;
+import de.ddb.labs.dzpfcs.searcher.SolrSearcher;
+import eu.clarin.sru.server.SRUDiagnosticList;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import javax.xml.parsers.SAXParserFactory;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamWriter;
+import okhttp3.HttpUrl;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.z3950.zing.cql.CQLNode;
+import org.z3950.zing.cql.CQLParser;
+
+/**
+ * Warms up the endpoint after a (re)start, so the first requests are not slow:
+ * opens connections to the Solr endpoint, initializes the XML factories and
+ * runs synthetic queries through the whole search path (CQL parsing and
+ * conversion, Solr request, decoding, serialization) a few times, to load
+ * the classes and let the JIT compile the hot code. Marks the endpoint
+ * {@link Readiness ready} when done, even if the warm-up failed.
+ */
+final class Warmup implements Runnable {
+
+    private static final Logger LOGGER = LogManager.getLogger(Warmup.class);
+
+    /**
+     * Diagnostics of the synthetic searches are not reported.
+     */
+    private static final SRUDiagnosticList IGNORING_DIAGNOSTICS = new SRUDiagnosticList() {
+        @Override
+        public void addDiagnostic(String uri, String details, String message) {
+        }
+
+        @Override
+        public void addDiagnostic(int code, String details, String message) {
+        }
+    };
+
+    private final long initStart;
+    private final OkHttpClient client;
+    private final String endpoint;
+    private final SolrSearcher searcher;
+    private final SolrRequestPlan plan;
+    private final String pid;
+    private final String filter;
+    private final List<String> queries;
+    private final boolean canonicalize;
+    private final CQLIndexes indexes;
+    private final int rounds;
+    private final int connections;
+    private final int records;
+
+    /**
+     * Constructor.
+     *
+     * @param initStart {@link System#nanoTime()} at the start of the
+     * initialization
+     * @param client the client of the Solr requests
+     * @param endpoint the Solr select endpoint URL
+     * @param searcher the searcher
+     * @param plan the request plan of the synthetic searches
+     * @param pid the resource PID to search
+     * @param filter the filter query of the resource, may be
+     * <code>null</code>
+     * @param queries the synthetic CQL queries
+     * @param canonicalize whether the queries are converted in canonical form
+     * @param indexes the supported CQL indexes and their Solr fields
+     * @param rounds how often the queries are run
+     * @param connections number of connections to open
+     * @param records number of records per synthetic search
+     */
+    Warmup(long initStart, OkHttpClient client, String endpoint, SolrSearcher searcher, SolrRequestPlan plan, String pid, String filter, List<String> queries, boolean canonicalize, CQLIndexes indexes, int rounds, int connections, int records) {
+        this.initStart = initStart;
+        this.client = client;
+        this.endpoint = endpoint;
+        this.searcher = searcher;
+        this.plan = plan;
+        this.pid = pid;
+        this.filter = filter;
+        this.queries = queries;
+        this.canonicalize = canonicalize;
+        this.indexes = indexes;
+        this.rounds = rounds;
+        this.connections = connections;
+        this.records = records;
+    }
+
+    @Override
+    public void run() {
+        final long start = System.nanoTime();
+        try {
+            openConnections();
+            XMLOutputFactory.newInstance();
+            SAXParserFactory.newInstance().newSAXParser();
+            for (int round = 0; round < rounds; round++) {
+                for (String cql : queries) {
+                    search(cql);
+                }
+            }
+            LOGGER.info("Warm-up finished in {} ms", TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            LOGGER.warn("Warm-up interrupted");
+        } catch (Exception e) {
+            LOGGER.warn("Warm-up failed: {}", e.getMessage());
+        } finally {
+            Readiness.ready(System.nanoTime() - initStart);
+            LOGGER.info("Endpoint ready after {} ms", TimeUnit.NANOSECONDS.toMillis(Readiness.getStartupNanos()));
+        }
+    }
+
+    /**
+     * Open connections (incl. TLS handshakes) to the Solr endpoint with
+     * concurrent cheap requests, so they are in the connection pool.
+     */
+    private void openConnections() throws Exception {
+        final String url = HttpUrl.get(endpoint).newBuilder()
+                .addQueryParameter("q", "*:*")
+                .addQueryParameter("rows", "0")
+                .build().toString();
+        try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            final List<Future<Integer>> calls = new ArrayList<>(connections);
+            for (int i = 0; i < connections; i++) {
+                calls.add(executor.submit(() -> {
+                    try (Response response = client.newCall(new Request.Builder().url(url).build()).execute()) {
+                        return response.code();
+                    }
+                }));
+            }
+            for (Future<Integer> call : calls) {
+                call.get();
+            }
+        }
+        LOGGER.info("Opened {} connections to the DDB-API", client.connectionPool().connectionCount());
+    }
+
+    /**
+     * Run a query through the search path and serialize its records.
+     */
+    private void search(String cql) throws Exception {
+        final CQLNode node = new CQLParser().parse(cql);
+        final SolrQuery query;
+        if (canonicalize) {
+            final CanonicalQuery canonical = CQLToSolrConverter.canonicalize(node, indexes);
+            query = new SolrQuery(canonical.query(), canonical.filters());
+        } else {
+            query = new SolrQuery(CQLToSolrConverter.convertCQLtoSolrQuery(node, indexes));
+        }
+        final List<Results> results = searcher.searchAll(Map.of(pid, query.withFilter(filter)), 0, records, plan);
+
+        final XMLStreamWriter writer = XMLOutputFactory.newInstance().createXMLStreamWriter(OutputStream.nullOutputStream(), "UTF-8");
+        final DzpSRUSearchResultSet resultSet = new DzpSRUSearchResultSet(null, null, IGNORING_DIAGNOSTICS, List.of(), null, results);
+        writer.writeStartDocument("UTF-8", "1.0");
+        writer.writeStartElement("records");
+        while (resultSet.nextRecord()) {
+            resultSet.writeRecord(writer);
+        }
+        writer.writeEndElement();
+        writer.writeEndDocument();
+        writer.close();
+    }
+}
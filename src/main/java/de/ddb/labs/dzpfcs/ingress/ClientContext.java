@@ -0,0 +1,98 @@
+/*
+ * Copyright 2023-2025 Michael Büchner, Deutsche Digitale Bibliothek
+ *
+ * This program is free software: you can redistribute it and/or modify 
+ * it under the terms of the GNU General Public License as published by 
+ * the Free Software Foundation, either version 3 of the License, or 
+ * (at your option) any later version. 
+ *  
+ * This program is distributed in the hope that it will be useful, 
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of 
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the 
+ * GNU General Public License for more details. 
+ * 
+ * You should have received a copy of the GNU General Public License 
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.ddb.labs.dzpfcs.ingress;
+
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * The client of the HTTP request handled by the current thread, set by the
+ * {@link ClientContextFilter}. Holds the {@link IngressScheduler} permit of
+ * the request, which is released when the whole response is written.
+ */
+public final class ClientContext {
+
+    private static final ThreadLocal<ClientContext> CURRENT = new ThreadLocal<>();
+
+    private final String clientKey;
+    private final HttpServletResponse response;
+    private Runnable release;
+
+    ClientContext(String clientKey, HttpServletResponse response) {
+        this.clientKey = clientKey;
+        this.response = response;
+    }
+
+    /**
+     * Returns the context of the current request.
+     *
+     * @return the context or <code>null</code> outside of a request through
+     * the {@link ClientContextFilter}
+     */
+    public static ClientContext current() {
+        return CURRENT.get();
+    }
+
+    static void set(ClientContext context) {
+        CURRENT.set(context);
+    }
+
+    /**
+     * Releases the permit of the request, if any, and clears the context of
+     * the current thread.
+     */
+    static void clear() {
+        final ClientContext context = CURRENT.get();
+        CURRENT.remove();
+        if (context != null && context.release != null) {
+            context.release.run();
+            context.release = null;
+        }
+    }
+
+    /**
+     * Returns the pseudonym of the client, a keyed hash of its address or
+     * API key (see {@link ClientContextFilter}).
+     *
+     * @return the pseudonym
+     */
+    public String getClientKey() {
+        return clientKey;
+    }
+
+    /**
+     * Sets the action releasing the permit of the request at its end.
+     */
+    void onRelease(Runnable release) {
+        this.release = release;
+    }
+
+    boolean hasPermit() {
+        return release != null;
+    }
+
+    /**
+     * Tells the client when to retry a rejected request, with the HTTP
+     * header <code>Retry-After</code> (if the response is not committed yet).
+     *
+     * @param seconds the seconds to wait
+     */
+    void retryAfter(long seconds) {
+        if (!response.isCommitted()) {
+            response.setHeader("Retry-After", Long.toString(seconds));
+        }
+    }
+}
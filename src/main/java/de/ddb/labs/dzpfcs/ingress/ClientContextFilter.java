@@ -0,0 +1,190 @@
+/*
+ * Copyright 2023-2025 Michael Büchner, Deutsche Digitale Bibliothek
+ *
+ * This program is free software: you can redistribute it and/or modify 
+ * it under the terms of the GNU General Public License as published by 
+ * the Free Software Foundation, either version 3 of the License, or 
+ * (at your option) any later version. 
+ *  
+ * This program is distributed in the hope that it will be useful, 
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of 
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the 
+ * GNU General Public License for more details. 
+ * 
+ * You should have received a copy of the GNU General Public License 
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.ddb.labs.dzpfcs.ingress;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.HexFormat;
+import java.util.Locale;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletContext;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Identifies the client of each request for the {@link IngressScheduler} and
+ * sets the {@link ClientContext} while the request is handled.
+ * <p>
+ * The client key is configured with the context parameter
+ * <code>de.ddb.labs.dzpfcs.ingress.clientKey</code>:
+ * </p>
+ * <ul>
+ * <li><code>ip</code>: the remote address (default),</li>
+ * <li><code>ip+ua</code>: the remote address and the User-Agent,</li>
+ * <li><code>header:&lt;name&gt;</code>: the value of a request header, e.g.
+ * an API key set by a gateway, or the remote address without it. The value is
+ * not validated, so this mode must only be used behind a gateway that sets the
+ * header or rejects requests with unknown values; otherwise a client gets a
+ * new rate limit with every value it sends.</li>
+ * </ul>
+ * Behind reverse proxies, set
+ * <code>de.ddb.labs.dzpfcs.ingress.trustForwardedFor</code> to take the
+ * remote address from <code>X-Forwarded-For</code>, and
+ * <code>de.ddb.labs.dzpfcs.ingress.trustedProxies</code> to the number of
+ * proxies (default 1). The address is taken from the entry appended by the
+ * outermost trusted proxy, i.e. counted from the right, as the entries before
+ * it are sent by the client and can be chosen freely.
+ * <p>
+ * The client key is never used as is: the context holds a pseudonym, a keyed
+ * hash (HMAC-SHA256) of it, so client addresses and API keys do not end up in
+ * the metrics or logs. The secret is configured with
+ * <code>de.ddb.labs.dzpfcs.ingress.clientKeySecret</code>, to keep the
+ * pseudonyms stable across restarts, or else chosen randomly on start.
+ * </p>
+ */
+public class ClientContextFilter implements Filter {
+
+    private static final Logger LOGGER = LogManager.getLogger(ClientContextFilter.class);
+
+    private static final String CLIENT_KEY = "de.ddb.labs.dzpfcs.ingress.clientKey";
+    private static final String TRUST_FORWARDED_FOR = "de.ddb.labs.dzpfcs.ingress.trustForwardedFor";
+    private static final String TRUSTED_PROXIES = "de.ddb.labs.dzpfcs.ingress.trustedProxies";
+    private static final String CLIENT_KEY_SECRET = "de.ddb.labs.dzpfcs.ingress.clientKeySecret";
+
+    private static final String HEADER_PREFIX = "header:";
+
+    private static final int MAX_KEY_LENGTH = 128;
+
+    private static final String HMAC = "HmacSHA256";
+
+    /**
+     * Length of a pseudonym in bytes (hex encoded twice as long).
+     */
+    private static final int PSEUDONYM_BYTES = 8;
+
+    private boolean withUserAgent = false;
+    private String header = null;
+    private boolean trustForwardedFor = false;
+    private int trustedProxies = 1;
+    private SecretKeySpec secret;
+
+    @Override
+    public void init(FilterConfig filterConfig) throws ServletException {
+        final ServletContext context = filterConfig.getServletContext();
+        final String clientKey = context.getInitParameter(CLIENT_KEY) != null ? context.getInitParameter(CLIENT_KEY).trim() : "ip";
+        if (clientKey.toLowerCase(Locale.ROOT).startsWith(HEADER_PREFIX)) {
+            this.header = clientKey.substring(HEADER_PREFIX.length()).trim();
+        } else if ("ip+ua".equalsIgnoreCase(clientKey)) {
+            this.withUserAgent = true;
+        } else if (!"ip".equalsIgnoreCase(clientKey)) {
+            throw new ServletException("Parameter '" + CLIENT_KEY + "' must be ip, ip+ua or header:<name>, got '" + clientKey + "'");
+        }
+        this.trustForwardedFor = Boolean.parseBoolean(context.getInitParameter(TRUST_FORWARDED_FOR));
+        if (context.getInitParameter(TRUSTED_PROXIES) != null) {
+            try {
+                this.trustedProxies = Integer.parseInt(context.getInitParameter(TRUSTED_PROXIES).trim());
+            } catch (NumberFormatException e) {
+                throw new ServletException("Parameter '" + TRUSTED_PROXIES + "' must be a number", e);
+            }
+            if (trustedProxies < 1) {
+                throw new ServletException("Parameter '" + TRUSTED_PROXIES + "' must be at least 1, got " + trustedProxies);
+            }
+        }
+        final String configuredSecret = context.getInitParameter(CLIENT_KEY_SECRET);
+        if (configuredSecret != null && !configuredSecret.isBlank()) {
+            this.secret = new SecretKeySpec(configuredSecret.strip().getBytes(StandardCharsets.UTF_8), HMAC);
+        } else {
+            final byte[] random = new byte[32];
+            new SecureRandom().nextBytes(random);
+            this.secret = new SecretKeySpec(random, HMAC);
+        }
+        LOGGER.info("Clients are identified by {} (trustForwardedFor={}, trustedProxies={})", clientKey, trustForwardedFor, trustedProxies);
+    }
+
+    @Override
+    public void doFilter(ServletRequest request, ServletResponse response, FilterChain chain) throws IOException, ServletException {
+        if (!(request instanceof HttpServletRequest) || !(response instanceof HttpServletResponse)) {
+            chain.doFilter(request, response);
+            return;
+        }
+        ClientContext.set(new ClientContext(pseudonym(clientKey((HttpServletRequest) request)), (HttpServletResponse) response));
+        try {
+            chain.doFilter(request, response);
+        } finally {
+            ClientContext.clear();
+        }
+    }
+
+    private String clientKey(HttpServletRequest request) {
+        if (header != null) {
+            final String value = request.getHeader(header);
+            if (value != null && !value.isBlank()) {
+                return truncate(value.strip());
+            }
+        }
+        String ip = request.getRemoteAddr();
+        if (trustForwardedFor) {
+            final String forwardedFor = request.getHeader("X-Forwarded-For");
+            if (forwardedFor != null && !forwardedFor.isBlank()) {
+                /* the entry appended by the outermost trusted proxy */
+                final String[] entries = forwardedFor.split(",");
+                final String entry = entries[Math.max(0, entries.length - trustedProxies)].strip();
+                if (!entry.isEmpty()) {
+                    ip = entry;
+                }
+            }
+        }
+        if (withUserAgent) {
+            final String userAgent = request.getHeader("User-Agent");
+            return truncate(ip + " " + (userAgent != null ? userAgent.strip() : "-"));
+        }
+        return truncate(ip);
+    }
+
+    /**
+     * Returns the pseudonym of a client key, the start of its keyed hash.
+     */
+    private String pseudonym(String clientKey) throws ServletException {
+        try {
+            final Mac mac = Mac.getInstance(HMAC);
+            mac.init(secret);
+            final byte[] hash = mac.doFinal(clientKey.getBytes(StandardCharsets.UTF_8));
+            return HexFormat.of().formatHex(hash, 0, PSEUDONYM_BYTES);
+        } catch (GeneralSecurityException e) {
+            throw new ServletException("Cannot compute the pseudonym of a client", e);
+        }
+    }
+
+    private static String truncate(String key) {
+        return key.length() > MAX_KEY_LENGTH ? key.substring(0, MAX_KEY_LENGTH) : key;
+    }
+
+    @Override
+    public void destroy() {
+    }
+}
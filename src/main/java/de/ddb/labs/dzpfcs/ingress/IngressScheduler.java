@@ -0,0 +1,338 @@
+/*
+ * Copyright 2023-2025 Michael Büchner, Deutsche Digitale Bibliothek
+ *
+ * This program is free software: you can redistribute it and/or modify 
+ * it under the terms of the GNU General Public License as published by 
+ * the Free Software Foundation, either version 3 of the License, or 
+ * (at your option) any later version. 
+ *  
+ * This program is distributed in the hope that it will be useful, 
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of 
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the 
+ * GNU General Public License for more details. 
+ * 
+ * You should have received a copy of the GNU General Public License 
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.ddb.labs.dzpfcs.ingress;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import de.ddb.labs.dzpfcs.metrics.DzpMetrics;
+import eu.clarin.sru.server.SRUConstants;
+import eu.clarin.sru.server.SRUException;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Admits <em>searchRetrieve</em> requests per client (see
+ * {@link ClientContext}), so a single harvester cannot take all capacity from
+ * interactive users.
+ * <p>
+ * Each client has a token bucket of records: a request costs its
+ * <code>maximumRecords</code> plus a fixed cost, and is rejected with a
+ * diagnostic and a <code>Retry-After</code> header if the bucket holds too few
+ * tokens. Admitted requests run up to a maximum concurrency; beyond it they
+ * are queued and served by weighted fair queuing (start-time fair queuing
+ * with the request cost as weight): a client's requests are ordered after its
+ * earlier ones, so clients with small requests are not stuck behind a queue
+ * of large ones. A request holds its slot until its response is written.
+ * Only granted requests advance the finish tag of their client; the tags of
+ * its requests still queued behind a rejected one are recomputed without it.
+ * </p>
+ * <p>
+ * Usage is exported per client for the first clients seen, the rest is
+ * counted as <code>other</code> to bound the number of time series. Clients
+ * are labeled with their pseudonyms (see {@link ClientContext#getClientKey()});
+ * by default no client is exported by label, as the metrics are public.
+ * </p>
+ */
+public class IngressScheduler {
+
+    /**
+     * Fixed cost of a request in records, so requests for few records are
+     * not free.
+     */
+    private static final int REQUEST_COST = 10;
+
+    /**
+     * Client label of clients beyond the tracked ones.
+     */
+    private static final String OTHER = "other";
+
+    private static final int MAX_CLIENTS = 100_000;
+
+    private static final Duration IDLE = Duration.ofMinutes(30);
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition dispatched = lock.newCondition();
+
+    private final int maxConcurrent;
+    private final long maxWaitNanos;
+    private final double recordsPerNano;
+    private final double burstRecords;
+    private final int maxTrackedClients;
+
+    private final Cache<String, Client> clients;
+    private final Set<String> trackedClients = new HashSet<>();
+    private final PriorityQueue<Ticket> queue = new PriorityQueue<>(Comparator.comparingDouble((Ticket t) -> t.finish).thenComparingLong(t -> t.seq));
+
+    private final Timer waitTimer;
+
+    private int running = 0;
+    private double virtualTime = 0;
+    private long seq = 0;
+
+    /**
+     * Constructor.
+     *
+     * @param maxConcurrent maximum number of requests running at once
+     * @param maxWaitMillis maximum time a request waits in the queue
+     * @param recordsPerSecond records per second each client's bucket is
+     * refilled with
+     * @param burstRecords size of each client's bucket in records
+     * @param maxTrackedClients maximum number of clients exported by
+     * pseudonym, <code>0</code> to count all as <code>other</code>
+     */
+    public IngressScheduler(int maxConcurrent, long maxWaitMillis, double recordsPerSecond, long burstRecords, int maxTrackedClients) {
+        this.maxConcurrent = Math.max(1, maxConcurrent);
+        this.maxWaitNanos = TimeUnit.MILLISECONDS.toNanos(maxWaitMillis);
+        this.recordsPerNano = recordsPerSecond / TimeUnit.SECONDS.toNanos(1);
+        this.burstRecords = Math.max(REQUEST_COST, burstRecords);
+        this.maxTrackedClients = maxTrackedClients;
+        this.clients = Caffeine.newBuilder()
+                .maximumSize(MAX_CLIENTS)
+                .expireAfterAccess(IDLE)
+                .build();
+
+        final MeterRegistry registry = DzpMetrics.getRegistry();
+        this.waitTimer = Timer.builder("dzpfcs.ingress.wait")
+                .description("Time admitted searchRetrieve requests waited in the fair queue")
+                .publishPercentiles(0.5, 0.95, 0.99)
+                .register(registry);
+        Gauge.builder("dzpfcs.ingress.running", this, IngressScheduler::getRunning)
+                .description("Number of admitted searchRetrieve requests running")
+                .register(registry);
+        Gauge.builder("dzpfcs.ingress.queued", this, IngressScheduler::getQueued)
+                .description("Number of searchRetrieve requests waiting in the fair queue")
+                .register(registry);
+        Gauge.builder("dzpfcs.ingress.clients", clients, Cache::estimatedSize)
+                .description("Number of clients seen in the last 30 minutes")
+                .register(registry);
+    }
+
+    /**
+     * Admits the request of the current client or rejects it. The permit is
+     * released by the {@link ClientContextFilter} at the end of the request.
+     *
+     * @param context the client of the request, requests without one are
+     * admitted without limits
+     * @param maximumRecords the requested number of records
+     * @throws SRUException if the client exceeded its rate or the request
+     * waited too long in the queue
+     */
+    public void admit(ClientContext context, int maximumRecords) throws SRUException {
+        if (context == null || context.hasPermit()) {
+            return;
+        }
+        final double cost = Math.min(burstRecords, REQUEST_COST + Math.max(0, maximumRecords));
+        final Client client = clients.get(context.getClientKey(), k -> new Client(burstRecords));
+        final long start = System.nanoTime();
+
+        final String label;
+        Ticket ticket = null;
+        lock.lock();
+        try {
+            label = label(context.getClientKey());
+
+            /* token bucket */
+            client.tokens = Math.min(burstRecords, client.tokens + (start - client.refilled) * recordsPerNano);
+            client.refilled = start;
+            if (client.tokens < cost) {
+                final long seconds = Math.max(1, (long) Math.ceil((cost - client.tokens) / recordsPerNano / TimeUnit.SECONDS.toNanos(1)));
+                count(label, "rate_limited");
+                context.retryAfter(seconds);
+                throw new SRUException(SRUConstants.SRU_SYSTEM_TEMPORARILY_UNAVAILABLE,
+                        "Request rate of this client exceeded, retry after " + seconds + " seconds.");
+            }
+            client.tokens -= cost;
+
+            /* fair queue */
+            ticket = new Ticket(client, virtualTime, cost, seq++);
+            ticket.tag(client.lastFinish());
+            client.queued.add(ticket);
+            queue.add(ticket);
+            dispatch();
+            long remaining = maxWaitNanos;
+            while (!ticket.granted) {
+                if (remaining <= 0) {
+                    withdraw(ticket);
+                    client.tokens = Math.min(burstRecords, client.tokens + cost);
+                    count(label, "timeout");
+                    context.retryAfter(1);
+                    throw new SRUException(SRUConstants.SRU_SYSTEM_TEMPORARILY_UNAVAILABLE,
+                            "Too many requests in progress, retry after 1 second.");
+                }
+                remaining = dispatched.awaitNanos(remaining);
+            }
+        } catch (InterruptedException e) {
+            if (ticket != null && ticket.granted) {
+                // granted just before the interrupt
+                running--;
+                dispatch();
+            } else if (ticket != null) {
+                withdraw(ticket);
+            }
+            Thread.currentThread().interrupt();
+            throw new SRUException(SRUConstants.SRU_GENERAL_SYSTEM_ERROR, "Interrupted while waiting for admission.", e);
+        } finally {
+            lock.unlock();
+        }
+
+        context.onRelease(this::release);
+        waitTimer.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+        count(label, "admitted");
+        DzpMetrics.getRegistry().counter("dzpfcs.ingress.records", "client", label).increment(Math.max(0, maximumRecords));
+    }
+
+    private void release() {
+        lock.lock();
+        try {
+            running--;
+            dispatch();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Removes a request that was not granted from the queue and recomputes
+     * the tags of the requests of its client queued after it, so the finish
+     * tag of the client does not advance by its cost. Called with the lock
+     * held.
+     */
+    private void withdraw(Ticket ticket) {
+        queue.remove(ticket);
+        final Client client = ticket.client;
+        client.queued.remove(ticket);
+        double previous = client.finish;
+        for (Ticket t : client.queued) {
+            queue.remove(t);
+            t.tag(previous);
+            queue.add(t);
+            previous = t.finish;
+        }
+    }
+
+    /**
+     * Grants free slots to the queued requests with the smallest finish
+     * tags. Called with the lock held.
+     */
+    private void dispatch() {
+        boolean granted = false;
+        while (running < maxConcurrent && !queue.isEmpty()) {
+            final Ticket ticket = queue.poll();
+            ticket.granted = true;
+            ticket.client.queued.remove(ticket);
+            ticket.client.finish = Math.max(ticket.client.finish, ticket.finish);
+            virtualTime = Math.max(virtualTime, ticket.start);
+            running++;
+            granted = true;
+        }
+        if (granted) {
+            dispatched.signalAll();
+        }
+    }
+
+    /**
+     * Returns the metric label of a client. Called with the lock held.
+     */
+    private String label(String clientKey) {
+        if (trackedClients.contains(clientKey)) {
+            return clientKey;
+        }
+        if (trackedClients.size() < maxTrackedClients) {
+            trackedClients.add(clientKey);
+            return clientKey;
+        }
+        return OTHER;
+    }
+
+    private static void count(String label, String result) {
+        DzpMetrics.getRegistry().counter("dzpfcs.ingress.requests", "client", label, "result", result).increment();
+    }
+
+    public int getRunning() {
+        return running;
+    }
+
+    public int getQueued() {
+        return queue.size();
+    }
+
+    /**
+     * Token bucket, finish tag of the last granted request and queued
+     * requests of a client. Guarded by the lock.
+     */
+    private static final class Client {
+
+        private double tokens;
+        private long refilled = System.nanoTime();
+        private double finish = 0;
+        private final ArrayDeque<Ticket> queued = new ArrayDeque<>();
+
+        private Client(double tokens) {
+            this.tokens = tokens;
+        }
+
+        /**
+         * Returns the finish tag a new request of this client starts from:
+         * that of its last queued request, if any, else of its last granted
+         * one.
+         */
+        private double lastFinish() {
+            return queued.isEmpty() ? finish : queued.peekLast().finish;
+        }
+    }
+
+    /**
+     * A request in the fair queue. Its tags change only while it is not in
+     * the queue.
+     */
+    private static final class Ticket {
+
+        private final Client client;
+        private final double arrival;
+        private final double cost;
+        private final long seq;
+        private double start;
+        private double finish;
+        private boolean granted = false;
+
+        private Ticket(Client client, double arrival, double cost, long seq) {
+            this.client = client;
+            this.arrival = arrival;
+            this.cost = cost;
+            this.seq = seq;
+        }
+
+        /**
+         * Sets the start and finish tags after the finish tag of the
+         * previous request of the client.
+         */
+        private void tag(double previous) {
+            start = Math.max(arrival, previous);
+            finish = start + cost;
+        }
+    }
+}
@@ -0,0 +1,141 @@
+/*
+ * Copyright 2023-2025 Michael Büchner, Deutsche Digitale Bibliothek
+ *
+ * This program is free software: you can redistribute it and/or modify 
+ * it under the terms of the GNU General Public License as published by 
+ * the Free Software Foundation, either version 3 of the License, or 
+ * (at your option) any later version. 
+ *  
+ * This program is distributed in the hope that it will be useful, 
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of 
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the 
+ * GNU General Public License for more details. 
+ * 
+ * You should have received a copy of the GNU General Public License 
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.ddb.labs.dzpfcs.metrics;
+
+import eu.clarin.sru.server.SRUException;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.prometheusmetrics.PrometheusConfig;
+import io.micrometer.prometheusmetrics.PrometheusMeterRegistry;
+
+/**
+ * Metrics of the search pipeline, exposed in the Prometheus text format by the
+ * {@link MetricsServlet}.
+ * <p>
+ * All meters of the hot path are created once, so recording a value is a
+ * lookup-free call to the meter.
+ * </p>
+ */
+public final class DzpMetrics {
+
+    private static final PrometheusMeterRegistry REGISTRY = new PrometheusMeterRegistry(PrometheusConfig.DEFAULT);
+
+    /**
+     * Separate Solr count request, until the response headers arrived.
+     */
+    public static final Timer SOLR_COUNT = phase("solr_count");
+
+    /**
+     * Solr page request, until the response headers arrived.
+     */
+    public static final Timer SOLR_PAGE = phase("solr_page");
+
+    /**
+     * Id-only Solr request to advance a cursor to a deep offset, until the
+     * response headers arrived.
+     */
+    public static final Timer SOLR_WALK = phase("solr_walk");
+
+    /**
+     * Solr request for the snippets missing in the snippet store, until the
+     * response headers arrived.
+     */
+    public static final Timer SOLR_HIGHLIGHT = phase("solr_highlight");
+
+    /**
+     * Streaming decoding of a Solr response body.
+     */
+    public static final Timer PARSE = phase("parse");
+
+    /**
+     * Post-processing of highlighting snippets.
+     */
+    public static final Timer HIGHLIGHT = phase("highlight");
+
+    /**
+     * Serialization of all records of a response.
+     */
+    public static final Timer SERIALIZE = phase("serialize");
+
+    /**
+     * Whole <em>searchRetrieve</em> operation, without serialization.
+     */
+    public static final Timer SEARCH = Timer.builder("dzpfcs.search.duration")
+            .description("Duration of searchRetrieve operations without record serialization")
+            .publishPercentiles(0.5, 0.95, 0.99)
+            .register(REGISTRY);
+
+    public static final Counter REQUESTS = Counter.builder("dzpfcs.search.requests")
+            .description("Number of searchRetrieve operations")
+            .register(REGISTRY);
+
+    public static final DistributionSummary RECORDS = DistributionSummary.builder("dzpfcs.search.records")
+            .description("Number of records per searchRetrieve response")
+            .register(REGISTRY);
+
+    public static final DistributionSummary SOLR_RESPONSE_BYTES = DistributionSummary.builder("dzpfcs.solr.response.size")
+            .description("Size of Solr response bodies")
+            .baseUnit("bytes")
+            .register(REGISTRY);
+
+    public static final Counter SOLR_COALESCED = Counter.builder("dzpfcs.solr.coalesced")
+            .description("Number of Solr requests coalesced with an identical request in flight")
+            .register(REGISTRY);
+
+    public static final Counter SOLR_HEDGED = Counter.builder("dzpfcs.solr.hedged")
+            .description("Number of hedged Solr requests sent because the first request was slow")
+            .register(REGISTRY);
+
+    public static final Counter SOLR_HEDGE_WINS = Counter.builder("dzpfcs.solr.hedged.wins")
+            .description("Number of hedged Solr requests that returned before the first request")
+            .register(REGISTRY);
+
+    private DzpMetrics() {
+    }
+
+    private static Timer phase(String phase) {
+        return Timer.builder("dzpfcs.search.phase")
+                .description("Duration of the phases of the search pipeline")
+                .tag("phase", phase)
+                .publishPercentiles(0.5, 0.95, 0.99)
+                .register(REGISTRY);
+    }
+
+    /**
+     * Count a failed <em>searchRetrieve</em> operation by its SRU diagnostic.
+     *
+     * @param e the exception the operation failed with
+     */
+    public static void error(SRUException e) {
+        REGISTRY.counter("dzpfcs.search.errors", "diagnostic", e.getDiagnostic().getURI()).increment();
+    }
+
+    public static MeterRegistry getRegistry() {
+        return REGISTRY;
+    }
+
+    /**
+     * Returns all metrics in the Prometheus text format.
+     *
+     * @return the scrape output
+     */
+    public static String scrape() {
+        return REGISTRY.scrape();
+    }
+}
@@ -0,0 +1,62 @@
+/*
+ * Copyright 2023-2025 Michael Büchner, Deutsche Digitale Bibliothek
+ *
+ * This program is free software: you can redistribute it and/or modify 
+ * it under the terms of the GNU General Public License as published by 
+ * the Free Software Foundation, either version 3 of the License, or 
+ * (at your option) any later version. 
+ *  
+ * This program is distributed in the hope that it will be useful, 
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of 
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the 
+ * GNU General Public License for more details. 
+ * 
+ * You should have received a copy of the GNU General Public License 
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.ddb.labs.dzpfcs.metrics;
+
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.TimeGauge;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Readiness of the endpoint: ready once the search engine is initialized and
+ * warmed up. Reported by the {@link ReadinessServlet} and as metrics.
+ */
+public final class Readiness {
+
+    private static volatile boolean ready = false;
+
+    private static volatile long startupNanos = 0;
+
+    static {
+        Gauge.builder("dzpfcs.ready", Readiness.class, c -> ready ? 1 : 0)
+                .description("Whether the endpoint is initialized and warmed up (1 = ready)")
+                .register(DzpMetrics.getRegistry());
+        TimeGauge.builder("dzpfcs.startup.duration", Readiness.class, TimeUnit.NANOSECONDS, c -> startupNanos)
+                .description("Time from the start of the initialization until the endpoint was ready")
+                .register(DzpMetrics.getRegistry());
+    }
+
+    private Readiness() {
+    }
+
+    /**
+     * Mark the endpoint as ready.
+     *
+     * @param nanos time since the start of the initialization
+     */
+    public static void ready(long nanos) {
+        startupNanos = nanos;
+        ready = true;
+    }
+
+    public static boolean isReady() {
+        return ready;
+    }
+
+    public static long getStartupNanos() {
+        return startupNanos;
+    }
+}
@@ -0,0 +1,237 @@
+/*
+ * Copyright 2023-2025 Michael Büchner, Deutsche Digitale Bibliothek
+ *
+ * This program is free software: you can redistribute it and/or modify 
+ * it under the terms of the GNU General Public License as published by 
+ * the Free Software Foundation, either version 3 of the License, or 
+ * (at your option) any later version. 
+ *  
+ * This program is distributed in the hope that it will be useful, 
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of 
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the 
+ * GNU General Public License for more details. 
+ * 
+ * You should have received a copy of the GNU General Public License 
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.ddb.labs.dzpfcs.metrics;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import eu.clarin.sru.server.SRUException;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Timing breakdown of one <em>searchRetrieve</em> request for the slow-query
+ * log (see {@link SearchTraceFilter}): the query, every Solr call with its
+ * HTTP time, <code>QTime</code>, size and decoding time, the serialization
+ * and the size of the response.
+ * <p>
+ * The trace of the current request is held in a thread-local. Work handed to
+ * other threads is {@link #wrap(Callable) wrapped} to keep the trace;
+ * asynchronous Solr calls capture it when they are sent.
+ * </p>
+ */
+public final class SearchTrace {
+
+    private static final ThreadLocal<SearchTrace> CURRENT = new ThreadLocal<>();
+
+    private static final JsonFactory JSON_FACTORY = new JsonFactory();
+
+    private static final double NANOS_PER_MILLI = TimeUnit.MILLISECONDS.toNanos(1);
+
+    private final long start = System.nanoTime();
+    private final Instant timestamp = Instant.now();
+
+    private volatile String client;
+    private volatile String cql;
+    private volatile String solrQuery;
+    private volatile int records = -1;
+    private volatile long serializeNanos = -1;
+    private volatile String diagnostic;
+    private volatile String error;
+    private final List<SolrCall> calls = new ArrayList<>();
+
+    /**
+     * A Solr request of the search.
+     *
+     * @param phase the phase of the pipeline, e.g. <code>solr_page</code>
+     * @param url the request URL
+     * @param status the HTTP status
+     * @param httpNanos time until the response headers arrived
+     * @param qTime the <code>QTime</code> reported by Solr in milliseconds,
+     * <code>-1</code> if unknown
+     * @param bytes the size of the response body
+     * @param decodeNanos time to decode the response body
+     */
+    public record SolrCall(String phase, String url, int status, long httpNanos, int qTime, long bytes, long decodeNanos) {
+    }
+
+    SearchTrace() {
+    }
+
+    /**
+     * Returns the trace of the current request.
+     *
+     * @return the trace or <code>null</code> if the current thread does not
+     * handle a traced request
+     */
+    public static SearchTrace current() {
+        return CURRENT.get();
+    }
+
+    static void set(SearchTrace trace) {
+        if (trace != null) {
+            CURRENT.set(trace);
+        } else {
+            CURRENT.remove();
+        }
+    }
+
+    /**
+     * Wraps a task to run with the trace of the current thread.
+     *
+     * @param <T> the result type
+     * @param task the task
+     * @return the wrapped task, or <code>task</code> if there is no trace
+     */
+    public static <T> Callable<T> wrap(Callable<T> task) {
+        final SearchTrace trace = CURRENT.get();
+        if (trace == null) {
+            return task;
+        }
+        return () -> {
+            final SearchTrace previous = CURRENT.get();
+            CURRENT.set(trace);
+            try {
+                return task.call();
+            } finally {
+                set(previous);
+            }
+        };
+    }
+
+    /**
+     * Wraps a task to run with the trace of the current thread.
+     *
+     * @param task the task
+     * @return the wrapped task, or <code>task</code> if there is no trace
+     */
+    public static Runnable wrap(Runnable task) {
+        final SearchTrace trace = CURRENT.get();
+        if (trace == null) {
+            return task;
+        }
+        return () -> {
+            final SearchTrace previous = CURRENT.get();
+            CURRENT.set(trace);
+            try {
+                task.run();
+            } finally {
+                set(previous);
+            }
+        };
+    }
+
+    public void client(String client) {
+        this.client = client;
+    }
+
+    public void query(String cql, String solrQuery) {
+        this.cql = cql;
+        this.solrQuery = solrQuery;
+    }
+
+    public void records(int records) {
+        this.records = records;
+    }
+
+    public void serialized(long nanos) {
+        this.serializeNanos = nanos;
+    }
+
+    public void error(SRUException e) {
+        this.diagnostic = e.getDiagnostic().getURI();
+        this.error = e.getMessage();
+    }
+
+    public void call(SolrCall call) {
+        synchronized (calls) {
+            calls.add(call);
+        }
+    }
+
+    /**
+     * Returns whether the request was a search, i.e. not explain or scan.
+     */
+    boolean isSearch() {
+        return cql != null || diagnostic != null;
+    }
+
+    long elapsedNanos() {
+        return System.nanoTime() - start;
+    }
+
+    /**
+     * Renders the trace as a single-line JSON object.
+     *
+     * @param totalNanos the duration of the whole request
+     * @param bytesWritten the size of the response body
+     * @param slow whether the request exceeded the threshold (or is sampled)
+     * @return the JSON line
+     */
+    String toJson(long totalNanos, long bytesWritten, boolean slow) {
+        final StringWriter out = new StringWriter(512);
+        try (JsonGenerator g = JSON_FACTORY.createGenerator(out)) {
+            g.writeStartObject();
+            g.writeStringField("timestamp", timestamp.toString());
+            g.writeBooleanField("slow", slow);
+            g.writeNumberField("totalMillis", millis(totalNanos));
+            g.writeStringField("client", client);
+            g.writeStringField("cql", cql);
+            g.writeStringField("solrQuery", solrQuery);
+            if (diagnostic != null) {
+                g.writeStringField("diagnostic", diagnostic);
+                g.writeStringField("error", error);
+            }
+            long decodeNanos = 0;
+            g.writeArrayFieldStart("solr");
+            synchronized (calls) {
+                for (SolrCall call : calls) {
+                    g.writeStartObject();
+                    g.writeStringField("phase", call.phase());
+                    g.writeStringField("url", call.url());
+                    g.writeNumberField("status", call.status());
+                    g.writeNumberField("httpMillis", millis(call.httpNanos()));
+                    g.writeNumberField("qTime", call.qTime());
+                    g.writeNumberField("bytes", call.bytes());
+                    g.writeNumberField("parseMillis", millis(call.decodeNanos()));
+                    g.writeEndObject();
+                    decodeNanos += call.decodeNanos();
+                }
+            }
+            g.writeEndArray();
+            g.writeNumberField("parseMillis", millis(decodeNanos));
+            if (serializeNanos >= 0) {
+                g.writeNumberField("serializeMillis", millis(serializeNanos));
+            }
+            g.writeNumberField("records", records);
+            g.writeNumberField("bytesWritten", bytesWritten);
+            g.writeEndObject();
+        } catch (IOException e) {
+            // a StringWriter does not throw
+            throw new IllegalStateException(e);
+        }
+        return out.toString();
+    }
+
+    private static double millis(long nanos) {
+        return Math.round(nanos / NANOS_PER_MILLI * 10) / 10.0;
+    }
+}
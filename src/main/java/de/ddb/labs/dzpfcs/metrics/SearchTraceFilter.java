@@ -0,0 +1,174 @@
+/*
+ * Copyright 2023-2025 Michael Büchner, Deutsche Digitale Bibliothek
+ *
+ * This program is free software: you can redistribute it and/or modify 
+ * it under the terms of the GNU General Public License as published by 
+ * the Free Software Foundation, either version 3 of the License, or 
+ * (at your option) any later version. 
+ *  
+ * This program is distributed in the hope that it will be useful, 
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of 
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the 
+ * GNU General Public License for more details. 
+ * 
+ * You should have received a copy of the GNU General Public License 
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.ddb.labs.dzpfcs.metrics;
+
+import java.io.IOException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletContext;
+import javax.servlet.ServletException;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Slow-query log: traces each request (see {@link SearchTrace}), counts the
+ * bytes of the response and writes one JSON line per
+ * <em>searchRetrieve</em> request that took longer than a threshold, plus a
+ * sample of the other requests.
+ * <p>
+ * The lines are logged to <code>de.ddb.labs.dzpfcs.slowquery</code>, which
+ * <code>log4j2.xml</code> routes through a non-blocking asynchronous
+ * appender, so the request thread never waits for logging I/O (lines are
+ * dropped if the queue is full).
+ * </p>
+ */
+public class SearchTraceFilter implements Filter {
+
+    private static final Logger LOGGER = LogManager.getLogger(SearchTraceFilter.class);
+
+    private static final Logger SLOW_QUERIES = LogManager.getLogger("de.ddb.labs.dzpfcs.slowquery");
+
+    private static final String ENABLED = "de.ddb.labs.dzpfcs.slowQuery.enabled";
+    private static final String THRESHOLD_MILLIS = "de.ddb.labs.dzpfcs.slowQuery.thresholdMillis";
+    private static final String SAMPLE_ONE_IN = "de.ddb.labs.dzpfcs.slowQuery.sampleOneIn";
+
+    private boolean enabled = true;
+    private long thresholdNanos = TimeUnit.SECONDS.toNanos(2);
+    private int sampleOneIn = 100;
+
+    @Override
+    public void init(FilterConfig filterConfig) throws ServletException {
+        final ServletContext context = filterConfig.getServletContext();
+        if (context.getInitParameter(ENABLED) != null) {
+            this.enabled = Boolean.parseBoolean(context.getInitParameter(ENABLED).trim());
+        }
+        try {
+            if (context.getInitParameter(THRESHOLD_MILLIS) != null) {
+                this.thresholdNanos = TimeUnit.MILLISECONDS.toNanos(Long.parseLong(context.getInitParameter(THRESHOLD_MILLIS).trim()));
+            }
+            if (context.getInitParameter(SAMPLE_ONE_IN) != null) {
+                this.sampleOneIn = Integer.parseInt(context.getInitParameter(SAMPLE_ONE_IN).trim());
+            }
+        } catch (NumberFormatException e) {
+            throw new ServletException("Invalid slow-query log parameter: " + e.getMessage(), e);
+        }
+        LOGGER.info("Slow-query log enabled: {} (threshold {} ms, sample 1 in {} requests)",
+                enabled, TimeUnit.NANOSECONDS.toMillis(thresholdNanos), sampleOneIn);
+    }
+
+    @Override
+    public void doFilter(ServletRequest request, ServletResponse response, FilterChain chain) throws IOException, ServletException {
+        if (!enabled || !(response instanceof HttpServletResponse)) {
+            chain.doFilter(request, response);
+            return;
+        }
+        final SearchTrace trace = new SearchTrace();
+        final CountingResponse counting = new CountingResponse((HttpServletResponse) response);
+        SearchTrace.set(trace);
+        try {
+            chain.doFilter(request, counting);
+        } finally {
+            SearchTrace.set(null);
+            if (trace.isSearch()) {
+                final long total = trace.elapsedNanos();
+                final boolean slow = total >= thresholdNanos;
+                if (slow || (sampleOneIn > 0 && ThreadLocalRandom.current().nextInt(sampleOneIn) == 0)) {
+                    SLOW_QUERIES.info(trace.toJson(total, counting.count(), slow));
+                }
+            }
+        }
+    }
+
+    @Override
+    public void destroy() {
+    }
+
+    /**
+     * Counts the bytes written to the output stream of a response.
+     */
+    private static final class CountingResponse extends HttpServletResponseWrapper {
+
+        private CountingOutputStream out;
+
+        private CountingResponse(HttpServletResponse response) {
+            super(response);
+        }
+
+        @Override
+        public ServletOutputStream getOutputStream() throws IOException {
+            if (out == null) {
+                out = new CountingOutputStream(super.getOutputStream());
+            }
+            return out;
+        }
+
+        private long count() {
+            return out != null ? out.count : 0;
+        }
+    }
+
+    private static final class CountingOutputStream extends ServletOutputStream {
+
+        private final ServletOutputStream out;
+        private long count;
+
+        private CountingOutputStream(ServletOutputStream out) {
+            this.out = out;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            count += len;
+        }
+
+        @Override
+        public void flush() throws IOException {
+            out.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            out.close();
+        }
+
+        @Override
+        public boolean isReady() {
+            return out.isReady();
+        }
+
+        @Override
+        public void setWriteListener(WriteListener listener) {
+            out.setWriteListener(listener);
+        }
+    }
+}
@@ -0,0 +1,229 @@
+/*
+ * Copyright 2023-2025 Michael Büchner, Deutsche Digitale Bibliothek
+ *
+ * This program is free software: you can redistribute it and/or modify 
+ * it under the terms of the GNU General Public License as published by 
+ * the Free Software Foundation, either version 3 of the License, or 
+ * (at your option) any later version. 
+ *  
+ * This program is distributed in the hope that it will be useful, 
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of 
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the 
+ * GNU General Public License for more details. 
+ * 
+ * You should have received a copy of the GNU General Public License 
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.ddb.labs.dzpfcs.query;
+
+import eu.clarin.sru.server.SRUConstants;
+import eu.clarin.sru.server.SRUException;
+import java.text.Normalizer;
+import java.time.LocalDate;
+import java.time.Year;
+import java.time.YearMonth;
+import java.time.format.DateTimeParseException;
+import java.util.Locale;
+import org.z3950.zing.cql.CQLTermNode;
+
+/**
+ * The CQL indexes supported besides <code>cql.serverChoice</code> and the
+ * Solr fields they are searched in:
+ * <ul>
+ * <li><code>title</code>: the title of the newspaper, relations
+ * <code>=</code> and <code>==</code>, e.g. <code>title = "Berliner
+ * Börsen-Zeitung"</code>,</li>
+ * <li><code>date</code>: the publication date as year, month or day,
+ * relations <code>=</code>, <code>&lt;</code>, <code>&gt;</code>,
+ * <code>&lt;=</code>, <code>&gt;=</code> and <code>within</code>, e.g.
+ * <code>date within "1914 1918-11"</code>,</li>
+ * <li><code>pagenumber</code>: the page number in the issue, the same
+ * relations as <code>date</code>, e.g. <code>pagenumber &lt;= 2</code>.</li>
+ * </ul>
+ * Clauses on these indexes are converted to Solr range or phrase queries on
+ * their field, see {@link #toSolr(CQLTermNode)}.
+ */
+public class CQLIndexes {
+
+    public static final String TITLE = "title";
+    public static final String DATE = "date";
+    public static final String PAGENUMBER = "pagenumber";
+
+    /**
+     * The fields of the newspaper-issues index of the DDB-API.
+     */
+    public static final CQLIndexes DEFAULT = new CQLIndexes("paper_title", "publication_date", "pagenumber");
+
+    private final String titleField;
+    private final String dateField;
+    private final String pagenumberField;
+
+    /**
+     * Constructor.
+     *
+     * @param titleField the Solr field of the index <code>title</code>
+     * @param dateField the Solr date field of the index <code>date</code>
+     * @param pagenumberField the Solr numeric field of the index
+     * <code>pagenumber</code>
+     */
+    public CQLIndexes(String titleField, String dateField, String pagenumberField) {
+        this.titleField = titleField;
+        this.dateField = dateField;
+        this.pagenumberField = pagenumberField;
+    }
+
+    /**
+     * Returns whether the term is searched in the full text, i.e. has no
+     * index or <code>cql.serverChoice</code>.
+     *
+     * @param tn the term
+     * @return <code>true</code> for a full-text term
+     */
+    public static boolean isFullText(CQLTermNode tn) {
+        return tn.getIndex() == null || "cql.serverChoice".equalsIgnoreCase(tn.getIndex());
+    }
+
+    /**
+     * Converts a clause on one of the supported indexes to a Solr query on
+     * its field.
+     *
+     * @param tn the clause
+     * @return the Solr query
+     * @throws SRUException if the index, the relation or the value is not
+     * supported
+     */
+    public String toSolr(CQLTermNode tn) throws SRUException {
+        final String index = tn.getIndex().toLowerCase(Locale.ROOT);
+        String relation = tn.getRelation().getBase().toLowerCase(Locale.ROOT);
+        if (relation.startsWith("cql.")) {
+            relation = relation.substring(4);
+        }
+        if (!tn.getRelation().getModifiers().isEmpty()) {
+            throw new SRUException(SRUConstants.SRU_UNSUPPORTED_RELATION_MODIFIER, "Queries with queryType 'cql' do not support relation modifiers by this FCS Endpoint.");
+        }
+        final String value = Normalizer.normalize(tn.getTerm(), Normalizer.Form.NFC).strip();
+
+        switch (index) {
+            case TITLE -> {
+                if (!"=".equals(relation) && !"==".equals(relation)) {
+                    throw unsupportedRelation(index, relation);
+                }
+                return titleField + ":\"" + escapePhrase(value) + "\"";
+            }
+            case DATE -> {
+                return range(dateField, index, relation, value, true);
+            }
+            case PAGENUMBER -> {
+                return range(pagenumberField, index, relation, value, false);
+            }
+            default ->
+                throw new SRUException(SRUConstants.SRU_UNSUPPORTED_INDEX, tn.getIndex(), "Index '" + tn.getIndex() + "' is not supported by this FCS Endpoint.");
+        }
+    }
+
+    /**
+     * Converts a clause on a date or numeric index to a Solr range query. The
+     * bounds are half-open: <code>[lower TO upper}</code>.
+     */
+    private static String range(String field, String index, String relation, String value, boolean date) throws SRUException {
+        if (!date && ("=".equals(relation) || "==".equals(relation))) {
+            return field + ":" + number(index, value);
+        }
+        final String lower;
+        final String upper;
+        switch (relation) {
+            case "=", "==" -> {
+                lower = lower(index, value, date);
+                upper = upper(index, value, date);
+            }
+            case "<" -> {
+                lower = "*";
+                upper = lower(index, value, date);
+            }
+            case "<=" -> {
+                lower = "*";
+                upper = upper(index, value, date);
+            }
+            case ">" -> {
+                lower = upper(index, value, date);
+                upper = "*";
+            }
+            case ">=" -> {
+                lower = lower(index, value, date);
+                upper = "*";
+            }
+            case "within" -> {
+                final String[] bounds = value.split("\\s+");
+                if (bounds.length != 2) {
+                    throw new SRUException(SRUConstants.SRU_QUERY_SYNTAX_ERROR, "Relation 'within' on index '" + index + "' needs two values separated by a space.");
+                }
+                lower = lower(index, bounds[0], date);
+                upper = upper(index, bounds[1], date);
+            }
+            default ->
+                throw unsupportedRelation(index, relation);
+        }
+        return field + ":[" + lower + " TO " + upper + ("*".equals(upper) ? "]" : "}");
+    }
+
+    /**
+     * Returns the first instant (date) or the number itself.
+     */
+    private static String lower(String index, String value, boolean date) throws SRUException {
+        return date ? startOfDate(index, value, false) : Long.toString(number(index, value));
+    }
+
+    /**
+     * Returns the first instant after the period (date) or the next number.
+     */
+    private static String upper(String index, String value, boolean date) throws SRUException {
+        return date ? startOfDate(index, value, true) : Long.toString(number(index, value) + 1);
+    }
+
+    private static long number(String index, String value) throws SRUException {
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            throw new SRUException(SRUConstants.SRU_QUERY_SYNTAX_ERROR, "Index '" + index + "' needs a number, got '" + value + "'.");
+        }
+    }
+
+    /**
+     * Returns the start of a year (<code>1914</code>), month
+     * (<code>1914-08</code>) or day (<code>1914-08-01</code>), or the start of
+     * the following one, as Solr date.
+     */
+    private static String startOfDate(String index, String value, boolean next) throws SRUException {
+        try {
+            final LocalDate start = switch (value.length()) {
+                case 4 ->
+                    next ? Year.parse(value).plusYears(1).atDay(1) : Year.parse(value).atDay(1);
+                case 7 ->
+                    next ? YearMonth.parse(value).plusMonths(1).atDay(1) : YearMonth.parse(value).atDay(1);
+                case 10 ->
+                    next ? LocalDate.parse(value).plusDays(1) : LocalDate.parse(value);
+                default ->
+                    throw new DateTimeParseException("unsupported length", value, 0);
+            };
+            return start + "T00:00:00Z";
+        } catch (DateTimeParseException e) {
+            throw new SRUException(SRUConstants.SRU_QUERY_SYNTAX_ERROR, "Index '" + index + "' needs a year, month or day like 1914, 1914-08 or 1914-08-01, got '" + value + "'.");
+        }
+    }
+
+    private static SRUException unsupportedRelation(String index, String relation) {
+        return new SRUException(SRUConstants.SRU_UNSUPPORTED_RELATION, relation, "Relation '" + relation + "' is not supported on index '" + index + "' by this FCS Endpoint.");
+    }
+
+    /**
+     * Escapes a term for a quoted Solr phrase.
+     */
+    static String escapePhrase(String value) {
+        return value.replace("\\", "\\\\").replace("\"", "\\\"");
+    }
+
+    @Override
+    public String toString() {
+        return TITLE + "=" + titleField + ", " + DATE + "=" + dateField + ", " + PAGENUMBER + "=" + pagenumberField;
+    }
+}
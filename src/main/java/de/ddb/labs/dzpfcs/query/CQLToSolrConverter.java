@@ -16,6 +16,11 @@
  */
 package de.ddb.labs.dzpfcs.query;
 
+import java.text.Normalizer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
 import org.z3950.zing.cql.CQLAndNode;
 import org.z3950.zing.cql.CQLBooleanNode;
 import org.z3950.zing.cql.CQLNode;
@@ -34,22 +39,167 @@ import eu.clarin.sru.server.fcs.parser.QueryParserException;
  */
 public class CQLToSolrConverter {
 
+    /**
+     * Solr query matching all documents, for queries with only filters.
+     */
+    public static final String MATCH_ALL = "*:*";
+
     public static String convertCQLtoSolrQuery(final CQLNode node) throws QueryParserException, SRUException {
+        return convertCQLtoSolrQuery(node, CQLIndexes.DEFAULT);
+    }
+
+    /**
+     * Converts a parsed CQL query to a Solr query as written. Clauses on
+     * {@link CQLIndexes} are part of the query.
+     *
+     * @param node the parsed CQL query
+     * @param indexes the supported indexes and their Solr fields
+     * @return the Solr query
+     * @throws QueryParserException
+     * @throws SRUException if the query uses an unsupported index, relation
+     * or modifier
+     */
+    public static String convertCQLtoSolrQuery(final CQLNode node, final CQLIndexes indexes) throws QueryParserException, SRUException {
         final StringBuilder sb = new StringBuilder();
 
-        convertCQLtoSolrSingle(node, sb);
+        convertCQLtoSolrSingle(node, indexes, sb);
 
         return sb.toString();
     }
 
-    private static void convertCQLtoSolrSingle(final CQLNode node, StringBuilder sb) throws SRUException {
+    /**
+     * Converts a parsed CQL query to a Solr query in canonical form, so
+     * equivalent queries result in the same Solr query and hit the same
+     * cache entries (ours and the Solr <code>queryResultCache</code>):
+     * <ul>
+     * <li>nested AND and OR chains are flattened, e.g. <code>(a AND b) AND
+     * c</code> to <code>a AND b AND c</code>,</li>
+     * <li>operands are sorted and duplicates removed, e.g. <code>b AND a AND
+     * b</code> to <code>a AND b</code>,</li>
+     * <li>terms are normalized to Unicode NFC,</li>
+     * <li>parentheses are only kept around nested chains of the other
+     * operator.</li>
+     * </ul>
+     * Clauses on {@link CQLIndexes} (and OR chains of only such clauses) that
+     * restrict the whole query, i.e. are operands of the top-level AND chain,
+     * become separate filter queries, which Solr caches independently of the
+     * full-text query in its <code>filterCache</code>. Other clauses on
+     * indexes stay part of the query.
+     *
+     * @param node the parsed CQL query
+     * @param indexes the supported indexes and their Solr fields
+     * @return the canonical Solr query, filter queries and hash
+     * @throws SRUException if the query uses an unsupported index, relation
+     * or modifier
+     */
+    public static CanonicalQuery canonicalize(final CQLNode node, final CQLIndexes indexes) throws SRUException {
+        final Canonical root = canonicalizeSingle(node, indexes);
+
+        /* split the restrictions of the whole query off into filter queries */
+        final List<String> filters = new ArrayList<>();
+        final List<Canonical> terms = new ArrayList<>();
+        for (Canonical operand : " AND ".equals(root.operator) ? root.operands : List.of(root)) {
+            if (operand.filter) {
+                filters.add(operand.unparenthesized());
+            } else {
+                terms.add(operand);
+            }
+        }
+
+        final String query;
+        if (terms.isEmpty()) {
+            query = MATCH_ALL;
+        } else if (terms.size() == 1) {
+            query = terms.get(0).unparenthesized();
+        } else {
+            final StringBuilder sb = new StringBuilder();
+            for (Canonical term : terms) {
+                if (!sb.isEmpty()) {
+                    sb.append(" AND ");
+                }
+                sb.append(term.text);
+            }
+            query = sb.toString();
+        }
+        return new CanonicalQuery(query, filters);
+    }
+
+    public static CanonicalQuery canonicalize(final CQLNode node) throws SRUException {
+        return canonicalize(node, CQLIndexes.DEFAULT);
+    }
+
+    /**
+     * A canonicalized sub-tree: a term or a flattened chain of operands of one
+     * operator, sorted and without duplicates.
+     *
+     * @param filter whether the sub-tree consists of clauses on indexes only
+     */
+    private record Canonical(String operator, List<Canonical> operands, String text, boolean filter) {
+
+        /**
+         * Returns the text without the parentheses around a chain.
+         */
+        String unparenthesized() {
+            return operator == null ? text : text.substring(1, text.length() - 1);
+        }
+    }
+
+    private static Canonical canonicalizeSingle(final CQLNode node, final CQLIndexes indexes) throws SRUException {
+        if (node instanceof CQLTermNode) {
+            final CQLTermNode tn = ((CQLTermNode) node);
+            if (!CQLIndexes.isFullText(tn)) {
+                return new Canonical(null, List.of(), indexes.toSolr(tn), true);
+            }
+            return new Canonical(null, List.of(), '"' + CQLIndexes.escapePhrase(Normalizer.normalize(tn.getTerm(), Normalizer.Form.NFC)) + '"', false);
+        } else if (node instanceof CQLOrNode || node instanceof CQLAndNode) {
+            final CQLBooleanNode bn = (CQLBooleanNode) node;
+            if (!bn.getModifiers().isEmpty()) {
+                throw new SRUException(SRUConstants.SRU_CANNOT_PROCESS_QUERY_REASON_UNKNOWN, "Queries with queryType 'cql' do not support modifiers on '" + node.getClass().getSimpleName() + "' by this FCS Endpoint.");
+            }
+            final String operator = node instanceof CQLOrNode ? " OR " : " AND ";
+
+            /* flatten chains of the same operator, sort and remove duplicates by text */
+            final Map<String, Canonical> operands = new TreeMap<>();
+            for (CQLNode child : new CQLNode[]{bn.getLeftOperand(), bn.getRightOperand()}) {
+                final Canonical c = canonicalizeSingle(child, indexes);
+                if (operator.equals(c.operator)) {
+                    for (Canonical operand : c.operands) {
+                        operands.putIfAbsent(operand.text, operand);
+                    }
+                } else {
+                    operands.putIfAbsent(c.text, c);
+                }
+            }
+            if (operands.size() == 1) {
+                // e.g. a AND a
+                return operands.values().iterator().next();
+            }
+
+            boolean filter = true;
+            final StringBuilder sb = new StringBuilder("(");
+            for (Canonical operand : operands.values()) {
+                if (sb.length() > 1) {
+                    sb.append(operator);
+                }
+                sb.append(operand.text);
+                filter &= operand.filter;
+            }
+            sb.append(")");
+            return new Canonical(operator, new ArrayList<>(operands.values()), sb.toString(), filter);
+        } else {
+            throw new SRUException(SRUConstants.SRU_CANNOT_PROCESS_QUERY_REASON_UNKNOWN, "Queries with queryType 'cql' do not support '" + node.getClass().getSimpleName() + "' by this FCS Endpoint.");
+        }
+    }
+
+    private static void convertCQLtoSolrSingle(final CQLNode node, final CQLIndexes indexes, StringBuilder sb) throws SRUException {
         if (node instanceof CQLTermNode) {
             final CQLTermNode tn = ((CQLTermNode) node);
-            if (tn.getIndex() != null && !"cql.serverChoice".equalsIgnoreCase(tn.getIndex())) {
-                throw new SRUException(SRUConstants.SRU_CANNOT_PROCESS_QUERY_REASON_UNKNOWN, "Queries with queryType 'cql' do not support index/relation on '" + node.getClass().getSimpleName() + "' by this FCS Endpoint.");
+            if (!CQLIndexes.isFullText(tn)) {
+                sb.append(indexes.toSolr(tn));
+                return;
             }
             sb.append('"');
-            sb.append(tn.getTerm());
+            sb.append(CQLIndexes.escapePhrase(tn.getTerm()));
             sb.append('"');
         } else if (node instanceof CQLOrNode || node instanceof CQLAndNode) {
             final CQLBooleanNode bn = (CQLBooleanNode) node;
@@ -57,13 +207,13 @@ public class CQLToSolrConverter {
                 throw new SRUException(SRUConstants.SRU_CANNOT_PROCESS_QUERY_REASON_UNKNOWN, "Queries with queryType 'cql' do not support modifiers on '" + node.getClass().getSimpleName() + "' by this FCS Endpoint.");
             }
             sb.append("(");
-            convertCQLtoSolrSingle(bn.getLeftOperand(), sb);
+            convertCQLtoSolrSingle(bn.getLeftOperand(), indexes, sb);
             if (node instanceof CQLOrNode) {
                 sb.append(" OR ");
             } else if (node instanceof CQLAndNode) {
                 sb.append(" AND ");
             }
-            convertCQLtoSolrSingle(bn.getRightOperand(), sb);
+            convertCQLtoSolrSingle(bn.getRightOperand(), indexes, sb);
             sb.append(")");
         } else {
             throw new SRUException(SRUConstants.SRU_CANNOT_PROCESS_QUERY_REASON_UNKNOWN, "Queries with queryType 'cql' do not support '" + node.getClass().getSimpleName() + "' by this FCS Endpoint.");
@@ -0,0 +1,79 @@
+/*
+ * Copyright 2023-2025 Michael Büchner, Deutsche Digitale Bibliothek
+ *
+ * This program is free software: you can redistribute it and/or modify 
+ * it under the terms of the GNU General Public License as published by 
+ * the Free Software Foundation, either version 3 of the License, or 
+ * (at your option) any later version. 
+ *  
+ * This program is distributed in the hope that it will be useful, 
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of 
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the 
+ * GNU General Public License for more details. 
+ * 
+ * You should have received a copy of the GNU General Public License 
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.ddb.labs.dzpfcs.query;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.HexFormat;
+import java.util.List;
+
+/**
+ * A Solr query in canonical form (see
+ * {@link CQLToSolrConverter#canonicalize(org.z3950.zing.cql.CQLNode)}):
+ * equivalent CQL queries like <code>a AND b</code>, <code>b AND a</code> and
+ * <code>(a AND b) AND a</code> have the same canonical query and hash.
+ *
+ * @param query the canonical Solr query
+ * @param filters the canonical Solr filter queries, sorted
+ * @param hash the hash of the canonical query and filter queries, see
+ * {@link #hash(String)}
+ */
+public record CanonicalQuery(String query, List<String> filters, String hash) {
+
+    /**
+     * Number of bytes of the SHA-256 digest used for the hash.
+     */
+    private static final int HASH_BYTES = 16;
+
+    /**
+     * Separates the query and the filter queries in the input of the hash.
+     */
+    private static final char SEPARATOR = '\u0000';
+
+    public CanonicalQuery {
+        filters = List.copyOf(filters);
+    }
+
+    public CanonicalQuery(String query, List<String> filters) {
+        this(query, filters, hash(filters.isEmpty() ? query : query + SEPARATOR + String.join(String.valueOf(SEPARATOR), filters)));
+    }
+
+    /**
+     * Returns a hash of a Solr query usable as cache key: the hex-encoded
+     * first 128 bits of its SHA-256 digest. Stable across restarts and JVMs,
+     * unlike {@link String#hashCode()}.
+     *
+     * @param query the Solr query
+     * @return 32 hex digits
+     */
+    public static String hash(String query) {
+        try {
+            final byte[] digest = MessageDigest.getInstance("SHA-256").digest(query.getBytes(StandardCharsets.UTF_8));
+            return HexFormat.of().formatHex(Arrays.copyOf(digest, HASH_BYTES));
+        } catch (NoSuchAlgorithmException e) {
+            // every JVM supports SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return (filters.isEmpty() ? query : query + " fq=" + filters) + " #" + hash;
+    }
+}
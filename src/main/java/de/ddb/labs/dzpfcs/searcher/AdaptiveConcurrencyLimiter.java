@@ -0,0 +1,176 @@
+/*
+ * Copyright 2023-2025 Michael Büchner, Deutsche Digitale Bibliothek
+ *
+ * This program is free software: you can redistribute it and/or modify 
+ * it under the terms of the GNU General Public License as published by 
+ * the Free Software Foundation, either version 3 of the License, or 
+ * (at your option) any later version. 
+ *  
+ * This program is distributed in the hope that it will be useful, 
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of 
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the 
+ * GNU General Public License for more details. 
+ * 
+ * You should have received a copy of the GNU General Public License 
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.ddb.labs.dzpfcs.searcher;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Limits the number of concurrent requests to the Solr endpoint with a limit
+ * that adapts to the observed latency (AIMD).
+ * <p>
+ * The limit grows by one per window of successful requests as long as the
+ * latency stays within <code>tolerance</code> times the long-term average
+ * latency. It is decreased multiplicatively if a request fails or takes
+ * longer, at most once per cool-down period. Requests that cannot get a
+ * permit within the maximum wait time are rejected instead of being queued.
+ * </p>
+ */
+public class AdaptiveConcurrencyLimiter {
+
+    private static final double BACKOFF_RATIO = 0.9;
+    private static final double TOLERANCE = 2.0;
+    private static final double LONG_RTT_ALPHA = 0.01;
+    private static final long COOLDOWN_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition released = lock.newCondition();
+
+    private final int minLimit;
+    private final int maxLimit;
+    private final long maxWaitNanos;
+
+    private double limit;
+    private int inFlight = 0;
+    private double longRttNanos = 0;
+    private long lastDecrease = 0;
+    private long rejected = 0;
+
+    /**
+     * Constructor.
+     *
+     * @param initialLimit the initial limit
+     * @param minLimit the lower bound of the limit
+     * @param maxLimit the upper bound of the limit
+     * @param maxWaitMillis maximum time to wait for a permit
+     */
+    public AdaptiveConcurrencyLimiter(int initialLimit, int minLimit, int maxLimit, long maxWaitMillis) {
+        this.minLimit = Math.max(1, minLimit);
+        this.maxLimit = Math.max(this.minLimit, maxLimit);
+        this.limit = Math.min(this.maxLimit, Math.max(this.minLimit, initialLimit));
+        this.maxWaitNanos = TimeUnit.MILLISECONDS.toNanos(maxWaitMillis);
+    }
+
+    /**
+     * Acquire a permit for a request, waiting at most the configured maximum
+     * wait time.
+     *
+     * @return <code>true</code> if a permit was acquired, <code>false</code>
+     * if the request should be rejected
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public boolean tryAcquire() throws InterruptedException {
+        long remaining = maxWaitNanos;
+        lock.lock();
+        try {
+            while (inFlight >= (int) limit) {
+                if (remaining <= 0) {
+                    rejected++;
+                    return false;
+                }
+                remaining = released.awaitNanos(remaining);
+            }
+            inFlight++;
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Release a permit after a successful request and adapt the limit to its
+     * latency.
+     *
+     * @param rttNanos the latency of the request
+     */
+    public void onSuccess(long rttNanos) {
+        lock.lock();
+        try {
+            longRttNanos = longRttNanos == 0 ? rttNanos : (1 - LONG_RTT_ALPHA) * longRttNanos + LONG_RTT_ALPHA * rttNanos;
+            if (rttNanos > TOLERANCE * longRttNanos) {
+                decrease();
+            } else if (inFlight >= (int) limit / 2) {
+                // only grow if the limit is actually used
+                limit = Math.min(maxLimit, limit + 1.0 / limit);
+            }
+            release();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Release a permit after a failed request (error or timeout) and decrease
+     * the limit.
+     */
+    public void onDropped() {
+        lock.lock();
+        try {
+            decrease();
+            release();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Release a permit without adapting the limit, e.g. for cancelled
+     * requests.
+     */
+    public void onIgnore() {
+        lock.lock();
+        try {
+            release();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void decrease() {
+        final long now = System.nanoTime();
+        if (now - lastDecrease >= COOLDOWN_NANOS) {
+            limit = Math.max(minLimit, limit * BACKOFF_RATIO);
+            lastDecrease = now;
+        }
+    }
+
+    private void release() {
+        inFlight--;
+        released.signalAll();
+    }
+
+    public int getLimit() {
+        return (int) limit;
+    }
+
+    public int getMinLimit() {
+        return minLimit;
+    }
+
+    public int getMaxLimit() {
+        return maxLimit;
+    }
+
+    public int getInFlight() {
+        return inFlight;
+    }
+
+    public long getRejected() {
+        return rejected;
+    }
+}
@@ -0,0 +1,270 @@
+/*
+ * Copyright 2023-2025 Michael Büchner, Deutsche Digitale Bibliothek
+ *
+ * This program is free software: you can redistribute it and/or modify 
+ * it under the terms of the GNU General Public License as published by 
+ * the Free Software Foundation, either version 3 of the License, or 
+ * (at your option) any later version. 
+ *  
+ * This program is distributed in the hope that it will be useful, 
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of 
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the 
+ * GNU General Public License for more details. 
+ * 
+ * You should have received a copy of the GNU General Public License 
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.ddb.labs.dzpfcs.searcher;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Circuit breaker for the requests to the Solr endpoint, so a degraded
+ * endpoint makes requests fail fast instead of holding threads until the read
+ * timeout.
+ * <p>
+ * While <em>closed</em>, the outcomes of the last requests are kept in a
+ * sliding window. If the share of failed or of slow requests in the window
+ * exceeds its threshold, the breaker <em>opens</em> and rejects all requests
+ * for the open duration. Afterwards it is <em>half-open</em> and lets a few
+ * probe requests through: if all of them succeed in time it closes again,
+ * otherwise it opens for another period.
+ * </p>
+ * <p>
+ * Each permit carries the generation of the state it was granted in, and an
+ * outcome only counts in that state. A request sent while closed that returns
+ * after the breaker opened and became half-open is not taken for a probe.
+ * </p>
+ */
+public class CircuitBreaker {
+
+    /**
+     * State of the breaker.
+     */
+    public enum State {
+        CLOSED, OPEN, HALF_OPEN
+    }
+
+    /**
+     * Returned by {@link #tryAcquire()} if the request should be rejected.
+     */
+    public static final long NO_PERMIT = -1;
+
+    private static final byte SUCCESS = 0;
+    private static final byte FAILURE = 1;
+    private static final byte SLOW = 2;
+
+    private final ReentrantLock lock = new ReentrantLock();
+
+    private final int minCalls;
+    private final double failureRateThreshold;
+    private final long slowCallNanos;
+    private final double slowCallRateThreshold;
+    private final long openNanos;
+    private final int halfOpenProbes;
+
+    /**
+     * Outcomes of the last requests while closed, a ring buffer.
+     */
+    private final byte[] window;
+    private int windowPos = 0;
+    private int calls = 0;
+    private int failures = 0;
+    private int slowCalls = 0;
+
+    private volatile State state = State.CLOSED;
+    /**
+     * Incremented with every transition, so permits are tagged with the state
+     * they were granted in.
+     */
+    private long generation = 0;
+    private long openedAt = 0;
+    private int probesInFlight = 0;
+    private int probesSucceeded = 0;
+
+    private final long[] transitions = new long[State.values().length];
+    private long rejected = 0;
+
+    /**
+     * Constructor.
+     *
+     * @param windowSize number of requests in the sliding window
+     * @param minCalls minimum number of requests in the window before the
+     * breaker can open
+     * @param failureRateThreshold share of failed requests (0-1) that opens
+     * the breaker
+     * @param slowCallMillis duration from which a request counts as slow
+     * @param slowCallRateThreshold share of slow requests (0-1) that opens the
+     * breaker
+     * @param openMillis time the breaker stays open before probing
+     * @param halfOpenProbes number of probe requests while half-open
+     */
+    public CircuitBreaker(int windowSize, int minCalls, double failureRateThreshold, long slowCallMillis, double slowCallRateThreshold, long openMillis, int halfOpenProbes) {
+        this.window = new byte[Math.max(1, windowSize)];
+        this.minCalls = Math.max(1, Math.min(minCalls, window.length));
+        this.failureRateThreshold = failureRateThreshold;
+        this.slowCallNanos = TimeUnit.MILLISECONDS.toNanos(slowCallMillis);
+        this.slowCallRateThreshold = slowCallRateThreshold;
+        this.openNanos = TimeUnit.MILLISECONDS.toNanos(openMillis);
+        this.halfOpenProbes = Math.max(1, halfOpenProbes);
+    }
+
+    /**
+     * Ask for permission to send a request. Every permitted request must be
+     * reported with {@link #onSuccess(long, long)}, {@link #onDropped(long)} or
+     * {@link #onIgnore(long)}.
+     *
+     * @return the permit if the request may be sent, {@link #NO_PERMIT} if it
+     * should be rejected
+     */
+    public long tryAcquire() {
+        lock.lock();
+        try {
+            if (state == State.OPEN && System.nanoTime() - openedAt >= openNanos) {
+                transition(State.HALF_OPEN);
+            }
+            switch (state) {
+                case CLOSED -> {
+                    return generation;
+                }
+                case HALF_OPEN -> {
+                    if (probesInFlight + probesSucceeded < halfOpenProbes) {
+                        probesInFlight++;
+                        return generation;
+                    }
+                }
+                default -> {
+                }
+            }
+            rejected++;
+            return NO_PERMIT;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Report a successful request.
+     *
+     * @param permit the permit of the request
+     * @param rttNanos the latency of the request
+     */
+    public void onSuccess(long permit, long rttNanos) {
+        record(permit, rttNanos > slowCallNanos ? SLOW : SUCCESS);
+    }
+
+    /**
+     * Report a failed request (error or timeout).
+     *
+     * @param permit the permit of the request
+     */
+    public void onDropped(long permit) {
+        record(permit, FAILURE);
+    }
+
+    /**
+     * Report a request without outcome, e.g. a cancelled request.
+     *
+     * @param permit the permit of the request
+     */
+    public void onIgnore(long permit) {
+        lock.lock();
+        try {
+            if (permit == generation && state == State.HALF_OPEN && probesInFlight > 0) {
+                probesInFlight--;
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void record(long permit, byte outcome) {
+        lock.lock();
+        try {
+            if (permit != generation) {
+                // late outcome of a request granted in an earlier state
+                return;
+            }
+            switch (state) {
+                case CLOSED -> {
+                    if (calls == window.length) {
+                        count(window[windowPos], -1);
+                    } else {
+                        calls++;
+                    }
+                    window[windowPos] = outcome;
+                    windowPos = (windowPos + 1) % window.length;
+                    count(outcome, 1);
+                    if (calls >= minCalls
+                            && (failures >= failureRateThreshold * calls || slowCalls >= slowCallRateThreshold * calls)) {
+                        transition(State.OPEN);
+                    }
+                }
+                case HALF_OPEN -> {
+                    if (probesInFlight > 0) {
+                        probesInFlight--;
+                    }
+                    if (outcome != SUCCESS) {
+                        transition(State.OPEN);
+                    } else if (++probesSucceeded >= halfOpenProbes) {
+                        transition(State.CLOSED);
+                    }
+                }
+                default -> {
+                    // no permits are granted while open
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void count(byte outcome, int delta) {
+        if (outcome == FAILURE) {
+            failures += delta;
+        } else if (outcome == SLOW) {
+            slowCalls += delta;
+        }
+    }
+
+    private void transition(State to) {
+        state = to;
+        generation++;
+        transitions[to.ordinal()]++;
+        probesInFlight = 0;
+        probesSucceeded = 0;
+        if (to == State.OPEN) {
+            openedAt = System.nanoTime();
+        } else if (to == State.CLOSED) {
+            windowPos = 0;
+            calls = 0;
+            failures = 0;
+            slowCalls = 0;
+        }
+    }
+
+    /**
+     * Returns the current state. An open breaker changes to half-open with
+     * the first request after the open duration.
+     *
+     * @return the state
+     */
+    public State getState() {
+        return state;
+    }
+
+    /**
+     * Returns how often the breaker changed into <code>state</code>.
+     *
+     * @param state the target state
+     * @return the number of transitions
+     */
+    public long getTransitions(State state) {
+        return transitions[state.ordinal()];
+    }
+
+    public long getRejected() {
+        return rejected;
+    }
+}
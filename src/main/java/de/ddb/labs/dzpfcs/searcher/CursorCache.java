@@ -0,0 +1,126 @@
+/*
+ * Copyright 2023-2025 Michael Büchner, Deutsche Digitale Bibliothek
+ *
+ * This program is free software: you can redistribute it and/or modify 
+ * it under the terms of the GNU General Public License as published by 
+ * the Free Software Foundation, either version 3 of the License, or 
+ * (at your option) any later version. 
+ *  
+ * This program is distributed in the hope that it will be useful, 
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of 
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the 
+ * GNU General Public License for more details. 
+ * 
+ * You should have received a copy of the GNU General Public License 
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.ddb.labs.dzpfcs.searcher;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import de.ddb.labs.dzpfcs.metrics.DzpMetrics;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import java.time.Duration;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * Remembers Solr <code>cursorMark</code>s per query and offset, so sequential
+ * paging (e.g. by harvesters) continues from the cursor of the previous page
+ * instead of letting Solr collect and sort all hits before a deep offset.
+ * <p>
+ * The cache is bounded in the number of queries and in the number of cursors
+ * per query. When a query has too many cursors, the ones with the lowest
+ * offsets are dropped first, as they are the cheapest to page to without a
+ * cursor.
+ * </p>
+ */
+public class CursorCache {
+
+    /**
+     * Cursor mark of the first page.
+     */
+    public static final String START = "*";
+
+    private final Cache<SolrQuery, NavigableMap<Integer, String>> cursors;
+
+    private final int maxCursorsPerQuery;
+
+    private final int threshold;
+
+    private final int maxWalk;
+
+    /**
+     * Constructor.
+     *
+     * @param maxQueries maximum number of queries to keep cursors for
+     * @param maxCursorsPerQuery maximum number of cursors per query
+     * @param ttl time-to-live of the cursors of a query after its last access
+     * @param threshold offset from which a missing cursor is created by
+     * walking from the nearest known cursor
+     * @param maxWalk maximum number of records to walk to create a missing
+     * cursor
+     */
+    public CursorCache(int maxQueries, int maxCursorsPerQuery, Duration ttl, int threshold, int maxWalk) {
+        this.cursors = Caffeine.newBuilder()
+                .maximumSize(maxQueries)
+                .expireAfterAccess(ttl)
+                .recordStats()
+                .build();
+        this.maxCursorsPerQuery = Math.max(1, maxCursorsPerQuery);
+        this.threshold = threshold;
+        this.maxWalk = maxWalk;
+        CaffeineCacheMetrics.monitor(DzpMetrics.getRegistry(), cursors, "cursors");
+    }
+
+    /**
+     * Returns the cursor mark for the page of <code>query</code> starting at
+     * <code>offset</code>.
+     *
+     * @param query the converted Solr query
+     * @param offset zero-based offset of the page
+     * @return the cursor mark or <code>null</code> if none is known
+     */
+    public String get(SolrQuery query, int offset) {
+        if (offset == 0) {
+            return START;
+        }
+        final NavigableMap<Integer, String> marks = cursors.getIfPresent(query);
+        return marks != null ? marks.get(offset) : null;
+    }
+
+    /**
+     * Returns the known cursor with the greatest offset less than or equal to
+     * <code>offset</code>.
+     *
+     * @param query the converted Solr query
+     * @param offset zero-based offset
+     * @return offset and cursor mark, the start of the results if none is
+     * known
+     */
+    public Map.Entry<Integer, String> floor(SolrQuery query, int offset) {
+        final NavigableMap<Integer, String> marks = cursors.getIfPresent(query);
+        final Map.Entry<Integer, String> entry = marks != null ? marks.floorEntry(offset) : null;
+        return entry != null ? entry : Map.entry(0, START);
+    }
+
+    public void put(SolrQuery query, int offset, String cursorMark) {
+        if (offset <= 0 || cursorMark == null) {
+            return;
+        }
+        final NavigableMap<Integer, String> marks = cursors.get(query, q -> new ConcurrentSkipListMap<>());
+        marks.put(offset, cursorMark);
+        while (marks.size() > maxCursorsPerQuery) {
+            marks.pollFirstEntry();
+        }
+    }
+
+    public int getThreshold() {
+        return threshold;
+    }
+
+    public int getMaxWalk() {
+        return maxWalk;
+    }
+}
@@ -0,0 +1,123 @@
+/*
+ * Copyright 2023-2025 Michael Büchner, Deutsche Digitale Bibliothek
+ *
+ * This program is free software: you can redistribute it and/or modify 
+ * it under the terms of the GNU General Public License as published by 
+ * the Free Software Foundation, either version 3 of the License, or 
+ * (at your option) any later version. 
+ *  
+ * This program is distributed in the hope that it will be useful, 
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of 
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the 
+ * GNU General Public License for more details. 
+ * 
+ * You should have received a copy of the GNU General Public License 
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.ddb.labs.dzpfcs.searcher;
+
+import io.micrometer.core.instrument.Timer;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Decides when to send a second, identical request to the Solr endpoint
+ * because the first one takes unusually long (hedged request).
+ * <p>
+ * The delay is a percentile of the latencies of the last successful requests
+ * of the same kind (count, page, ...), so only the slowest requests are
+ * hedged and the additional load stays around <code>1 - percentile</code>.
+ * Until enough latencies are known, requests are not hedged.
+ * </p>
+ */
+public class HedgingPolicy {
+
+    /**
+     * Number of latencies kept per kind of request.
+     */
+    private static final int SAMPLES = 1000;
+
+    /**
+     * Minimum number of latencies before requests are hedged.
+     */
+    private static final int MIN_SAMPLES = 100;
+
+    /**
+     * The percentile is recomputed after this many new latencies.
+     */
+    private static final int RECOMPUTE_EVERY = 50;
+
+    private final double percentile;
+
+    private final long minDelayNanos;
+
+    private final Map<Timer, Latencies> latencies = new ConcurrentHashMap<>();
+
+    /**
+     * Constructor.
+     *
+     * @param percentile percentile (0-1) of the latencies after which a
+     * request is hedged
+     * @param minDelayMillis lower bound of the delay
+     */
+    public HedgingPolicy(double percentile, long minDelayMillis) {
+        this.percentile = Math.min(1.0, Math.max(0.0, percentile));
+        this.minDelayNanos = TimeUnit.MILLISECONDS.toNanos(minDelayMillis);
+    }
+
+    /**
+     * Returns the delay after which a request of the kind <code>phase</code>
+     * is hedged.
+     *
+     * @param phase the timer of the kind of request
+     * @return the delay in nanoseconds or <code>-1</code> to not hedge
+     */
+    public long delayNanos(Timer phase) {
+        final Latencies l = latencies.get(phase);
+        final long p = l != null ? l.percentileNanos : -1;
+        return p < 0 ? -1 : Math.max(minDelayNanos, p);
+    }
+
+    /**
+     * Record the latency of a successful request.
+     *
+     * @param phase the timer of the kind of request
+     * @param nanos the latency until the response was decoded
+     */
+    public void record(Timer phase, long nanos) {
+        latencies.computeIfAbsent(phase, k -> new Latencies()).add(nanos);
+    }
+
+    /**
+     * The last latencies of one kind of request and their percentile.
+     */
+    private final class Latencies {
+
+        private final ReentrantLock lock = new ReentrantLock();
+        private final long[] samples = new long[SAMPLES];
+        private int count = 0;
+        private int pos = 0;
+        private int sinceRecompute = 0;
+        private volatile long percentileNanos = -1;
+
+        private void add(long nanos) {
+            lock.lock();
+            try {
+                samples[pos] = nanos;
+                pos = (pos + 1) % samples.length;
+                count = Math.min(count + 1, samples.length);
+                if (count >= MIN_SAMPLES && ++sinceRecompute >= RECOMPUTE_EVERY) {
+                    sinceRecompute = 0;
+                    final long[] sorted = Arrays.copyOf(samples, count);
+                    Arrays.sort(sorted);
+                    percentileNanos = sorted[(int) Math.max(0, Math.min(count - 1, Math.ceil(percentile * count) - 1))];
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+}
@@ -0,0 +1,516 @@
+/*
+ * Copyright 2023-2025 Michael Büchner, Deutsche Digitale Bibliothek
+ *
+ * This program is free software: you can redistribute it and/or modify 
+ * it under the terms of the GNU General Public License as published by 
+ * the Free Software Foundation, either version 3 of the License, or 
+ * (at your option) any later version. 
+ *  
+ * This program is distributed in the hope that it will be useful, 
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of 
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the 
+ * GNU General Public License for more details. 
+ * 
+ * You should have received a copy of the GNU General Public License 
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.ddb.labs.dzpfcs.searcher;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Single-pass decoder for Solr responses in the binary
+ * <code>wt=javabin</code> format (version 2), without a dependency on SolrJ.
+ * <p>
+ * Like {@link SolrResponseDecoder} it reads only the number of hits, the
+ * documents, the <code>plainpagefulltext</code> snippets and the
+ * <code>nextCursorMark</code> into a {@link SolrResponseBuilder}. All other
+ * sections are read generically and dropped; they still have to be read,
+ * because later values may refer to strings defined in them.
+ * </p>
+ */
+public final class JavaBinResponseDecoder {
+
+    /**
+     * Content type of javabin responses.
+     */
+    public static final String CONTENT_TYPE = "application/octet-stream";
+
+    private static final int VERSION = 2;
+
+    private static final String HIGHLIGHT_FIELD = "plainpagefulltext";
+
+    // types in the lower 5 bits of a tag
+    private static final int NULL = 0;
+    private static final int BOOL_TRUE = 1;
+    private static final int BOOL_FALSE = 2;
+    private static final int BYTE = 3;
+    private static final int SHORT = 4;
+    private static final int DOUBLE = 5;
+    private static final int INT = 6;
+    private static final int LONG = 7;
+    private static final int FLOAT = 8;
+    private static final int DATE = 9;
+    private static final int MAP = 10;
+    private static final int SOLRDOC = 11;
+    private static final int SOLRDOCLST = 12;
+    private static final int BYTEARR = 13;
+    private static final int ITERATOR = 14;
+    private static final int END = 15;
+    private static final int MAP_ENTRY_ITER = 17;
+    private static final int ENUM_FIELD_VALUE = 18;
+    private static final int MAP_ENTRY = 19;
+    private static final int UUID = 20;
+
+    // types in the upper 3 bits of a tag, the lower 5 bits hold a size
+    private static final int STR = 1;
+    private static final int SINT = 2;
+    private static final int SLONG = 3;
+    private static final int ARR = 4;
+    private static final int ORDERED_MAP = 5;
+    private static final int NAMED_LST = 6;
+    private static final int EXTERN_STRING = 7;
+
+    private final InputStream in;
+
+    private final byte[] buffer = new byte[8192];
+
+    private int pos = 0;
+
+    private int limit = 0;
+
+    /**
+     * Strings defined once and referenced by index afterwards.
+     */
+    private final List<String> externStrings = new ArrayList<>();
+
+    private int tag;
+
+    private byte[] bytes = new byte[256];
+
+    private JavaBinResponseDecoder(InputStream in) {
+        this.in = in;
+    }
+
+    /**
+     * Decode a Solr javabin response. The stream is not closed.
+     *
+     * @param in the response body
+     * @return the decoded response
+     * @throws IOException if the response could not be read or is not a valid
+     * Solr response
+     */
+    public static SolrResponse decode(InputStream in) throws IOException {
+        return new JavaBinResponseDecoder(in).decode();
+    }
+
+    private SolrResponse decode() throws IOException {
+        final int version = readUnsignedByte();
+        if (version != VERSION) {
+            throw new IOException("Unsupported javabin version " + version);
+        }
+        readTag();
+        if (!isNamedList()) {
+            throw new IOException("Solr javabin response is not a named list");
+        }
+
+        final SolrResponseBuilder builder = new SolrResponseBuilder();
+        final int size = readSize();
+        for (int i = 0; i < size; i++) {
+            final String name = readName();
+            readTag();
+            switch (name) {
+                case "response" -> {
+                    if (tag == SOLRDOCLST) {
+                        readDocList(builder);
+                    } else {
+                        readObject();
+                    }
+                }
+                case "highlighting" -> {
+                    if (isNamedList()) {
+                        readHighlighting(builder);
+                    } else {
+                        readObject();
+                    }
+                }
+                case "responseHeader" -> {
+                    if (readObject() instanceof Map<?, ?> header && header.get("QTime") instanceof Number qTime) {
+                        builder.qTime(qTime.intValue());
+                    }
+                }
+                case "nextCursorMark" ->
+                    builder.nextCursorMark(scalar(readObject()));
+                default ->
+                    readObject();
+            }
+        }
+        return builder.build();
+    }
+
+    /**
+     * Reads a document list: a header <code>[numFound, start, maxScore,
+     * numFoundExact]</code> followed by the documents.
+     */
+    private void readDocList(SolrResponseBuilder builder) throws IOException {
+        readTag();
+        final Object header = readObject();
+        if (!(header instanceof List<?> list) || list.isEmpty() || !(list.get(0) instanceof Number numFound)) {
+            throw new IOException("Solr javabin response contains no 'response.numFound'");
+        }
+        builder.numFound(numFound.longValue());
+
+        readTag();
+        if (tag >>> 5 == ARR) {
+            final int size = readSize();
+            for (int i = 0; i < size; i++) {
+                readTag();
+                readDocument(builder);
+            }
+        } else if (tag == ITERATOR) {
+            while (readTag() != END) {
+                readDocument(builder);
+            }
+        } else {
+            throw new IOException("Unexpected javabin tag " + tag + " for 'response.docs'");
+        }
+    }
+
+    private void readDocument(SolrResponseBuilder builder) throws IOException {
+        if (tag != SOLRDOC) {
+            readObject();
+            return;
+        }
+        readTag();
+        final SolrResponseBuilder.Doc doc = new SolrResponseBuilder.Doc();
+        final int size = readSize();
+        for (int i = 0; i < size; i++) {
+            readTag();
+            final Object key = readObject();
+            if (!(key instanceof String field)) {
+                // child document
+                continue;
+            }
+            readTag();
+            switch (field) {
+                case "id" ->
+                    doc.id = scalar(readObject());
+                case "paper_title" ->
+                    doc.paper_title = scalar(readObject());
+                case "pagenumber" ->
+                    doc.pagenumber = scalar(readObject());
+                default ->
+                    readObject();
+            }
+        }
+        builder.doc(doc);
+    }
+
+    /**
+     * Reads <code>{id: {plainpagefulltext: [snippet, ...]}, ...}</code>.
+     */
+    private void readHighlighting(SolrResponseBuilder builder) throws IOException {
+        final int size = readSize();
+        for (int i = 0; i < size; i++) {
+            final String id = readName();
+            readTag();
+            final List<String> snippets = new ArrayList<>(1);
+            if (isNamedList()) {
+                final int fields = readSize();
+                for (int f = 0; f < fields; f++) {
+                    final String field = readName();
+                    readTag();
+                    final Object value = readObject();
+                    if (HIGHLIGHT_FIELD.equals(field) && value instanceof List<?> list) {
+                        for (Object snippet : list) {
+                            if (snippet instanceof String s) {
+                                snippets.add(s);
+                            }
+                        }
+                    }
+                }
+            } else {
+                readObject();
+            }
+            builder.snippets(id, snippets);
+        }
+    }
+
+    private int readTag() throws IOException {
+        tag = readUnsignedByte();
+        return tag;
+    }
+
+    private boolean isNamedList() {
+        return tag >>> 5 == ORDERED_MAP || tag >>> 5 == NAMED_LST;
+    }
+
+    private String readName() throws IOException {
+        readTag();
+        final Object name = readObject();
+        if (!(name instanceof String s)) {
+            throw new IOException("Expected a name in javabin response but got " + name);
+        }
+        return s;
+    }
+
+    /**
+     * Reads the value of the current tag.
+     */
+    private Object readObject() throws IOException {
+        switch (tag >>> 5) {
+            case STR:
+                return readString(readSize());
+            case SINT: {
+                int v = tag & 0x0f;
+                if ((tag & 0x10) != 0) {
+                    v = (readVInt() << 4) | v;
+                }
+                return v;
+            }
+            case SLONG: {
+                long v = tag & 0x0f;
+                if ((tag & 0x10) != 0) {
+                    v = (readVLong() << 4) | v;
+                }
+                return v;
+            }
+            case ARR: {
+                final int size = readSize();
+                final List<Object> list = new ArrayList<>(size);
+                for (int i = 0; i < size; i++) {
+                    readTag();
+                    list.add(readObject());
+                }
+                return list;
+            }
+            case ORDERED_MAP:
+            case NAMED_LST: {
+                final int size = readSize();
+                final Map<String, Object> map = new LinkedHashMap<>();
+                for (int i = 0; i < size; i++) {
+                    final String name = readName();
+                    readTag();
+                    map.put(name, readObject());
+                }
+                return map;
+            }
+            case EXTERN_STRING: {
+                final int index = readSize();
+                if (index != 0) {
+                    return externStrings.get(index - 1);
+                }
+                readTag();
+                final String s = (String) readObject();
+                externStrings.add(s);
+                return s;
+            }
+            default:
+                break;
+        }
+
+        switch (tag) {
+            case NULL:
+                return null;
+            case BOOL_TRUE:
+                return Boolean.TRUE;
+            case BOOL_FALSE:
+                return Boolean.FALSE;
+            case BYTE:
+                return (byte) readUnsignedByte();
+            case SHORT:
+                return (short) ((readUnsignedByte() << 8) | readUnsignedByte());
+            case DOUBLE:
+                return Double.longBitsToDouble(readLong());
+            case INT:
+                return readInt();
+            case LONG:
+            case DATE:
+                return readLong();
+            case FLOAT:
+                return Float.intBitsToFloat(readInt());
+            case MAP:
+            case MAP_ENTRY_ITER:
+            case SOLRDOC:
+                return readMap();
+            case SOLRDOCLST: {
+                readTag();
+                final Object header = readObject();
+                readTag();
+                return List.of(header, readObject());
+            }
+            case BYTEARR: {
+                final int length = readVInt();
+                skip(length);
+                return null;
+            }
+            case ITERATOR: {
+                final List<Object> list = new ArrayList<>();
+                while (readTag() != END) {
+                    list.add(readObject());
+                }
+                return list;
+            }
+            case ENUM_FIELD_VALUE: {
+                readTag();
+                readObject();
+                readTag();
+                return readObject();
+            }
+            case MAP_ENTRY: {
+                readTag();
+                final Object key = readObject();
+                readTag();
+                return Map.entry(String.valueOf(key), String.valueOf(readObject()));
+            }
+            case UUID:
+                return new java.util.UUID(readLong(), readLong());
+            default:
+                throw new IOException("Unknown javabin tag " + tag);
+        }
+    }
+
+    /**
+     * Reads a map or a document.
+     */
+    private Map<Object, Object> readMap() throws IOException {
+        final Map<Object, Object> map = new LinkedHashMap<>();
+        switch (tag) {
+            case MAP -> {
+                final int size = readVInt();
+                for (int i = 0; i < size; i++) {
+                    readTag();
+                    final Object key = readObject();
+                    readTag();
+                    map.put(key, readObject());
+                }
+            }
+            case MAP_ENTRY_ITER -> {
+                while (readTag() != END) {
+                    final Object key = readObject();
+                    readTag();
+                    map.put(key, readObject());
+                }
+            }
+            default -> {
+                // SOLRDOC: a named list of fields and child documents
+                readTag();
+                final int size = readSize();
+                for (int i = 0; i < size; i++) {
+                    readTag();
+                    final Object key = readObject();
+                    if (key instanceof String) {
+                        readTag();
+                        map.put(key, readObject());
+                    }
+                }
+            }
+        }
+        return map;
+    }
+
+    private String readString(int length) throws IOException {
+        if (bytes.length < length) {
+            bytes = new byte[Math.max(length, bytes.length * 2)];
+        }
+        if (limit - pos >= length) {
+            final String s = new String(buffer, pos, length, StandardCharsets.UTF_8);
+            pos += length;
+            return s;
+        }
+        if (bytes.length < length) {
+            bytes = new byte[Math.max(length, bytes.length * 2)];
+        }
+        for (int n = 0; n < length;) {
+            if (pos == limit) {
+                fill();
+            }
+            final int chunk = Math.min(length - n, limit - pos);
+            System.arraycopy(buffer, pos, bytes, n, chunk);
+            pos += chunk;
+            n += chunk;
+        }
+        return new String(bytes, 0, length, StandardCharsets.UTF_8);
+    }
+
+    private int readUnsignedByte() throws IOException {
+        if (pos == limit) {
+            fill();
+        }
+        return buffer[pos++] & 0xff;
+    }
+
+    private int readInt() throws IOException {
+        return (readUnsignedByte() << 24) | (readUnsignedByte() << 16) | (readUnsignedByte() << 8) | readUnsignedByte();
+    }
+
+    private long readLong() throws IOException {
+        return ((long) readInt() << 32) | (readInt() & 0xffffffffL);
+    }
+
+    private void skip(int length) throws IOException {
+        for (int n = 0; n < length;) {
+            if (pos == limit) {
+                fill();
+            }
+            final int chunk = Math.min(length - n, limit - pos);
+            pos += chunk;
+            n += chunk;
+        }
+    }
+
+    private void fill() throws IOException {
+        final int n = in.read(buffer, 0, buffer.length);
+        if (n <= 0) {
+            throw new EOFException("Unexpected end of javabin response");
+        }
+        pos = 0;
+        limit = n;
+    }
+
+    private int readSize() throws IOException {
+        int size = tag & 0x1f;
+        if (size == 0x1f) {
+            size += readVInt();
+        }
+        return size;
+    }
+
+    private int readVInt() throws IOException {
+        int b = readUnsignedByte();
+        int i = b & 0x7f;
+        for (int shift = 7; (b & 0x80) != 0; shift += 7) {
+            b = readUnsignedByte();
+            i |= (b & 0x7f) << shift;
+        }
+        return i;
+    }
+
+    private long readVLong() throws IOException {
+        int b = readUnsignedByte();
+        long i = b & 0x7f;
+        for (int shift = 7; (b & 0x80) != 0; shift += 7) {
+            b = readUnsignedByte();
+            i |= (long) (b & 0x7f) << shift;
+        }
+        return i;
+    }
+
+    /**
+     * Returns a scalar value as String. For multi-valued fields the first
+     * value is taken.
+     */
+    private static String scalar(Object value) {
+        if (value instanceof List<?> list) {
+            return list.isEmpty() ? null : scalar(list.get(0));
+        }
+        return value == null || value instanceof Map ? null : value.toString();
+    }
+}
@@ -16,17 +16,22 @@
  */
 package de.ddb.labs.dzpfcs.searcher;
 
-import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 import lombok.Getter;
 
+/**
+ * A page of results with metadata (total count etc.). Immutable and index
+ * addressable, so the result set can walk the entries without copying.
+ */
 public class Results {
 
     @Getter
     private final String pid;
     @Getter
     private final String query;
-    private final List<ResultsEntry> results;
+    private final ResultsEntry[] results;
     @Getter
     private final long total;
     @Getter
@@ -35,12 +40,39 @@ public class Results {
     public Results(String pid, String query, List<ResultsEntry> results, long total, long offset) {
         this.pid = pid;
         this.query = query;
-        this.results = results;
+        this.results = results.toArray(new ResultsEntry[results.size()]);
         this.total = total;
         this.offset = offset;
     }
 
+    /**
+     * Returns a read-only view of the entries.
+     *
+     * @return the entries of this page
+     */
     public List<ResultsEntry> getResults() {
-        return new ArrayList<>(results);
+        return Collections.unmodifiableList(Arrays.asList(results));
+    }
+
+    public int size() {
+        return results.length;
+    }
+
+    public ResultsEntry get(int index) {
+        return results[index];
+    }
+
+    /**
+     * Rough estimation of the heap size of these results in bytes. Used as
+     * weight for the {@link ResultsCache}.
+     *
+     * @return estimated size in bytes
+     */
+    public int estimateBytes() {
+        long bytes = 64L + 2L * (pid.length() + query.length());
+        for (ResultsEntry entry : results) {
+            bytes += entry.estimateBytes();
+        }
+        return (int) Math.min(bytes, Integer.MAX_VALUE);
     }
 }
@@ -0,0 +1,102 @@
+/*
+ * Copyright 2023-2025 Michael Büchner, Deutsche Digitale Bibliothek
+ *
+ * This program is free software: you can redistribute it and/or modify 
+ * it under the terms of the GNU General Public License as published by 
+ * the Free Software Foundation, either version 3 of the License, or 
+ * (at your option) any later version. 
+ *  
+ * This program is distributed in the hope that it will be useful, 
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of 
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the 
+ * GNU General Public License for more details. 
+ * 
+ * You should have received a copy of the GNU General Public License 
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.ddb.labs.dzpfcs.searcher;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.stats.CacheStats;
+import de.ddb.labs.dzpfcs.metrics.DzpMetrics;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import java.time.Duration;
+
+/**
+ * In-process cache for parsed {@link Results} of the Solr endpoint, so
+ * repeated queries (e.g. paging or refining in the CLARIN aggregator) are
+ * answered without another round-trip to the DDB API.
+ * <p>
+ * Entries expire after a fixed time-to-live and are evicted by their
+ * estimated size in bytes (see {@link Results#estimateBytes()}).
+ * </p>
+ */
+public class ResultsCache {
+
+    /**
+     * Cache key: converted Solr query and filters, offset, page size, resource
+     * PID and the requested fields and snippets.
+     *
+     * @param query the converted Solr query with filters
+     * @param start zero-based offset of the first record
+     * @param rows number of requested records
+     * @param pid the resource PID
+     * @param plan the requested fields and snippets
+     */
+    public record Key(SolrQuery query, int start, int rows, String pid, SolrRequestPlan plan) {
+    }
+
+    private final Cache<Key, Results> cache;
+
+    /**
+     * Constructor.
+     *
+     * @param maxBytes upper bound for the estimated size of all cached
+     * results in bytes
+     * @param ttl time-to-live of an entry after it was written
+     */
+    public ResultsCache(long maxBytes, Duration ttl) {
+        this.cache = Caffeine.newBuilder()
+                .maximumWeight(maxBytes)
+                .weigher((Key key, Results results) -> results.estimateBytes())
+                .expireAfterWrite(ttl)
+                .recordStats()
+                .build();
+        CaffeineCacheMetrics.monitor(DzpMetrics.getRegistry(), cache, "results");
+    }
+
+    /**
+     * Returns the cached results for <code>key</code>.
+     *
+     * @param key the cache key
+     * @return the cached {@link Results} or <code>null</code> if not cached
+     */
+    public Results get(Key key) {
+        return cache.getIfPresent(key);
+    }
+
+    public void put(Key key, Results results) {
+        cache.put(key, results);
+    }
+
+    public void invalidateAll() {
+        cache.invalidateAll();
+    }
+
+    public long getHitCount() {
+        return cache.stats().hitCount();
+    }
+
+    public long getMissCount() {
+        return cache.stats().missCount();
+    }
+
+    public long getEvictionCount() {
+        return cache.stats().evictionCount();
+    }
+
+    public CacheStats getStats() {
+        return cache.stats();
+    }
+}
@@ -16,40 +16,80 @@
  */
 package de.ddb.labs.dzpfcs.searcher;
 
-import java.util.ArrayList;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 import lombok.Getter;
-import lombok.Setter;
-import org.apache.commons.text.StringEscapeUtils;
 
+/**
+ * A single document of a result page. Immutable, so entries can be shared
+ * between requests (e.g. from the {@link ResultsCache}).
+ */
 public class ResultsEntry {
 
+    private static final Snippet[] NO_SNIPPETS = new Snippet[0];
+
     private final static String DZP_URL = "https://www.deutsche-digitale-bibliothek.de/newspaper/item/{{ddbid}}?query={{query}}&issuepage={{pagenumber}}";
     @Getter
-    @Setter
-    private String id, pagenumber, paper_title;
-    private final List<String> plainpagefulltext = new ArrayList<>();
+    private final String id, pagenumber, paper_title;
+    private final Snippet[] plainpagefulltext;
 
-    public List<String> getPlainpagefulltext() {
-        return new ArrayList<>(plainpagefulltext);
+    public ResultsEntry(String id, String pagenumber, String paper_title, Snippet[] plainpagefulltext) {
+        this.id = id;
+        this.pagenumber = pagenumber;
+        this.paper_title = paper_title;
+        this.plainpagefulltext = plainpagefulltext == null ? NO_SNIPPETS : plainpagefulltext;
     }
 
-    public void setPlainpagefulltext(List<String> ppft) {
-        plainpagefulltext.clear();
+    /**
+     * Returns a read-only view of the highlighting snippets.
+     *
+     * @return the snippets, may be empty
+     */
+    public List<Snippet> getPlainpagefulltext() {
+        return Collections.unmodifiableList(Arrays.asList(plainpagefulltext));
+    }
 
-        for (String v : ppft) {
-            String t = StringEscapeUtils.escapeXml11(v);
-            t = t.replaceFirst("&lt;Hit&gt;", "<Hit>");
-            t = t.replaceFirst("&lt;/Hit&gt;", "</Hit>");
-            t = t.replaceAll("&lt;Hit&gt;", "");
-            t = t.replaceAll("&lt;/Hit&gt;", "");
-            plainpagefulltext.add(t);
-        }
+    /**
+     * Returns a copy of this entry with other snippets.
+     *
+     * @param snippets the snippets
+     * @return the new entry
+     */
+    ResultsEntry withSnippets(Snippet[] snippets) {
+        return new ResultsEntry(id, pagenumber, paper_title, snippets);
+    }
+
+    public int getSnippetCount() {
+        return plainpagefulltext.length;
+    }
+
+    public Snippet getSnippet(int index) {
+        return plainpagefulltext[index];
     }
 
     @Override
     public String toString() {
-        return ("[id=" + id + ", pagenumber=" + pagenumber + ", paper_title=" + paper_title + ", plainpagefulltext=" + plainpagefulltext.toString() + "]");
+        return ("[id=" + id + ", pagenumber=" + pagenumber + ", paper_title=" + paper_title + ", plainpagefulltext=" + Arrays.toString(plainpagefulltext) + "]");
+    }
+
+    /**
+     * Rough estimation of the heap size of this entry in bytes.
+     *
+     * @return estimated size in bytes
+     */
+    public long estimateBytes() {
+        long bytes = 96L + 2L * (length(id) + length(pagenumber) + length(paper_title));
+        for (Snippet v : plainpagefulltext) {
+            bytes += v.estimateBytes();
+        }
+        return bytes;
+    }
+
+    private static int length(String s) {
+        return s == null ? 0 : s.length();
     }
 
     public String getDdbId() {
@@ -59,7 +99,7 @@ public class ResultsEntry {
     public String getDzpUrl(String query) {
         return DZP_URL
                 .replace("{{ddbid}}", getDdbId())
-                .replace("{{query}}", query)
+                .replace("{{query}}", URLEncoder.encode(query, StandardCharsets.UTF_8))
                 .replace("{{pagenumber}}", getPagenumber());
     }
 }
@@ -0,0 +1,211 @@
+/*
+ * Copyright 2023-2025 Michael Büchner, Deutsche Digitale Bibliothek
+ *
+ * This program is free software: you can redistribute it and/or modify 
+ * it under the terms of the GNU General Public License as published by 
+ * the Free Software Foundation, either version 3 of the License, or 
+ * (at your option) any later version. 
+ *  
+ * This program is distributed in the hope that it will be useful, 
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of 
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the 
+ * GNU General Public License for more details. 
+ * 
+ * You should have received a copy of the GNU General Public License 
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.ddb.labs.dzpfcs.searcher;
+
+import de.ddb.labs.dzpfcs.metrics.DzpMetrics;
+import de.ddb.labs.dzpfcs.metrics.SearchTrace;
+import eu.clarin.sru.server.SRUException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import lombok.Getter;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * The records of one resource in the requested window of a search. The
+ * records are either all known (see {@link #of(Results)}) or fetched from
+ * Solr in chunks while the result set advances, optionally prefetching the
+ * next chunk in the background. Only the current and the next chunk are held,
+ * so the heap used by a response is bounded by the chunk size and not by
+ * <code>maximumRecords</code>.
+ * <p>
+ * If a chunk cannot be fetched, e.g. because the Solr endpoint failed or the
+ * adaptive limit rejected the request, the response may already be partly
+ * written. The stream then stops fetching and returns no further records, so
+ * they are written as surrogate diagnostics instead of aborting the response.
+ * </p>
+ * <p>
+ * Not thread-safe, a stream is read by the thread writing the response.
+ * </p>
+ */
+public class ResultsStream {
+
+    private static final Logger LOGGER = LogManager.getLogger(ResultsStream.class);
+
+    /**
+     * Fetches records of the window.
+     */
+    @FunctionalInterface
+    interface ChunkFetcher {
+
+        /**
+         * @param from offset in the window
+         * @param rows number of records
+         * @return the records
+         * @throws SRUException if the Solr endpoint could not be queried
+         */
+        Results fetch(int from, int rows) throws SRUException;
+    }
+
+    @Getter
+    private final String pid;
+    @Getter
+    private final String query;
+    @Getter
+    private final long total;
+
+    private final int size;
+    private final int chunkSize;
+    private final ChunkFetcher fetcher;
+    private final ExecutorService prefetcher;
+
+    private Results chunk;
+    private int chunkStart;
+    private Future<Results> next;
+    private int nextStart = -1;
+    private boolean failed = false;
+
+    /**
+     * Constructor.
+     *
+     * @param pid the resource PID
+     * @param query the converted Solr query
+     * @param total total number of hits of the resource
+     * @param size number of records in the window
+     * @param chunkSize number of records fetched at once
+     * @param first the first chunk if already fetched, may be
+     * <code>null</code>
+     * @param fetcher fetches chunks of the window
+     * @param prefetcher runs the prefetching of the next chunk, may be
+     * <code>null</code> to fetch only on demand
+     */
+    ResultsStream(String pid, String query, long total, int size, int chunkSize, Results first, ChunkFetcher fetcher, ExecutorService prefetcher) {
+        this.pid = pid;
+        this.query = query;
+        this.total = total;
+        this.size = size;
+        this.chunkSize = Math.max(1, chunkSize);
+        this.fetcher = fetcher;
+        this.prefetcher = prefetcher;
+        this.chunk = first;
+        this.chunkStart = first != null ? 0 : -1;
+        if (first != null) {
+            prefetch(this.chunkSize);
+        }
+    }
+
+    /**
+     * Returns a stream over results that are already fetched.
+     *
+     * @param results the results
+     * @return the stream
+     */
+    public static ResultsStream of(Results results) {
+        return new ResultsStream(results.getPid(), results.getQuery(), results.getTotal(), results.size(), results.size(), results, null, null);
+    }
+
+    /**
+     * Returns the number of records in the window.
+     *
+     * @return the number of records
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Returns a record of the window, fetching its chunk if needed. Records
+     * should be read in ascending order.
+     *
+     * @param index index of the record in the window
+     * @return the record or <code>null</code> if Solr returned fewer records
+     * than expected (e.g. because the index changed) or its chunk could not
+     * be fetched
+     */
+    public ResultsEntry get(int index) {
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException(index);
+        }
+        if (failed) {
+            return null;
+        }
+        final int start = index - index % chunkSize;
+        if (chunk == null || start != chunkStart) {
+            try {
+                load(start);
+            } catch (SRUException e) {
+                LOGGER.warn("Records {} to {} of {} could not be fetched: {}", start, size, pid, e.getMessage());
+                DzpMetrics.error(e);
+                close();
+                failed = true;
+                return null;
+            }
+        }
+        final int i = index - chunkStart;
+        return i < chunk.size() ? chunk.get(i) : null;
+    }
+
+    /**
+     * Start fetching the first chunk in the background, if prefetching is
+     * enabled.
+     */
+    void prefetchFirst() {
+        if (chunk == null && next == null) {
+            prefetch(0);
+        }
+    }
+
+    /**
+     * Release the fetched records and cancel prefetching.
+     */
+    public void close() {
+        if (next != null) {
+            next.cancel(true);
+            next = null;
+        }
+        chunk = null;
+    }
+
+    private void load(int start) throws SRUException {
+        Results loaded = null;
+        if (next != null) {
+            if (nextStart == start) {
+                loaded = SolrSearcher.await(next);
+            } else {
+                next.cancel(true);
+            }
+            next = null;
+        }
+        if (loaded == null) {
+            loaded = fetch(start);
+        }
+        chunk = loaded;
+        chunkStart = start;
+        prefetch(start + chunkSize);
+    }
+
+    private void prefetch(int start) {
+        if (prefetcher != null && start < size) {
+            next = prefetcher.submit(SearchTrace.wrap(() -> fetch(start)));
+            nextStart = start;
+        }
+    }
+
+    private Results fetch(int start) throws SRUException {
+        return fetcher.fetch(start, Math.min(chunkSize, size - start));
+    }
+}
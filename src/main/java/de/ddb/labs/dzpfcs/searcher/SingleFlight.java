@@ -0,0 +1,182 @@
+/*
+ * Copyright 2023-2025 Michael Büchner, Deutsche Digitale Bibliothek
+ *
+ * This program is free software: you can redistribute it and/or modify 
+ * it under the terms of the GNU General Public License as published by 
+ * the Free Software Foundation, either version 3 of the License, or 
+ * (at your option) any later version. 
+ *  
+ * This program is distributed in the hope that it will be useful, 
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of 
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the 
+ * GNU General Public License for more details. 
+ * 
+ * You should have received a copy of the GNU General Public License 
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.ddb.labs.dzpfcs.searcher;
+
+import io.micrometer.core.instrument.Counter;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+
+/**
+ * Coalesces identical concurrent calls: while a call for a key is in flight,
+ * further calls for the same key wait for it and share its result instead of
+ * issuing their own.
+ *
+ * @param <K> the type of the keys
+ * @param <V> the type of the results
+ */
+public class SingleFlight<K, V> {
+
+    private final ConcurrentHashMap<K, Flight> inFlight = new ConcurrentHashMap<>();
+
+    private final Counter coalesced;
+
+    /**
+     * Constructor.
+     *
+     * @param coalesced counter for the calls that were coalesced with a call
+     * in flight
+     */
+    public SingleFlight(Counter coalesced) {
+        this.coalesced = coalesced;
+    }
+
+    /**
+     * Start the asynchronous <code>call</code>, unless a call for
+     * <code>key</code> is already in flight. Then return its result.
+     * <p>
+     * Every caller gets its own copy of the future, so cancelling it does not
+     * affect the other callers. When the last caller has cancelled its copy,
+     * the call itself is cancelled.
+     * </p>
+     *
+     * @param key the key of the call
+     * @param call starts the call
+     * @return the future result of the call
+     */
+    public CompletableFuture<V> executeAsync(K key, Supplier<CompletableFuture<V>> call) {
+        while (true) {
+            final Flight flight = new Flight(key);
+            final Flight existing = inFlight.putIfAbsent(key, flight);
+            if (existing != null) {
+                final CompletableFuture<V> waiter = existing.join();
+                if (waiter != null) {
+                    coalesced.increment();
+                    return waiter;
+                }
+                // all callers of the existing call left, it is being cancelled
+                inFlight.remove(key, existing);
+                continue;
+            }
+
+            final CompletableFuture<V> waiter = flight.join();
+            try {
+                flight.start(call.get());
+            } catch (RuntimeException e) {
+                inFlight.remove(key, flight);
+                flight.result.completeExceptionally(e);
+            }
+            return waiter;
+        }
+    }
+
+    /**
+     * Returns the number of distinct calls in flight.
+     *
+     * @return number of calls in flight
+     */
+    public int size() {
+        return inFlight.size();
+    }
+
+    /**
+     * A call in flight and the number of its callers waiting for it.
+     */
+    private final class Flight {
+
+        private final K key;
+
+        private final CompletableFuture<V> result = new CompletableFuture<>();
+
+        /**
+         * The call, <code>null</code> until started. Guarded by this.
+         */
+        private CompletableFuture<V> call;
+
+        /**
+         * Number of callers waiting for the result. Guarded by this.
+         */
+        private int waiters = 0;
+
+        /**
+         * Whether all callers left and the call is cancelled. Guarded by this.
+         */
+        private boolean abandoned = false;
+
+        private Flight(K key) {
+            this.key = key;
+        }
+
+        /**
+         * Adds a caller.
+         *
+         * @return the copy of the result for the caller, or <code>null</code>
+         * if the call is already abandoned
+         */
+        private synchronized CompletableFuture<V> join() {
+            if (abandoned) {
+                return null;
+            }
+            waiters++;
+            final CompletableFuture<V> copy = result.copy();
+            copy.whenComplete((v, t) -> {
+                if (copy.isCancelled()) {
+                    leave();
+                }
+            });
+            return copy;
+        }
+
+        private void start(CompletableFuture<V> started) {
+            final boolean cancel;
+            synchronized (this) {
+                call = started;
+                cancel = abandoned;
+            }
+            started.whenComplete((v, t) -> {
+                inFlight.remove(key, this);
+                if (t != null) {
+                    result.completeExceptionally(t);
+                } else {
+                    result.complete(v);
+                }
+            });
+            if (cancel) {
+                started.cancel(true);
+            }
+        }
+
+        /**
+         * Removes a caller that cancelled its copy and cancels the call when
+         * no caller is left.
+         */
+        private void leave() {
+            final CompletableFuture<V> cancel;
+            synchronized (this) {
+                if (--waiters > 0 || result.isDone()) {
+                    return;
+                }
+                abandoned = true;
+                cancel = call;
+            }
+            inFlight.remove(key, this);
+            if (cancel != null) {
+                cancel.cancel(true);
+            }
+        }
+    }
+}
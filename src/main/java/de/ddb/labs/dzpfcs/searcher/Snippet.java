@@ -0,0 +1,197 @@
+/*
+ * Copyright 2023-2025 Michael Büchner, Deutsche Digitale Bibliothek
+ *
+ * This program is free software: you can redistribute it and/or modify 
+ * it under the terms of the GNU General Public License as published by 
+ * the Free Software Foundation, either version 3 of the License, or 
+ * (at your option) any later version. 
+ *  
+ * This program is distributed in the hope that it will be useful, 
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of 
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the 
+ * GNU General Public License for more details. 
+ * 
+ * You should have received a copy of the GNU General Public License 
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.ddb.labs.dzpfcs.searcher;
+
+import java.util.Arrays;
+
+/**
+ * A highlighting snippet decoded into plain text and the spans of its hits.
+ * <p>
+ * Solr marks hits with <code>&lt;Hit&gt;</code> and
+ * <code>&lt;/Hit&gt;</code> (see <code>hl.simple.pre</code> and
+ * <code>hl.simple.post</code>). The markers are removed from the text and the
+ * hit positions are kept as offsets into it, so the snippet can be written to
+ * an <code>XMLStreamWriter</code> without any intermediate XML text.
+ * </p>
+ * <p>
+ * Only the first hit of a snippet is marked, any further markers are dropped
+ * (as the endpoint always did). Characters that are not allowed in XML 1.0 are
+ * removed.
+ * </p>
+ */
+public final class Snippet {
+
+    private static final String HIT_START = "<Hit>";
+    private static final String HIT_END = "</Hit>";
+
+    private static final int[] NO_HITS = new int[0];
+
+    /**
+     * The snippet text without hit markers. Shared, must not be modified.
+     */
+    private final char[] text;
+
+    /**
+     * Start (inclusive) and end (exclusive) offsets of the hits in
+     * <code>text</code>, as consecutive pairs.
+     */
+    private final int[] hits;
+
+    private Snippet(char[] text, int[] hits) {
+        this.text = text;
+        this.hits = hits;
+    }
+
+    /**
+     * Create a snippet from already decoded text and hit offsets, e.g. read
+     * from the {@link SnippetStore}.
+     *
+     * @param text the text without hit markers
+     * @param hits start and end offsets of the hits as consecutive pairs
+     * @return the snippet
+     */
+    static Snippet of(char[] text, int[] hits) {
+        return new Snippet(text, hits.length == 0 ? NO_HITS : hits);
+    }
+
+    /**
+     * Decode a highlighted snippet as returned by Solr.
+     *
+     * @param raw the snippet with <code>&lt;Hit&gt;</code> markers
+     * @return the decoded snippet
+     */
+    public static Snippet parse(String raw) {
+        final int length = raw.length();
+        final char[] text = new char[length];
+        int len = 0;
+        int hitStart = -1;
+        int hitEnd = -1;
+
+        int i = 0;
+        while (i < length) {
+            final char c = raw.charAt(i);
+            if (c == '<') {
+                if (raw.startsWith(HIT_START, i)) {
+                    if (hitStart < 0) {
+                        hitStart = len;
+                    }
+                    i += HIT_START.length();
+                    continue;
+                }
+                if (raw.startsWith(HIT_END, i)) {
+                    if (hitStart >= 0 && hitEnd < 0) {
+                        hitEnd = len;
+                    }
+                    i += HIT_END.length();
+                    continue;
+                }
+            }
+            if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(raw.charAt(i + 1))) {
+                text[len++] = c;
+                text[len++] = raw.charAt(i + 1);
+                i += 2;
+                continue;
+            }
+            if (isXmlChar(c)) {
+                text[len++] = c;
+            }
+            i++;
+        }
+
+        final int[] hits;
+        if (hitStart < 0) {
+            hits = NO_HITS;
+        } else {
+            hits = new int[]{hitStart, hitEnd < 0 ? len : hitEnd};
+        }
+        return new Snippet(len == length ? text : Arrays.copyOf(text, len), hits);
+    }
+
+    /**
+     * Check for a character allowed in XML 1.0 documents (surrogates are
+     * handled separately).
+     */
+    private static boolean isXmlChar(char c) {
+        return c == 0x9 || c == 0xA || c == 0xD
+                || (c >= 0x20 && c <= 0xD7FF)
+                || (c >= 0xE000 && c <= 0xFFFD);
+    }
+
+    /**
+     * Returns the snippet text without hit markers. The array is shared and
+     * must not be modified.
+     *
+     * @return the text characters
+     */
+    public char[] getChars() {
+        return text;
+    }
+
+    public int length() {
+        return text.length;
+    }
+
+    public int getHitCount() {
+        return hits.length / 2;
+    }
+
+    public int getHitStart(int hit) {
+        return hits[2 * hit];
+    }
+
+    public int getHitEnd(int hit) {
+        return hits[2 * hit + 1];
+    }
+
+    /**
+     * Check whether the text between <code>start</code> and <code>end</code>
+     * consists of whitespace only.
+     *
+     * @param start start offset (inclusive)
+     * @param end end offset (exclusive)
+     * @return <code>true</code> if blank
+     */
+    public boolean isBlank(int start, int end) {
+        for (int i = start; i < end; i++) {
+            if (!Character.isWhitespace(text[i])) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Rough estimation of the heap size of this snippet in bytes.
+     *
+     * @return estimated size in bytes
+     */
+    public long estimateBytes() {
+        return 48L + 2L * text.length + 4L * hits.length;
+    }
+
+    @Override
+    public String toString() {
+        final StringBuilder sb = new StringBuilder(text.length + 16);
+        int pos = 0;
+        for (int h = 0; h < getHitCount(); h++) {
+            sb.append(text, pos, getHitStart(h) - pos).append(HIT_START);
+            sb.append(text, getHitStart(h), getHitEnd(h) - getHitStart(h)).append(HIT_END);
+            pos = getHitEnd(h);
+        }
+        return sb.append(text, pos, text.length - pos).toString();
+    }
+}
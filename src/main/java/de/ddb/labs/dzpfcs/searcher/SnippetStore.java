@@ -0,0 +1,551 @@
+/*
+ * Copyright 2023-2025 Michael Büchner, Deutsche Digitale Bibliothek
+ *
+ * This program is free software: you can redistribute it and/or modify 
+ * it under the terms of the GNU General Public License as published by 
+ * the Free Software Foundation, either version 3 of the License, or 
+ * (at your option) any later version. 
+ *  
+ * This program is distributed in the hope that it will be useful, 
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of 
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the 
+ * GNU General Public License for more details. 
+ * 
+ * You should have received a copy of the GNU General Public License 
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.ddb.labs.dzpfcs.searcher;
+
+import de.ddb.labs.dzpfcs.metrics.DzpMetrics;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.CRC32C;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Persistent store for decoded highlighting snippets, keyed by query and
+ * document id, so the expensive highlighting of the full page text is not
+ * repeated by Solr, not even after a restart. For every page highlighted by
+ * Solr, the ids of its documents are stored as well, so a later request of the
+ * same page can be answered without highlighting (see
+ * {@link #containsPage(String, String)}).
+ * <p>
+ * The snippets are kept off the Java heap in a memory-mapped, append-only
+ * file. Only the index (key to file offset) is held on the heap; it is
+ * rebuilt by scanning the file on startup. Every record has a checksum, so
+ * the scan stops at a record that was not completely written.
+ * </p>
+ * <p>
+ * Entries expire after a time-to-live. When three quarters of the file are
+ * used, it is compacted on a background thread: the live entries are copied
+ * to a new file, without expired and replaced entries and, if they still
+ * take more than half of the file, without the oldest ones. The new file then
+ * replaces the old one. Entries that do not fit until then are not stored.
+ * The file is locked while it is open, so no other process can use it.
+ * </p>
+ * <pre>
+ * file:   magic (int) | version (int) | end (int) | reserved (int) | record*
+ * record: length (int) | crc32c (int) | written (long) | key length (int) | key (UTF-8) | snippets
+ * snippets: count (int) | (text length (int) | text (UTF-8) | hit count (int) | hit offsets (int)*)*
+ * </pre>
+ * <p>
+ * The key of a document is the query and its id, the key of a page the query,
+ * a marker character and the page. The ids of a page are stored as
+ * snippets without hits.
+ * </p>
+ */
+public class SnippetStore implements Closeable {
+
+    private static final Logger LOGGER = LogManager.getLogger(SnippetStore.class);
+
+    private static final int MAGIC = 0x445a5053; // "DZPS"
+    private static final int VERSION = 1;
+    private static final int HEADER = 16;
+    private static final int END_OFFSET = 8;
+    private static final int RECORD_HEADER = 8;
+
+    private static final char KEY_SEPARATOR = '\u0000';
+    private static final char PAGE_MARKER = '\u0001';
+
+    private final Path file;
+    private final int capacity;
+    private final long ttlMillis;
+
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+    /**
+     * The open file, replaced by a compaction. Guarded by {@link #lock}.
+     */
+    private FileChannel channel;
+    private FileLock fileLock;
+    private MappedByteBuffer buffer;
+    private boolean closed = false;
+
+    /**
+     * End of the records in the file. Changed under the write lock of
+     * {@link #lock}.
+     */
+    private volatile int end;
+
+    /**
+     * File offset of the record per key. Guarded by {@link #lock}.
+     */
+    private Map<String, Integer> index = new HashMap<>();
+
+    private final AtomicBoolean compacting = new AtomicBoolean();
+    private volatile Thread compaction;
+
+    private final Counter hits;
+    private final Counter misses;
+
+    /**
+     * Open or create the store and rebuild its index from the file.
+     *
+     * @param file the store file
+     * @param maxBytes maximum size of the file in bytes
+     * @param ttl time-to-live of an entry after it was written
+     * @throws IOException if the file cannot be opened or mapped, or if it is
+     * used by another process
+     */
+    public SnippetStore(Path file, long maxBytes, Duration ttl) throws IOException {
+        this.file = file;
+        this.capacity = (int) Math.max(HEADER + 1024, Math.min(maxBytes, Integer.MAX_VALUE - 8));
+        this.ttlMillis = ttl.toMillis();
+        if (file.getParent() != null) {
+            Files.createDirectories(file.getParent());
+        }
+        this.channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        this.fileLock = lock(channel, file);
+        this.buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+        scan();
+
+        hits = Counter.builder("dzpfcs.snippets.store.requests")
+                .description("Lookups in the persistent snippet store")
+                .tag("result", "hit")
+                .register(DzpMetrics.getRegistry());
+        misses = Counter.builder("dzpfcs.snippets.store.requests")
+                .description("Lookups in the persistent snippet store")
+                .tag("result", "miss")
+                .register(DzpMetrics.getRegistry());
+        Gauge.builder("dzpfcs.snippets.store.entries", this, SnippetStore::size)
+                .description("Number of entries in the persistent snippet store")
+                .register(DzpMetrics.getRegistry());
+        Gauge.builder("dzpfcs.snippets.store.used", this, SnippetStore::usedBytes)
+                .description("Used size of the persistent snippet store file")
+                .baseUnit("bytes")
+                .register(DzpMetrics.getRegistry());
+    }
+
+    /**
+     * Check whether all snippets of a page are stored, i.e. whether the page
+     * can be requested without highlighting. This is the case if the ids of
+     * the page and the snippets of all its documents are stored and not
+     * expired.
+     *
+     * @param query the normalized query
+     * @param page the page, e.g. the filtered query with its start and size
+     * @return <code>true</code> if the snippets of the page are stored
+     */
+    public boolean containsPage(String query, String page) {
+        final long now = System.currentTimeMillis();
+        lock.readLock().lock();
+        try {
+            final ByteBuffer ids = find(query + KEY_SEPARATOR + PAGE_MARKER + page, now);
+            if (ids == null) {
+                return false;
+            }
+            for (Snippet id : readSnippets(ids)) {
+                if (find(query + KEY_SEPARATOR + new String(id.getChars()), now) == null) {
+                    return false;
+                }
+            }
+            return true;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Returns the snippets of a document for <code>query</code>.
+     *
+     * @param query the normalized query
+     * @param id the document id
+     * @return the snippets, may be empty, or <code>null</code> if not stored
+     * or expired
+     */
+    public Snippet[] get(String query, String id) {
+        lock.readLock().lock();
+        try {
+            final ByteBuffer b = find(query + KEY_SEPARATOR + id, System.currentTimeMillis());
+            if (b != null) {
+                hits.increment();
+                return readSnippets(b);
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        misses.increment();
+        return null;
+    }
+
+    /**
+     * Store the snippets of a document for <code>query</code>. Entries that do
+     * not fit even after compaction are not stored.
+     *
+     * @param query the normalized query
+     * @param id the document id
+     * @param snippets the snippets, may be empty
+     */
+    public void put(String query, String id, Snippet[] snippets) {
+        write(query + KEY_SEPARATOR + id, snippets);
+    }
+
+    /**
+     * Store the document ids of a page for <code>query</code>, after its
+     * snippets were stored with {@link #put(String, String, Snippet[])}.
+     *
+     * @param query the normalized query
+     * @param page the page, e.g. the filtered query with its start and size
+     * @param ids the document ids of the page
+     */
+    public void putPage(String query, String page, List<String> ids) {
+        final Snippet[] snippets = new Snippet[ids.size()];
+        for (int i = 0; i < snippets.length; i++) {
+            snippets[i] = Snippet.of(ids.get(i).toCharArray(), new int[0]);
+        }
+        write(query + KEY_SEPARATOR + PAGE_MARKER + page, snippets);
+    }
+
+    private void write(String key, Snippet[] snippets) {
+        final byte[] record = encode(key, snippets, System.currentTimeMillis());
+        lock.writeLock().lock();
+        try {
+            if (closed) {
+                return;
+            }
+            if (end + record.length > capacity) {
+                // full until the compaction has finished
+                startCompaction();
+                return;
+            }
+            buffer.put(end, record);
+            index.put(key, end);
+            end += record.length;
+            buffer.putInt(END_OFFSET, end);
+            if (end > capacity - capacity / 4) {
+                startCompaction();
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return index.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public long usedBytes() {
+        return end;
+    }
+
+    /**
+     * Write the store to disk and close the file.
+     *
+     * @throws IOException if the file cannot be closed
+     */
+    @Override
+    public void close() throws IOException {
+        lock.writeLock().lock();
+        try {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            buffer.force();
+            channel.close();
+        } finally {
+            lock.writeLock().unlock();
+        }
+        final Thread t = compaction;
+        if (t != null) {
+            try {
+                t.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Lock the whole file for this process.
+     */
+    private static FileLock lock(FileChannel channel, Path file) throws IOException {
+        FileLock fileLock;
+        try {
+            fileLock = channel.tryLock();
+        } catch (OverlappingFileLockException e) {
+            // locked by another store in this JVM
+            fileLock = null;
+        }
+        if (fileLock == null) {
+            channel.close();
+            throw new IOException("Snippet store " + file + " is used by another process");
+        }
+        return fileLock;
+    }
+
+    /**
+     * Rebuild the index from the file, starting a new file if it is not a
+     * store.
+     */
+    private void scan() {
+        if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION) {
+            buffer.putInt(0, MAGIC);
+            buffer.putInt(4, VERSION);
+            buffer.putInt(END_OFFSET, HEADER);
+            end = HEADER;
+            LOGGER.info("Created snippet store {} ({} bytes)", file, capacity);
+            return;
+        }
+        final int committed = Math.min(Math.max(buffer.getInt(END_OFFSET), HEADER), capacity);
+        final long now = System.currentTimeMillis();
+        final CRC32C crc = new CRC32C();
+        int pos = HEADER;
+        while (pos + RECORD_HEADER <= committed) {
+            final int length = buffer.getInt(pos);
+            if (length < 12 || pos + RECORD_HEADER + length > committed) {
+                break;
+            }
+            crc.reset();
+            crc.update(buffer.slice(pos + RECORD_HEADER, length));
+            if ((int) crc.getValue() != buffer.getInt(pos + 4)) {
+                break;
+            }
+            final long written = buffer.getLong(pos + RECORD_HEADER);
+            final int keyLength = buffer.getInt(pos + RECORD_HEADER + 8);
+            if (keyLength < 0 || keyLength > length - 12) {
+                break;
+            }
+            if (!isExpired(written, now)) {
+                final byte[] key = new byte[keyLength];
+                buffer.get(pos + RECORD_HEADER + 12, key);
+                index.put(new String(key, StandardCharsets.UTF_8), pos);
+            }
+            pos += RECORD_HEADER + length;
+        }
+        if (pos != committed) {
+            LOGGER.warn("Snippet store {} is truncated at offset {} of {}", file, pos, committed);
+        }
+        end = pos;
+        buffer.putInt(END_OFFSET, end);
+        LOGGER.info("Opened snippet store {} with {} entries ({} of {} bytes)", file, index.size(), end, capacity);
+    }
+
+    private void startCompaction() {
+        if (compacting.compareAndSet(false, true)) {
+            compaction = Thread.ofPlatform()
+                    .name("dzp-fcs-snippet-store-compaction")
+                    .daemon()
+                    .start(this::compact);
+        }
+    }
+
+    /**
+     * Copy the live records to a new file and replace the file with it. If
+     * the live records take more than half of the file, the oldest are
+     * dropped. Records below the end at the start never change, so they are
+     * copied without holding {@link #lock}; only the records written during
+     * the copy are copied under the write lock, just before the new file
+     * replaces the old one. The old file stays untouched until then, so a
+     * crash leaves either the old or the new file.
+     */
+    private void compact() {
+        final long start = System.nanoTime();
+        final Path tmp = file.resolveSibling(file.getFileName() + ".compact");
+        try {
+            final MappedByteBuffer from;
+            final int snapshotEnd;
+            final List<Map.Entry<String, Integer>> live;
+            long liveBytes = 0;
+            lock.readLock().lock();
+            try {
+                if (closed) {
+                    return;
+                }
+                from = buffer;
+                snapshotEnd = end;
+                final long now = System.currentTimeMillis();
+                live = new ArrayList<>(index.size());
+                for (Map.Entry<String, Integer> e : index.entrySet()) {
+                    if (!isExpired(from.getLong(e.getValue() + RECORD_HEADER), now)) {
+                        live.add(Map.entry(e.getKey(), e.getValue()));
+                        liveBytes += recordSize(from, e.getValue());
+                    }
+                }
+            } finally {
+                lock.readLock().unlock();
+            }
+            live.sort(Map.Entry.comparingByValue(Comparator.naturalOrder()));
+            int first = 0;
+            while (liveBytes > capacity / 2 && first < live.size()) {
+                liveBytes -= recordSize(from, live.get(first++).getValue());
+            }
+
+            Files.deleteIfExists(tmp);
+            final FileChannel newChannel = FileChannel.open(tmp, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            boolean swapped = false;
+            try {
+                final FileLock newLock = lock(newChannel, tmp);
+                final MappedByteBuffer to = newChannel.map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+                to.putInt(0, MAGIC);
+                to.putInt(4, VERSION);
+                to.putInt(END_OFFSET, HEADER);
+                final Map<String, Integer> copied = new HashMap<>();
+                int pos = HEADER;
+                for (Map.Entry<String, Integer> e : live.subList(first, live.size())) {
+                    final int size = recordSize(from, e.getValue());
+                    to.put(pos, from, e.getValue(), size);
+                    copied.put(e.getKey(), pos);
+                    pos += size;
+                }
+
+                lock.writeLock().lock();
+                try {
+                    if (closed) {
+                        return;
+                    }
+                    final Map<String, Integer> newIndex = new HashMap<>(index.size());
+                    for (Map.Entry<String, Integer> e : index.entrySet()) {
+                        final int old = e.getValue();
+                        if (old < snapshotEnd) {
+                            // not replaced since the start, copied unless dropped
+                            final Integer moved = copied.get(e.getKey());
+                            if (moved != null) {
+                                newIndex.put(e.getKey(), moved);
+                            }
+                        } else if (pos + recordSize(from, old) <= capacity) {
+                            final int size = recordSize(from, old);
+                            to.put(pos, from, old, size);
+                            newIndex.put(e.getKey(), pos);
+                            pos += size;
+                        }
+                    }
+                    to.putInt(END_OFFSET, pos);
+                    to.force();
+                    Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+                    channel.close();
+                    channel = newChannel;
+                    fileLock = newLock;
+                    buffer = to;
+                    index = newIndex;
+                    end = pos;
+                    swapped = true;
+                } finally {
+                    lock.writeLock().unlock();
+                }
+            } finally {
+                if (!swapped) {
+                    newChannel.close();
+                    Files.deleteIfExists(tmp);
+                }
+            }
+            LOGGER.info("Compacted snippet store {} to {} entries ({} bytes) in {} ms", file, size(), end, (System.nanoTime() - start) / 1_000_000);
+        } catch (IOException | RuntimeException e) {
+            LOGGER.warn("Compaction of snippet store {} failed", file, e);
+        } finally {
+            compacting.set(false);
+        }
+    }
+
+    /**
+     * Returns the record of a key, positioned at its snippets, or
+     * <code>null</code> if it is not stored or expired. Requires
+     * {@link #lock}.
+     */
+    private ByteBuffer find(String key, long now) {
+        final Integer pos = index.get(key);
+        if (pos == null) {
+            return null;
+        }
+        final ByteBuffer b = buffer.duplicate();
+        b.position(pos + RECORD_HEADER);
+        if (isExpired(b.getLong(), now)) {
+            return null;
+        }
+        b.position(b.position() + 4 + b.getInt(b.position()));
+        return b;
+    }
+
+    private static int recordSize(ByteBuffer b, int pos) {
+        return RECORD_HEADER + b.getInt(pos);
+    }
+
+    private boolean isExpired(long written, long now) {
+        return now - written > ttlMillis;
+    }
+
+    private static byte[] encode(String key, Snippet[] snippets, long written) {
+        final byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+        final byte[][] texts = new byte[snippets.length][];
+        int length = 8 + 4 + keyBytes.length + 4;
+        for (int i = 0; i < snippets.length; i++) {
+            texts[i] = new String(snippets[i].getChars()).getBytes(StandardCharsets.UTF_8);
+            length += 4 + texts[i].length + 4 + 8 * snippets[i].getHitCount();
+        }
+        final ByteBuffer b = ByteBuffer.allocate(RECORD_HEADER + length);
+        b.putInt(length).putInt(0).putLong(written).putInt(keyBytes.length).put(keyBytes);
+        b.putInt(snippets.length);
+        for (int i = 0; i < snippets.length; i++) {
+            b.putInt(texts[i].length).put(texts[i]);
+            b.putInt(snippets[i].getHitCount());
+            for (int h = 0; h < snippets[i].getHitCount(); h++) {
+                b.putInt(snippets[i].getHitStart(h)).putInt(snippets[i].getHitEnd(h));
+            }
+        }
+        final CRC32C crc = new CRC32C();
+        crc.update(b.array(), RECORD_HEADER, length);
+        b.putInt(4, (int) crc.getValue());
+        return b.array();
+    }
+
+    private static Snippet[] readSnippets(ByteBuffer b) {
+        final Snippet[] snippets = new Snippet[b.getInt()];
+        for (int i = 0; i < snippets.length; i++) {
+            final byte[] text = new byte[b.getInt()];
+            b.get(text);
+            final int[] offsets = new int[2 * b.getInt()];
+            for (int h = 0; h < offsets.length; h++) {
+                offsets[h] = b.getInt();
+            }
+            snippets[i] = Snippet.of(new String(text, StandardCharsets.UTF_8).toCharArray(), offsets);
+        }
+        return snippets;
+    }
+}
@@ -0,0 +1,60 @@
+/*
+ * Copyright 2023-2025 Michael Büchner, Deutsche Digitale Bibliothek
+ *
+ * This program is free software: you can redistribute it and/or modify 
+ * it under the terms of the GNU General Public License as published by 
+ * the Free Software Foundation, either version 3 of the License, or 
+ * (at your option) any later version. 
+ *  
+ * This program is distributed in the hope that it will be useful, 
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of 
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the 
+ * GNU General Public License for more details. 
+ * 
+ * You should have received a copy of the GNU General Public License 
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.ddb.labs.dzpfcs.searcher;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A Solr query: the main query <code>q</code> and filter queries
+ * <code>fq</code>, e.g. of a sub-resource. Used as key for memoized counts,
+ * cursors and cached results.
+ *
+ * @param q the main query
+ * @param filters the filter queries, may be empty
+ */
+public record SolrQuery(String q, List<String> filters) {
+
+    public SolrQuery {
+        q = q.strip();
+        filters = List.copyOf(filters);
+    }
+
+    public SolrQuery(String q) {
+        this(q, List.of());
+    }
+
+    /**
+     * Returns this query restricted by another filter query.
+     *
+     * @param fq the filter query, ignored if <code>null</code> or blank
+     * @return the restricted query
+     */
+    public SolrQuery withFilter(String fq) {
+        if (fq == null || fq.isBlank()) {
+            return this;
+        }
+        final List<String> fqs = new ArrayList<>(filters);
+        fqs.add(fq.strip());
+        return new SolrQuery(q, fqs);
+    }
+
+    @Override
+    public String toString() {
+        return filters.isEmpty() ? q : q + " fq=" + filters;
+    }
+}
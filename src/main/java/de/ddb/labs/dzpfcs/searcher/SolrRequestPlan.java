@@ -0,0 +1,79 @@
+/*
+ * Copyright 2023-2025 Michael Büchner, Deutsche Digitale Bibliothek
+ *
+ * This program is free software: you can redistribute it and/or modify 
+ * it under the terms of the GNU General Public License as published by 
+ * the Free Software Foundation, either version 3 of the License, or 
+ * (at your option) any later version. 
+ *  
+ * This program is distributed in the hope that it will be useful, 
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of 
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the 
+ * GNU General Public License for more details. 
+ * 
+ * You should have received a copy of the GNU General Public License 
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.ddb.labs.dzpfcs.searcher;
+
+import de.ddb.labs.dzpfcs.query.CanonicalQuery;
+
+/**
+ * The Solr parameters of a page request that depend on what the response will
+ * serialize: the stored fields and the highlighting. Created by
+ * {@link SolrRequestPlanner}.
+ *
+ * @param fields the stored fields to return (<code>fl</code>)
+ * @param snippets number of snippets per document (<code>hl.snippets</code>),
+ * <code>0</code> to disable highlighting
+ * @param fragsize size of a snippet in characters (<code>hl.fragsize</code>),
+ * <code>0</code> for the default of Solr
+ * @param maxAnalyzedChars number of characters of the full text analyzed for
+ * snippets (<code>hl.maxAnalyzedChars</code>), <code>0</code> for the default
+ * of Solr
+ */
+public record SolrRequestPlan(String fields, int snippets, int fragsize, int maxAnalyzedChars) {
+
+    /**
+     * Plan for requests that only need the number of hits.
+     */
+    public static final SolrRequestPlan COUNT = new SolrRequestPlan("id", 0, 0, 0);
+
+    public boolean isHighlight() {
+        return snippets > 0;
+    }
+
+    /**
+     * Returns this plan without highlighting, for pages whose snippets are
+     * taken from the {@link SnippetStore}.
+     *
+     * @return the plan
+     */
+    public SolrRequestPlan withoutHighlight() {
+        return new SolrRequestPlan(fields, 0, fragsize, maxAnalyzedChars);
+    }
+
+    /**
+     * Returns this plan with only the id and the snippets, for requesting
+     * the snippets missing in the {@link SnippetStore}.
+     *
+     * @return the plan
+     */
+    public SolrRequestPlan highlightOnly() {
+        return new SolrRequestPlan("id", snippets, fragsize, maxAnalyzedChars);
+    }
+
+    /**
+     * Returns the key of the snippets of <code>query</code> with this plan.
+     * Snippets depend on the main query and the highlighting parameters, but
+     * not on the filter queries. The main query is included by its
+     * {@link CanonicalQuery#hash(String) hash}, which keeps long queries
+     * short in the store.
+     *
+     * @param query the converted Solr query
+     * @return the key
+     */
+    public String highlightKey(SolrQuery query) {
+        return snippets + "/" + fragsize + "/" + maxAnalyzedChars + "/" + CanonicalQuery.hash(query.q());
+    }
+}
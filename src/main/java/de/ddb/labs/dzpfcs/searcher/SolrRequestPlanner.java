@@ -0,0 +1,89 @@
+/*
+ * Copyright 2023-2025 Michael Büchner, Deutsche Digitale Bibliothek
+ *
+ * This program is free software: you can redistribute it and/or modify 
+ * it under the terms of the GNU General Public License as published by 
+ * the Free Software Foundation, either version 3 of the License, or 
+ * (at your option) any later version. 
+ *  
+ * This program is distributed in the hope that it will be useful, 
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of 
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the 
+ * GNU General Public License for more details. 
+ * 
+ * You should have received a copy of the GNU General Public License 
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.ddb.labs.dzpfcs.searcher;
+
+import de.ddb.labs.dzpfcs.DzpConstants;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Derives the Solr parameters of a search from what the response will
+ * actually serialize, so Solr does not compute and ship fields and snippets
+ * that are thrown away.
+ * <ul>
+ * <li>Records in the CLARIN FCS schema need the <code>id</code> and
+ * <code>pagenumber</code> (for the reference URL) and one snippet per data
+ * view that shows the text.</li>
+ * <li>Records in any other schema are replaced by a surrogate diagnostic, so
+ * only their number matters and highlighting is disabled.</li>
+ * <li>Requests for the number of hits only (<code>maximumRecords=0</code>)
+ * do not highlight.</li>
+ * </ul>
+ */
+public class SolrRequestPlanner {
+
+    /**
+     * Stored fields written for a record.
+     */
+    private static final String RECORD_FIELDS = "id,pagenumber";
+
+    /**
+     * Snippets written per record by a data view. The <em>hits</em> data view
+     * is always written.
+     */
+    private static final Map<String, Integer> SNIPPETS = Map.of("hits", 1);
+
+    private final int fragsize;
+
+    private final int maxAnalyzedChars;
+
+    /**
+     * Constructor.
+     *
+     * @param fragsize size of a snippet in characters, <code>0</code> for the
+     * default of Solr
+     * @param maxAnalyzedChars number of characters of the full text analyzed
+     * for snippets, <code>0</code> for the default of Solr
+     */
+    public SolrRequestPlanner(int fragsize, int maxAnalyzedChars) {
+        this.fragsize = fragsize;
+        this.maxAnalyzedChars = maxAnalyzedChars;
+    }
+
+    /**
+     * Plan the page requests of a search.
+     *
+     * @param recordSchema the requested record schema, <code>null</code> for
+     * the default
+     * @param dataviews the requested additional data views
+     * @param maximumRecords number of records to return
+     * @return the plan
+     */
+    public SolrRequestPlan plan(String recordSchema, List<String> dataviews, int maximumRecords) {
+        if (maximumRecords <= 0) {
+            return SolrRequestPlan.COUNT;
+        }
+        if (recordSchema != null && !DzpConstants.CLARIN_FCS_RECORD_SCHEMA.equals(recordSchema)) {
+            return SolrRequestPlan.COUNT;
+        }
+        int snippets = SNIPPETS.get("hits");
+        for (String dataview : dataviews) {
+            snippets = Math.max(snippets, SNIPPETS.getOrDefault(dataview, 0));
+        }
+        return new SolrRequestPlan(RECORD_FIELDS, snippets, fragsize, maxAnalyzedChars);
+    }
+}
@@ -0,0 +1,57 @@
+/*
+ * Copyright 2023-2025 Michael Büchner, Deutsche Digitale Bibliothek
+ *
+ * This program is free software: you can redistribute it and/or modify 
+ * it under the terms of the GNU General Public License as published by 
+ * the Free Software Foundation, either version 3 of the License, or 
+ * (at your option) any later version. 
+ *  
+ * This program is distributed in the hope that it will be useful, 
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of 
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the 
+ * GNU General Public License for more details. 
+ * 
+ * You should have received a copy of the GNU General Public License 
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.ddb.labs.dzpfcs.searcher;
+
+import java.util.List;
+import lombok.Getter;
+
+/**
+ * The decoded parts of a Solr <code>select</code> response we need: the total
+ * number of hits and the documents with their highlighting snippets attached.
+ */
+public class SolrResponse {
+
+    @Getter
+    private final long numFound;
+    @Getter
+    private final List<ResultsEntry> docs;
+    /**
+     * Cursor mark of the next page, <code>null</code> if the request did not
+     * use <code>cursorMark</code>.
+     */
+    @Getter
+    private final String nextCursorMark;
+    /**
+     * Time spent on post-processing the highlighting snippets while decoding.
+     */
+    @Getter
+    private final long postProcessNanos;
+    /**
+     * <code>QTime</code> of the response header in milliseconds,
+     * <code>-1</code> if the response had none.
+     */
+    @Getter
+    private final int qTime;
+
+    public SolrResponse(long numFound, List<ResultsEntry> docs, String nextCursorMark, long postProcessNanos, int qTime) {
+        this.numFound = numFound;
+        this.docs = docs;
+        this.nextCursorMark = nextCursorMark;
+        this.postProcessNanos = postProcessNanos;
+        this.qTime = qTime;
+    }
+}
@@ -0,0 +1,110 @@
+/*
+ * Copyright 2023-2025 Michael Büchner, Deutsche Digitale Bibliothek
+ *
+ * This program is free software: you can redistribute it and/or modify 
+ * it under the terms of the GNU General Public License as published by 
+ * the Free Software Foundation, either version 3 of the License, or 
+ * (at your option) any later version. 
+ *  
+ * This program is distributed in the hope that it will be useful, 
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of 
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the 
+ * GNU General Public License for more details. 
+ * 
+ * You should have received a copy of the GNU General Public License 
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.ddb.labs.dzpfcs.searcher;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Collects the parts of a Solr response while it is decoded, independent of
+ * the wire format. Snippets are attached to their document by id, regardless
+ * of the order of the sections, and the immutable {@link ResultsEntry}
+ * objects are built at the end.
+ */
+final class SolrResponseBuilder {
+
+    private long numFound = -1;
+    private String nextCursorMark;
+    private int qTime = -1;
+    private final List<Doc> docs = new ArrayList<>();
+    private final Map<String, Doc> docsById = new HashMap<>();
+    // snippets that arrive before their document
+    private final Map<String, List<String>> pending = new HashMap<>();
+
+    /**
+     * Fields of a document while the response is decoded.
+     */
+    static final class Doc {
+
+        String id, pagenumber, paper_title;
+        private List<String> snippets;
+
+        private ResultsEntry toEntry() {
+            Snippet[] parsed = null;
+            if (snippets != null) {
+                parsed = new Snippet[snippets.size()];
+                for (int i = 0; i < parsed.length; i++) {
+                    parsed[i] = Snippet.parse(snippets.get(i));
+                }
+            }
+            return new ResultsEntry(id, pagenumber, paper_title, parsed);
+        }
+    }
+
+    void numFound(long numFound) {
+        this.numFound = numFound;
+    }
+
+    void qTime(int qTime) {
+        this.qTime = qTime;
+    }
+
+    void nextCursorMark(String nextCursorMark) {
+        this.nextCursorMark = nextCursorMark;
+    }
+
+    void doc(Doc doc) {
+        docs.add(doc);
+        if (doc.id != null && !doc.id.isBlank()) {
+            docsById.put(doc.id, doc);
+            final List<String> snippets = pending.remove(doc.id);
+            if (snippets != null) {
+                doc.snippets = snippets;
+            }
+        }
+    }
+
+    void snippets(String id, List<String> snippets) {
+        final Doc doc = docsById.get(id);
+        if (doc != null) {
+            doc.snippets = snippets;
+        } else {
+            pending.put(id, snippets);
+        }
+    }
+
+    /**
+     * Builds the response and post-processes the snippets.
+     *
+     * @return the decoded response
+     * @throws IOException if the response contained no number of hits
+     */
+    SolrResponse build() throws IOException {
+        if (numFound < 0) {
+            throw new IOException("Solr response contains no 'response.numFound'");
+        }
+        final long start = System.nanoTime();
+        final List<ResultsEntry> entries = new ArrayList<>(docs.size());
+        for (Doc doc : docs) {
+            entries.add(doc.toEntry());
+        }
+        return new SolrResponse(numFound, entries, nextCursorMark, System.nanoTime() - start, qTime);
+    }
+}
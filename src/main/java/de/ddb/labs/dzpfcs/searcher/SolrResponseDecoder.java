@@ -0,0 +1,178 @@
+/*
+ * Copyright 2023-2025 Michael Büchner, Deutsche Digitale Bibliothek
+ *
+ * This program is free software: you can redistribute it and/or modify 
+ * it under the terms of the GNU General Public License as published by 
+ * the Free Software Foundation, either version 3 of the License, or 
+ * (at your option) any later version. 
+ *  
+ * This program is distributed in the hope that it will be useful, 
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of 
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the 
+ * GNU General Public License for more details. 
+ * 
+ * You should have received a copy of the GNU General Public License 
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.ddb.labs.dzpfcs.searcher;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Single-pass streaming decoder for Solr JSON responses (<code>wt=json</code>).
+ * <p>
+ * Reads <code>response.numFound</code>, the documents in
+ * <code>response.docs</code> and the <code>plainpagefulltext</code> snippets
+ * in <code>highlighting</code> and the <code>nextCursorMark</code> of deep
+ * paging requests without building a tree of the whole response (see
+ * {@link SolrResponseBuilder}).
+ * </p>
+ */
+public final class SolrResponseDecoder {
+
+    private static final JsonFactory JSON_FACTORY = new JsonFactory();
+
+    private static final String HIGHLIGHT_FIELD = "plainpagefulltext";
+
+    private SolrResponseDecoder() {
+    }
+
+    /**
+     * Decode a Solr JSON response. The stream is not closed.
+     *
+     * @param in the response body
+     * @return the decoded response
+     * @throws IOException if the response could not be read or is not a valid
+     * Solr response
+     */
+    public static SolrResponse decode(InputStream in) throws IOException {
+        try (final JsonParser p = JSON_FACTORY.createParser(in)) {
+            return decode(p);
+        }
+    }
+
+    private static SolrResponse decode(JsonParser p) throws IOException {
+        if (p.nextToken() != JsonToken.START_OBJECT) {
+            throw new IOException("Solr response is not a JSON object");
+        }
+
+        final SolrResponseBuilder builder = new SolrResponseBuilder();
+        while (p.nextToken() == JsonToken.FIELD_NAME) {
+            final String name = p.currentName();
+            p.nextToken();
+            if ("response".equals(name) && p.currentToken() == JsonToken.START_OBJECT) {
+                while (p.nextToken() == JsonToken.FIELD_NAME) {
+                    final String field = p.currentName();
+                    p.nextToken();
+                    if ("numFound".equals(field)) {
+                        builder.numFound(p.getValueAsLong());
+                    } else if ("docs".equals(field) && p.currentToken() == JsonToken.START_ARRAY) {
+                        while (p.nextToken() == JsonToken.START_OBJECT) {
+                            builder.doc(readDoc(p));
+                        }
+                    } else {
+                        p.skipChildren();
+                    }
+                }
+            } else if ("responseHeader".equals(name) && p.currentToken() == JsonToken.START_OBJECT) {
+                while (p.nextToken() == JsonToken.FIELD_NAME) {
+                    final String field = p.currentName();
+                    p.nextToken();
+                    if ("QTime".equals(field)) {
+                        builder.qTime(p.getValueAsInt(-1));
+                    } else {
+                        p.skipChildren();
+                    }
+                }
+            } else if ("nextCursorMark".equals(name) && p.currentToken() == JsonToken.VALUE_STRING) {
+                builder.nextCursorMark(p.getText());
+            } else if ("highlighting".equals(name) && p.currentToken() == JsonToken.START_OBJECT) {
+                while (p.nextToken() == JsonToken.FIELD_NAME) {
+                    final String id = p.currentName();
+                    p.nextToken();
+                    builder.snippets(id, readSnippets(p));
+                }
+            } else {
+                p.skipChildren();
+            }
+        }
+        return builder.build();
+    }
+
+    private static SolrResponseBuilder.Doc readDoc(JsonParser p) throws IOException {
+        final SolrResponseBuilder.Doc doc = new SolrResponseBuilder.Doc();
+        while (p.nextToken() == JsonToken.FIELD_NAME) {
+            final String field = p.currentName();
+            p.nextToken();
+            switch (field) {
+                case "id" ->
+                    doc.id = readScalar(p);
+                case "paper_title" ->
+                    doc.paper_title = readScalar(p);
+                case "pagenumber" ->
+                    doc.pagenumber = readScalar(p);
+                default ->
+                    p.skipChildren();
+            }
+        }
+        return doc;
+    }
+
+    /**
+     * Reads a scalar value as String. For multi-valued fields the first value
+     * is taken.
+     */
+    private static String readScalar(JsonParser p) throws IOException {
+        if (p.currentToken() == JsonToken.START_ARRAY) {
+            String first = null;
+            while (p.nextToken() != JsonToken.END_ARRAY) {
+                if (first == null && p.currentToken().isScalarValue()) {
+                    first = p.getValueAsString();
+                } else {
+                    p.skipChildren();
+                }
+            }
+            return first;
+        }
+        if (p.currentToken() == JsonToken.START_OBJECT) {
+            p.skipChildren();
+            return null;
+        }
+        return p.getValueAsString();
+    }
+
+    /**
+     * Reads the snippets of the highlighted field from a document's
+     * highlighting object, e.g.
+     * <code>{"plainpagefulltext": ["... &lt;Hit&gt;Berlin&lt;/Hit&gt; ..."]}</code>.
+     */
+    private static List<String> readSnippets(JsonParser p) throws IOException {
+        final List<String> snippets = new ArrayList<>(1);
+        if (p.currentToken() != JsonToken.START_OBJECT) {
+            p.skipChildren();
+            return snippets;
+        }
+        while (p.nextToken() == JsonToken.FIELD_NAME) {
+            final String field = p.currentName();
+            p.nextToken();
+            if (HIGHLIGHT_FIELD.equals(field) && p.currentToken() == JsonToken.START_ARRAY) {
+                while (p.nextToken() != JsonToken.END_ARRAY) {
+                    if (p.currentToken() == JsonToken.VALUE_STRING) {
+                        snippets.add(p.getText());
+                    } else {
+                        p.skipChildren();
+                    }
+                }
+            } else {
+                p.skipChildren();
+            }
+        }
+        return snippets;
+    }
+}
@@ -0,0 +1,983 @@
+/*
+ * Copyright 2023-2025 Michael Büchner, Deutsche Digitale Bibliothek
+ *
+ * This program is free software: you can redistribute it and/or modify 
+ * it under the terms of the GNU General Public License as published by 
+ * the Free Software Foundation, either version 3 of the License, or 
+ * (at your option) any later version. 
+ *  
+ * This program is distributed in the hope that it will be useful, 
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of 
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the 
+ * GNU General Public License for more details. 
+ * 
+ * You should have received a copy of the GNU General Public License 
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.ddb.labs.dzpfcs.searcher;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import de.ddb.labs.dzpfcs.metrics.DzpMetrics;
+import de.ddb.labs.dzpfcs.metrics.SearchTrace;
+import de.ddb.labs.dzpfcs.query.CanonicalQuery;
+import eu.clarin.sru.server.SRUConstants;
+import eu.clarin.sru.server.SRUException;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import okhttp3.Call;
+import okhttp3.Callback;
+import okhttp3.HttpUrl;
+import okhttp3.MediaType;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Searches the Solr index of the German newspaper portal and maps the response
+ * to {@link Results}. If a {@link ResultsCache} is given, repeated queries are
+ * answered from the cache without contacting Solr.
+ * <p>
+ * By default a search is a single Solr request: the total number of hits is
+ * taken from <code>numFound</code> of the page response. If a separate count
+ * request is configured, count and page are requested concurrently and counts
+ * are memoized per query.
+ * </p>
+ * <p>
+ * If a {@link CursorCache} is given, pages are requested with the
+ * <code>cursorMark</code> of the previous page where one is known, so deep
+ * sequential paging does not make Solr sort all hits before the offset.
+ * </p>
+ * <p>
+ * Responses are requested as JSON or, if configured, in the binary javabin
+ * format, which is smaller and cheaper to decode.
+ * </p>
+ * <p>
+ * An optional {@link CircuitBreaker} rejects requests fast while the endpoint
+ * is failing or slow, and an optional {@link HedgingPolicy} sends a second
+ * request if the first one takes unusually long.
+ * </p>
+ * <p>
+ * With a {@link SnippetStore}, pages of queries with stored snippets are
+ * requested without highlighting and only the missing snippets are
+ * highlighted by Solr.
+ * </p>
+ */
+public class SolrSearcher {
+
+    private static final Logger LOGGER = LogManager.getLogger(SolrSearcher.class);
+
+    private static final int COUNT_CACHE_MAX_SIZE = 10_000;
+
+    /**
+     * Sort order of all requests. The unique key as tie-breaker gives a stable
+     * order and is required for <code>cursorMark</code>.
+     */
+    private static final String SORT = "score desc,id asc";
+
+    /**
+     * Page size when walking to a deep offset to create a cursor.
+     */
+    private static final int WALK_ROWS = 1000;
+
+    private final HttpUrl dzp_api;
+
+    private final OkHttpClient client;
+
+    private final ResultsCache cache;
+
+    private final boolean separateCount;
+
+    /**
+     * Memoized <code>numFound</code> per Solr query.
+     */
+    private final Cache<SolrQuery, Integer> counts;
+
+    /**
+     * Identical concurrent Solr requests (by URL) share one upstream call.
+     */
+    private final SingleFlight<String, SolrResponse> inFlight = new SingleFlight<>(DzpMetrics.SOLR_COALESCED);
+
+    /**
+     * Adaptive limit for concurrent Solr requests, may be <code>null</code>.
+     */
+    private final AdaptiveConcurrencyLimiter limiter;
+
+    /**
+     * Cursor marks for deep paging, may be <code>null</code>.
+     */
+    private final CursorCache cursors;
+
+    /**
+     * Request responses in the javabin format instead of JSON.
+     */
+    private final boolean javabin;
+
+    /**
+     * Circuit breaker for the Solr endpoint, may be <code>null</code>.
+     */
+    private final CircuitBreaker breaker;
+
+    /**
+     * When to hedge slow requests, may be <code>null</code> to never hedge.
+     */
+    private final HedgingPolicy hedging;
+
+    /**
+     * Persistent snippets per query and document, may be <code>null</code>.
+     */
+    private final SnippetStore snippets;
+
+    /**
+     * Runs the per-resource searches of
+     * {@link #searchAll(Map, int, int, SolrRequestPlan)} and the prefetching
+     * of {@link ResultsStream}s.
+     */
+    private final ExecutorService fanOut = Executors.newVirtualThreadPerTaskExecutor();
+
+    /**
+     * Constructor.
+     *
+     * @param endpoint the Solr select endpoint URL
+     * @param client the {@link OkHttpClient} to use for requests
+     * @param cache the results cache, may be <code>null</code> to disable
+     * caching
+     * @param separateCount <code>true</code> to request the total number of
+     * hits with a separate (concurrent) count request
+     * @param countTtl time-to-live of memoized counts
+     * @param limiter limit for concurrent Solr requests, may be
+     * <code>null</code> for no limit
+     * @param cursors cursor marks for deep paging, may be <code>null</code>
+     * to always page by offset
+     * @param javabin <code>true</code> to request responses in the javabin
+     * format, JSON otherwise
+     * @param breaker circuit breaker for the Solr endpoint, may be
+     * <code>null</code>
+     * @param hedging when to hedge slow requests, may be <code>null</code> to
+     * never hedge
+     * @param snippets persistent store of snippets, may be <code>null</code>
+     */
+    public SolrSearcher(String endpoint, OkHttpClient client, ResultsCache cache, boolean separateCount, Duration countTtl, AdaptiveConcurrencyLimiter limiter, CursorCache cursors, boolean javabin, CircuitBreaker breaker, HedgingPolicy hedging, SnippetStore snippets) {
+        this.dzp_api = HttpUrl.get(endpoint);
+        this.cursors = cursors;
+        this.javabin = javabin;
+        this.breaker = breaker;
+        this.hedging = hedging;
+        this.snippets = snippets;
+        this.client = client;
+        this.cache = cache;
+        this.separateCount = separateCount;
+        this.limiter = limiter;
+        this.counts = Caffeine.newBuilder()
+                .maximumSize(COUNT_CACHE_MAX_SIZE)
+                .expireAfterWrite(countTtl)
+                .recordStats()
+                .build();
+        CaffeineCacheMetrics.monitor(DzpMetrics.getRegistry(), counts, "counts");
+        Gauge.builder("dzpfcs.solr.inflight", inFlight, SingleFlight::size)
+                .description("Number of distinct Solr requests in flight")
+                .register(DzpMetrics.getRegistry());
+        if (limiter != null) {
+            Gauge.builder("dzpfcs.solr.limit", limiter, AdaptiveConcurrencyLimiter::getLimit)
+                    .description("Current adaptive limit for concurrent Solr requests")
+                    .register(DzpMetrics.getRegistry());
+            Gauge.builder("dzpfcs.solr.limit.inflight", limiter, AdaptiveConcurrencyLimiter::getInFlight)
+                    .description("Solr requests holding a permit of the adaptive limit")
+                    .register(DzpMetrics.getRegistry());
+            FunctionCounter.builder("dzpfcs.solr.limit.rejected", limiter, AdaptiveConcurrencyLimiter::getRejected)
+                    .description("Solr requests rejected by the adaptive limit")
+                    .register(DzpMetrics.getRegistry());
+        }
+        if (breaker != null) {
+            for (CircuitBreaker.State state : CircuitBreaker.State.values()) {
+                final String tag = state.name().toLowerCase(Locale.ROOT);
+                Gauge.builder("dzpfcs.solr.breaker.state", breaker, b -> b.getState() == state ? 1 : 0)
+                        .description("Current state of the circuit breaker for the Solr endpoint (1 = active)")
+                        .tag("state", tag)
+                        .register(DzpMetrics.getRegistry());
+                FunctionCounter.builder("dzpfcs.solr.breaker.transitions", breaker, b -> b.getTransitions(state))
+                        .description("Number of changes of the circuit breaker into a state")
+                        .tag("state", tag)
+                        .register(DzpMetrics.getRegistry());
+            }
+            FunctionCounter.builder("dzpfcs.solr.breaker.rejected", breaker, CircuitBreaker::getRejected)
+                    .description("Solr requests rejected by the open circuit breaker")
+                    .register(DzpMetrics.getRegistry());
+        }
+    }
+
+    /**
+     * Search for <code>query</code> and return a page of results.
+     *
+     * @param pid the resource PID the results belong to
+     * @param query the converted Solr query with the filter of the resource
+     * @param startRecord zero-based offset of the first record
+     * @param maximumRecords number of records to return
+     * @param plan the fields and snippets to request
+     * @return the {@link Results} of the query
+     * @throws SRUException if the Solr endpoint could not be queried or
+     * <code>startRecord</code> is out of range
+     */
+    public Results search(String pid, SolrQuery query, int startRecord, int maximumRecords, SolrRequestPlan plan) throws SRUException {
+        final ResultsCache.Key key = new ResultsCache.Key(query, startRecord, maximumRecords, pid, plan);
+        if (cache != null) {
+            final Results cached = cache.get(key);
+            if (cached != null) {
+                LOGGER.debug("Results cache hit for {}", key);
+                return cached;
+            }
+        }
+
+        final Results results = separateCount
+                ? searchWithCount(pid, query, startRecord, maximumRecords, plan)
+                : searchSingle(pid, query, startRecord, maximumRecords, plan);
+
+        if (cache != null) {
+            cache.put(key, results);
+        }
+        return results;
+    }
+
+    /**
+     * Search several resources in parallel and return one page over their
+     * concatenated results, in the order of <code>queries</code>. The hit
+     * counts of all resources are requested first (or taken from the memo),
+     * then the pages of the resources overlapping the requested window. Both
+     * steps run in parallel, so the latency is bounded by the slowest
+     * resource.
+     *
+     * @param queries the converted Solr query per resource PID, in the order
+     * of the results
+     * @param startRecord zero-based offset of the first record over all
+     * resources
+     * @param maximumRecords number of records to return over all resources
+     * @param plan the fields and snippets to request
+     * @return the {@link Results} per resource, with the total hits of the
+     * resource and possibly no entries
+     * @throws SRUException if the Solr endpoint could not be queried or
+     * <code>startRecord</code> is out of range
+     */
+    public List<Results> searchAll(Map<String, SolrQuery> queries, int startRecord, int maximumRecords, SolrRequestPlan plan) throws SRUException {
+        if (queries.size() == 1) {
+            final Map.Entry<String, SolrQuery> only = queries.entrySet().iterator().next();
+            return List.of(search(only.getKey(), only.getValue(), startRecord, maximumRecords, plan));
+        }
+
+        // 1. hit counts of all resources
+        final Map<String, Integer> numFound = countAll(queries, startRecord);
+
+        // 2. pages of the resources overlapping [startRecord, startRecord + maximumRecords)
+        final Map<String, Future<Results>> pageFutures = new LinkedHashMap<>();
+        long offset = 0;
+        for (Map.Entry<String, SolrQuery> e : queries.entrySet()) {
+            final String pid = e.getKey();
+            final SolrQuery query = e.getValue();
+            final int count = numFound.get(pid);
+            final int from = (int) Math.max(0, startRecord - offset);
+            final int to = (int) Math.min(count, startRecord + (long) maximumRecords - offset);
+            if (to > from) {
+                pageFutures.put(pid, fanOut.submit(SearchTrace.wrap(() -> search(pid, query, from, to - from, plan))));
+            } else {
+                pageFutures.put(pid, CompletableFuture.completedFuture(new Results(pid, query.q(), List.of(), count, from)));
+            }
+            offset += count;
+        }
+
+        final List<Results> results = new ArrayList<>(pageFutures.size());
+        try {
+            for (Future<Results> f : pageFutures.values()) {
+                results.add(await(f));
+            }
+        } catch (SRUException e) {
+            pageFutures.values().forEach(f -> f.cancel(true));
+            throw e;
+        }
+        return results;
+    }
+
+    /**
+     * Search one or several resources and return streams over the requested
+     * window that fetch the records in chunks of <code>chunkSize</code> while
+     * they are written, instead of holding all records in memory. For a
+     * single resource the first chunk is fetched right away, as it also
+     * yields the number of hits. For several resources the hit counts are
+     * requested first, as in {@link #searchAll(Map, int, int, SolrRequestPlan)}.
+     *
+     * @param queries the converted Solr query per resource PID, in the order
+     * of the results
+     * @param startRecord zero-based offset of the first record over all
+     * resources
+     * @param maximumRecords number of records to return over all resources
+     * @param plan the fields and snippets to request
+     * @param chunkSize number of records fetched at once
+     * @param prefetch <code>true</code> to fetch the next chunk in the
+     * background
+     * @return a {@link ResultsStream} per resource, possibly empty
+     * @throws SRUException if the Solr endpoint could not be queried or
+     * <code>startRecord</code> is out of range
+     */
+    public List<ResultsStream> stream(Map<String, SolrQuery> queries, int startRecord, int maximumRecords, SolrRequestPlan plan, int chunkSize, boolean prefetch) throws SRUException {
+        final ExecutorService prefetcher = prefetch ? fanOut : null;
+        if (queries.size() == 1) {
+            final String pid = queries.keySet().iterator().next();
+            final SolrQuery query = queries.get(pid);
+            final Results first = search(pid, query, startRecord, Math.min(chunkSize, maximumRecords), plan);
+            final int size = (int) Math.max(0, Math.min(maximumRecords, first.getTotal() - startRecord));
+            return List.of(new ResultsStream(pid, query.q(), first.getTotal(), size, chunkSize, first,
+                    (from, rows) -> search(pid, query, startRecord + from, rows, plan), prefetcher));
+        }
+
+        final Map<String, Integer> numFound = countAll(queries, startRecord);
+        final List<ResultsStream> streams = new ArrayList<>(queries.size());
+        long offset = 0;
+        for (Map.Entry<String, SolrQuery> e : queries.entrySet()) {
+            final String pid = e.getKey();
+            final SolrQuery query = e.getValue();
+            final int count = numFound.get(pid);
+            final int from = (int) Math.max(0, startRecord - offset);
+            final int to = (int) Math.min(count, startRecord + (long) maximumRecords - offset);
+            final ResultsStream stream = new ResultsStream(pid, query.q(), count, Math.max(0, to - from), chunkSize, null,
+                    (start, rows) -> search(pid, query, from + start, rows, plan), prefetcher);
+            // fetch the first chunks of all resources in parallel
+            stream.prefetchFirst();
+            streams.add(stream);
+            offset += count;
+        }
+        return streams;
+    }
+
+    /**
+     * Request the hit counts of all resources in parallel (or take them from
+     * the memo).
+     */
+    private Map<String, Integer> countAll(Map<String, SolrQuery> queries, int startRecord) throws SRUException {
+        final Map<String, CompletableFuture<Integer>> countFutures = new LinkedHashMap<>();
+        for (Map.Entry<String, SolrQuery> e : queries.entrySet()) {
+            final Integer memo = counts.getIfPresent(e.getValue());
+            countFutures.put(e.getKey(), memo != null ? CompletableFuture.completedFuture(memo) : countAsync(e.getValue()));
+        }
+        final Map<String, Integer> numFound = new LinkedHashMap<>();
+        try {
+            for (Map.Entry<String, CompletableFuture<Integer>> e : countFutures.entrySet()) {
+                numFound.put(e.getKey(), await(e.getValue()));
+            }
+        } catch (SRUException e) {
+            countFutures.values().forEach(f -> f.cancel(true));
+            throw e;
+        }
+        final long total = numFound.values().stream().mapToLong(Integer::longValue).sum();
+        if (startRecord > total) {
+            throw new SRUException(SRUConstants.SRU_FIRST_RECORD_POSITION_OUT_OF_RANGE);
+        }
+        return numFound;
+    }
+
+    /**
+     * Returns the total number of hits for <code>query</code>. Counts are
+     * memoized.
+     *
+     * @param query the converted Solr query
+     * @return the number of hits
+     * @throws SRUException if the Solr endpoint could not be queried
+     */
+    public int count(SolrQuery query) throws SRUException {
+        final Integer memo = counts.getIfPresent(query);
+        if (memo != null) {
+            return memo;
+        }
+        return await(countAsync(query));
+    }
+
+    private Results searchSingle(String pid, SolrQuery query, int startRecord, int maximumRecords, SolrRequestPlan plan) throws SRUException {
+        final String cursorMark = cursorFor(query, startRecord);
+        final SolrRequestPlan pagePlan = pagePlan(query, plan, startRecord, maximumRecords);
+        final SolrResponse response = execute(pageUrl(query, startRecord, maximumRecords, cursorMark, pagePlan), DzpMetrics.SOLR_PAGE);
+        final int numFound = (int) response.getNumFound();
+        counts.put(query, numFound);
+        rememberCursor(query, startRecord, response);
+
+        // the window is empty if it starts past the end
+        if (startRecord > numFound) {
+            throw new SRUException(SRUConstants.SRU_FIRST_RECORD_POSITION_OUT_OF_RANGE);
+        }
+        return new Results(pid, query.q(), withSnippets(query, plan, pagePlan, startRecord, maximumRecords, response.getDocs()), numFound, startRecord);
+    }
+
+    private Results searchWithCount(String pid, SolrQuery query, int startRecord, int maximumRecords, SolrRequestPlan plan) throws SRUException {
+        final Integer memo = counts.getIfPresent(query);
+        if (memo != null && startRecord > memo) {
+            throw new SRUException(SRUConstants.SRU_FIRST_RECORD_POSITION_OUT_OF_RANGE);
+        }
+
+        // issue count and page concurrently
+        final CompletableFuture<Integer> countFuture = memo != null ? CompletableFuture.completedFuture(memo) : countAsync(query);
+        final String cursorMark;
+        try {
+            cursorMark = cursorFor(query, startRecord);
+        } catch (SRUException e) {
+            countFuture.cancel(true);
+            throw e;
+        }
+        final SolrRequestPlan pagePlan = pagePlan(query, plan, startRecord, maximumRecords);
+        final CompletableFuture<SolrResponse> pageFuture = thenApply(executeAsync(pageUrl(query, startRecord, maximumRecords, cursorMark, pagePlan), DzpMetrics.SOLR_PAGE),
+                response -> {
+                    rememberCursor(query, startRecord, response);
+                    return response;
+                });
+
+        final int numFound;
+        try {
+            numFound = await(countFuture);
+        } catch (SRUException e) {
+            pageFuture.cancel(true);
+            throw e;
+        }
+        if (startRecord > numFound) {
+            pageFuture.cancel(true);
+            throw new SRUException(SRUConstants.SRU_FIRST_RECORD_POSITION_OUT_OF_RANGE);
+        }
+        return new Results(pid, query.q(), withSnippets(query, plan, pagePlan, startRecord, maximumRecords, await(pageFuture).getDocs()), numFound, startRecord);
+    }
+
+    /**
+     * Plan of a page request. If the snippet store has the snippets of all
+     * documents of this page, the page is requested without highlighting and
+     * the snippets are looked up per document.
+     */
+    private SolrRequestPlan pagePlan(SolrQuery query, SolrRequestPlan plan, int startRecord, int maximumRecords) {
+        if (snippets != null && plan.isHighlight()
+                && snippets.containsPage(plan.highlightKey(query), pageKey(query, startRecord, maximumRecords))) {
+            return plan.withoutHighlight();
+        }
+        return plan;
+    }
+
+    private static String pageKey(SolrQuery query, int startRecord, int maximumRecords) {
+        return CanonicalQuery.hash(query.toString()) + "/" + startRecord + "/" + maximumRecords;
+    }
+
+    /**
+     * Complete the documents of a page with their snippets. Snippets
+     * highlighted by Solr are added to the snippet store; for a page
+     * requested without highlighting, they are taken from the store and only
+     * the missing ones are requested, restricted to their documents. The ids
+     * of a highlighted page are stored, too, so the page is not highlighted
+     * again.
+     */
+    private List<ResultsEntry> withSnippets(SolrQuery query, SolrRequestPlan plan, SolrRequestPlan pagePlan,
+            int startRecord, int maximumRecords, List<ResultsEntry> docs) throws SRUException {
+        if (snippets == null || !plan.isHighlight()) {
+            return docs;
+        }
+        final String key = plan.highlightKey(query);
+        if (pagePlan.isHighlight()) {
+            final List<String> ids = new ArrayList<>(docs.size());
+            for (ResultsEntry doc : docs) {
+                snippets.put(key, doc.getId(), doc.getPlainpagefulltext().toArray(Snippet[]::new));
+                ids.add(doc.getId());
+            }
+            snippets.putPage(key, pageKey(query, startRecord, maximumRecords), ids);
+            return docs;
+        }
+
+        final List<ResultsEntry> entries = new ArrayList<>(docs);
+        final Map<String, Integer> missing = new LinkedHashMap<>();
+        for (int i = 0; i < entries.size(); i++) {
+            final String id = entries.get(i).getId();
+            final Snippet[] stored = snippets.get(key, id);
+            if (stored != null) {
+                entries.set(i, entries.get(i).withSnippets(stored));
+            } else {
+                missing.put(id, i);
+            }
+        }
+        if (!missing.isEmpty()) {
+            final SolrQuery restricted = query.withFilter("{!terms f=id}" + String.join(",", missing.keySet()));
+            final SolrResponse response = execute(pageUrl(restricted, 0, missing.size(), null, plan.highlightOnly()), DzpMetrics.SOLR_HIGHLIGHT);
+            for (ResultsEntry highlighted : response.getDocs()) {
+                final Integer i = missing.get(highlighted.getId());
+                if (i != null) {
+                    final Snippet[] found = highlighted.getPlainpagefulltext().toArray(Snippet[]::new);
+                    snippets.put(key, highlighted.getId(), found);
+                    entries.set(i, entries.get(i).withSnippets(found));
+                }
+            }
+        }
+        return entries;
+    }
+
+    private CompletableFuture<Integer> countAsync(SolrQuery query) {
+        return thenApply(executeAsync(pageUrl(query, 0, 0, null, SolrRequestPlan.COUNT), DzpMetrics.SOLR_COUNT), response -> {
+            final int numFound = (int) response.getNumFound();
+            counts.put(query, numFound);
+            return numFound;
+        });
+    }
+
+    /**
+     * Like {@link CompletableFuture#thenApply(Function)}, but cancelling the
+     * returned future also cancels <code>source</code>, so the Solr request
+     * behind it is cancelled and does not keep running for nobody.
+     */
+    private static <T, U> CompletableFuture<U> thenApply(CompletableFuture<T> source, Function<? super T, ? extends U> fn) {
+        final CompletableFuture<U> mapped = source.thenApply(fn);
+        mapped.whenComplete((r, t) -> {
+            if (mapped.isCancelled()) {
+                source.cancel(true);
+            }
+        });
+        return mapped;
+    }
+
+    /**
+     * Returns the cursor mark to request the page at <code>startRecord</code>
+     * with, or <code>null</code> to page by offset. Beyond the threshold a
+     * missing cursor is created by walking from the nearest known cursor with
+     * id-only pages, if that is not too far.
+     */
+    private String cursorFor(SolrQuery query, int startRecord) throws SRUException {
+        if (cursors == null) {
+            return null;
+        }
+        final String known = cursors.get(query, startRecord);
+        if (known != null || startRecord < cursors.getThreshold()) {
+            return known;
+        }
+
+        final Map.Entry<Integer, String> floor = cursors.floor(query, startRecord);
+        if (startRecord - floor.getKey() > cursors.getMaxWalk()) {
+            return null;
+        }
+        int offset = floor.getKey();
+        String cursorMark = floor.getValue();
+        while (offset < startRecord) {
+            final int rows = Math.min(WALK_ROWS, startRecord - offset);
+            final SolrResponse response = execute(walkUrl(query, cursorMark, rows), DzpMetrics.SOLR_WALK);
+            if (response.getDocs().size() < rows || response.getNextCursorMark() == null) {
+                // end of results, out of range is reported by the page request
+                return null;
+            }
+            cursorMark = response.getNextCursorMark();
+            offset += rows;
+            cursors.put(query, offset, cursorMark);
+        }
+        return cursorMark;
+    }
+
+    /**
+     * Remember the cursor of the page following a full page.
+     */
+    private void rememberCursor(SolrQuery query, int startRecord, SolrResponse response) {
+        if (cursors != null && response.getNextCursorMark() != null && !response.getDocs().isEmpty()) {
+            cursors.put(query, startRecord + response.getDocs().size(), response.getNextCursorMark());
+        }
+    }
+
+    /**
+     * URL of a page with the fields and highlighting of <code>plan</code>.
+     * With a cursor mark the page is addressed by the cursor instead of the
+     * offset.
+     */
+    private String pageUrl(SolrQuery query, int start, int rows, String cursorMark, SolrRequestPlan plan) {
+        final HttpUrl.Builder url = selectUrl(query, rows)
+                .addQueryParameter("fl", plan.fields());
+        if (plan.isHighlight() && rows > 0) {
+            url.addQueryParameter("hl.bs.separator", ".")
+                    .addQueryParameter("hl.bs.type", "SENTENCE")
+                    .addQueryParameter("hl.fl", "plainpagefulltext")
+                    .addQueryParameter("hl.method", "unified")
+                    .addQueryParameter("hl.simple.post", "</Hit>")
+                    .addQueryParameter("hl.simple.pre", "<Hit>");
+            // only parameters that differ from the defaults of Solr
+            if (plan.snippets() > 1) {
+                url.addQueryParameter("hl.snippets", Integer.toString(plan.snippets()));
+            }
+            if (plan.fragsize() > 0) {
+                url.addQueryParameter("hl.fragsize", Integer.toString(plan.fragsize()));
+            }
+            if (plan.maxAnalyzedChars() > 0) {
+                url.addQueryParameter("hl.maxAnalyzedChars", Integer.toString(plan.maxAnalyzedChars()));
+            }
+            url.addQueryParameter("hl", "true");
+        } else {
+            url.addQueryParameter("hl", "false");
+        }
+        if (cursorMark != null) {
+            url.addQueryParameter("cursorMark", cursorMark);
+        } else {
+            url.addQueryParameter("start", Integer.toString(start));
+        }
+        return url.build().toString();
+    }
+
+    /**
+     * URL of an id-only page to advance a cursor.
+     */
+    private String walkUrl(SolrQuery query, String cursorMark, int rows) {
+        return selectUrl(query, rows)
+                .addQueryParameter("fl", "id")
+                .addQueryParameter("hl", "false")
+                .addQueryParameter("cursorMark", cursorMark)
+                .build().toString();
+    }
+
+    private HttpUrl.Builder selectUrl(SolrQuery query, int rows) {
+        final HttpUrl.Builder url = dzp_api.newBuilder()
+                .addQueryParameter("df", "plainpagefulltext")
+                .addQueryParameter("q", query.q())
+                .addQueryParameter("rows", Integer.toString(rows))
+                .addQueryParameter("sort", SORT);
+        if (javabin) {
+            url.addQueryParameter("wt", "javabin");
+        }
+        for (String fq : query.filters()) {
+            url.addQueryParameter("fq", fq);
+        }
+        return url;
+    }
+
+    /**
+     * Request <code>url</code> from the Solr endpoint and wait for the
+     * response. The request runs like an asynchronous one, so concurrent
+     * requests for the same URL are coalesced and interrupting the waiting
+     * thread cancels the request.
+     */
+    private SolrResponse execute(String url, Timer phase) throws SRUException {
+        return await(executeAsync(url, phase));
+    }
+
+    /**
+     * Request <code>url</code> from the Solr endpoint asynchronously.
+     * Concurrent requests for the same URL are coalesced.
+     *
+     * @param url the request URL
+     * @param phase the timer for the request
+     * @return the future decoded response
+     */
+    private CompletableFuture<SolrResponse> executeAsync(String url, Timer phase) {
+        return inFlight.executeAsync(url, () -> hedging != null ? fetchHedged(url, phase) : fetchAsync(url, phase));
+    }
+
+    /**
+     * Enqueue a request to the Solr endpoint and, if it has not returned
+     * after the delay of the {@link HedgingPolicy}, a second identical one.
+     * The first successful response wins and the other request is cancelled.
+     *
+     * @param url the request URL
+     * @param phase the timer for the request
+     * @return the future decoded response
+     */
+    private CompletableFuture<SolrResponse> fetchHedged(String url, Timer phase) {
+        final long delay = hedging.delayNanos(phase);
+        if (delay < 0) {
+            return fetchAsync(url, phase);
+        }
+        final HedgedCall call = new HedgedCall();
+        call.attempt(fetchAsync(url, phase), false);
+        CompletableFuture.delayedExecutor(delay, TimeUnit.NANOSECONDS, fanOut).execute(SearchTrace.wrap(() -> {
+            // no hedging while the endpoint is failing
+            if (!call.result.isDone() && (breaker == null || breaker.getState() == CircuitBreaker.State.CLOSED)) {
+                DzpMetrics.SOLR_HEDGED.increment();
+                call.attempt(fetchAsync(url, phase), true);
+            }
+        }));
+        return call.result;
+    }
+
+    /**
+     * Enqueue a request to the Solr endpoint. Cancelling the returned future
+     * cancels the HTTP call.
+     *
+     * @param url the request URL
+     * @param phase the timer for the request
+     * @return the future decoded response
+     */
+    private CompletableFuture<SolrResponse> fetchAsync(String url, Timer phase) {
+        final Request apiRequest = new Request.Builder()
+                .url(url)
+                .build();
+
+        final long permit;
+        try {
+            permit = acquirePermit();
+        } catch (SRUException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+
+        final CompletableFuture<SolrResponse> future = new CompletableFuture<>();
+        final Call call = client.newCall(apiRequest);
+        final SearchTrace trace = SearchTrace.current();
+        final long start = System.nanoTime();
+        call.enqueue(new Callback() {
+            @Override
+            public void onFailure(Call call, IOException e) {
+                future.completeExceptionally(e);
+            }
+
+            @Override
+            public void onResponse(Call call, Response response) {
+                try (response) {
+                    future.complete(decode(response, phase, start, trace));
+                } catch (IOException e) {
+                    future.completeExceptionally(e);
+                }
+            }
+        });
+        future.whenComplete((r, t) -> {
+            if (future.isCancelled()) {
+                call.cancel();
+            }
+            if (t == null && hedging != null) {
+                hedging.record(phase, System.nanoTime() - start);
+            }
+            releasePermit(permit, start, t, future.isCancelled());
+        });
+        return future;
+    }
+
+    /**
+     * Acquire permits of the circuit breaker and the adaptive limit or reject
+     * the request fast.
+     *
+     * @return the permit of the circuit breaker, see
+     * {@link CircuitBreaker#tryAcquire()}
+     */
+    private long acquirePermit() throws SRUException {
+        final long permit = breaker != null ? breaker.tryAcquire() : 0;
+        if (permit == CircuitBreaker.NO_PERMIT) {
+            throw new SRUException(SRUConstants.SRU_SYSTEM_TEMPORARILY_UNAVAILABLE, "The DDB-API is currently unavailable. Please try again later.");
+        }
+        if (limiter == null) {
+            return permit;
+        }
+        final boolean acquired;
+        try {
+            acquired = limiter.tryAcquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            if (breaker != null) {
+                breaker.onIgnore(permit);
+            }
+            throw new SRUException(SRUConstants.SRU_GENERAL_SYSTEM_ERROR, "Interrupted while waiting for DDB-API.", e);
+        }
+        if (!acquired) {
+            if (breaker != null) {
+                breaker.onIgnore(permit);
+            }
+            throw new SRUException(SRUConstants.SRU_SYSTEM_TEMPORARILY_UNAVAILABLE, "Too many concurrent requests to the DDB-API. Please try again later.");
+        }
+        return permit;
+    }
+
+    /**
+     * Release the permits of a request and report its outcome. Only I/O
+     * errors, timeouts and server errors (5xx, 429) count as failures. A
+     * client error like a 400 for a malformed query says nothing about the
+     * health of the endpoint: it counts as a response for the circuit breaker
+     * and is ignored by the adaptive limit.
+     *
+     * @param permit the permit of the circuit breaker
+     * @param start start of the request
+     * @param error the error of the request, <code>null</code> on success
+     * @param cancelled whether the request was cancelled
+     */
+    private void releasePermit(long permit, long start, Throwable error, boolean cancelled) {
+        final long rtt = System.nanoTime() - start;
+        final boolean clientError = isClientError(error);
+        if (breaker != null) {
+            if (cancelled) {
+                breaker.onIgnore(permit);
+            } else if (error == null || clientError) {
+                breaker.onSuccess(permit, rtt);
+            } else {
+                breaker.onDropped(permit);
+            }
+        }
+        if (limiter == null) {
+            return;
+        }
+        if (cancelled || clientError) {
+            limiter.onIgnore();
+        } else if (error == null) {
+            limiter.onSuccess(rtt);
+        } else {
+            limiter.onDropped();
+        }
+    }
+
+    private static boolean isClientError(Throwable error) {
+        while (error instanceof CompletionException && error.getCause() != null) {
+            error = error.getCause();
+        }
+        return error instanceof ClientErrorException;
+    }
+
+    /**
+     * A 4xx response of the endpoint other than 429 (too many requests).
+     */
+    private static final class ClientErrorException extends IOException {
+
+        private ClientErrorException(String message) {
+            super(message);
+        }
+    }
+
+    /**
+     * A request with an optional hedged second request. The result is the
+     * first successful response, or the error of the last failed request.
+     */
+    private static final class HedgedCall {
+
+        private final CompletableFuture<SolrResponse> result = new CompletableFuture<>();
+
+        private final List<CompletableFuture<SolrResponse>> attempts = new ArrayList<>(2);
+
+        private int pending = 0;
+
+        private HedgedCall() {
+            // cancel the requests still running when the result is known or cancelled
+            result.whenComplete((r, t) -> {
+                for (CompletableFuture<SolrResponse> attempt : snapshot()) {
+                    attempt.cancel(true);
+                }
+            });
+        }
+
+        private void attempt(CompletableFuture<SolrResponse> attempt, boolean hedge) {
+            synchronized (this) {
+                if (!result.isDone()) {
+                    attempts.add(attempt);
+                    pending++;
+                }
+            }
+            if (result.isDone()) {
+                attempt.cancel(true);
+                return;
+            }
+            attempt.whenComplete((r, t) -> {
+                if (t == null) {
+                    if (result.complete(r) && hedge) {
+                        DzpMetrics.SOLR_HEDGE_WINS.increment();
+                    }
+                    return;
+                }
+                final boolean last;
+                synchronized (this) {
+                    last = --pending == 0;
+                }
+                if (last) {
+                    result.completeExceptionally(t);
+                }
+            });
+        }
+
+        private synchronized List<CompletableFuture<SolrResponse>> snapshot() {
+            return new ArrayList<>(attempts);
+        }
+    }
+
+    /**
+     * Decode the body of a Solr response while it is streamed from the
+     * endpoint and record the timings of the request. The format is chosen by
+     * the content type of the response, so JSON is still understood if the
+     * endpoint ignores <code>wt=javabin</code>. The request is added to the
+     * {@link SearchTrace} of the search, if any.
+     */
+    private static SolrResponse decode(Response response, Timer phase, long start, SearchTrace trace) throws IOException {
+        final long headers = System.nanoTime();
+        phase.record(headers - start, TimeUnit.NANOSECONDS);
+        if (!response.isSuccessful()) {
+            if (trace != null) {
+                trace.call(new SearchTrace.SolrCall(phase.getId().getTag("phase"), response.request().url().toString(),
+                        response.code(), headers - start, -1, 0, 0));
+            }
+            final String message = "Response code of DDB-API is " + response.code() + ". Request URL: " + response.request().url().toString();
+            if (response.code() >= 400 && response.code() < 500 && response.code() != 429) {
+                throw new ClientErrorException(message);
+            }
+            throw new IOException(message);
+        }
+
+        final CountingInputStream in = new CountingInputStream(response.body().byteStream());
+        final MediaType contentType = response.body().contentType();
+        final SolrResponse solrResponse = contentType != null && JavaBinResponseDecoder.CONTENT_TYPE.equals(contentType.type() + "/" + contentType.subtype())
+                ? JavaBinResponseDecoder.decode(in)
+                : SolrResponseDecoder.decode(in);
+        final long decoded = System.nanoTime() - headers;
+        DzpMetrics.PARSE.record(decoded - solrResponse.getPostProcessNanos(), TimeUnit.NANOSECONDS);
+        DzpMetrics.HIGHLIGHT.record(solrResponse.getPostProcessNanos(), TimeUnit.NANOSECONDS);
+        DzpMetrics.SOLR_RESPONSE_BYTES.record(in.count);
+        if (trace != null) {
+            trace.call(new SearchTrace.SolrCall(phase.getId().getTag("phase"), response.request().url().toString(),
+                    response.code(), headers - start, solrResponse.getQTime(), in.count, decoded));
+        }
+        return solrResponse;
+    }
+
+    /**
+     * Counts the bytes read from a response body.
+     */
+    private static final class CountingInputStream extends FilterInputStream {
+
+        private long count;
+
+        private CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            final int b = super.read();
+            if (b >= 0) {
+                count++;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            final int n = super.read(b, off, len);
+            if (n > 0) {
+                count += n;
+            }
+            return n;
+        }
+    }
+
+    static <T> T await(Future<T> future) throws SRUException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            future.cancel(true);
+            Thread.currentThread().interrupt();
+            throw new SRUException(SRUConstants.SRU_GENERAL_SYSTEM_ERROR, "Interrupted while waiting for DDB-API.", e);
+        } catch (ExecutionException e) {
+            final Throwable cause = e.getCause() != null ? e.getCause() : e;
+            if (cause instanceof SRUException sruException) {
+                throw sruException;
+            }
+            throw new SRUException(SRUConstants.SRU_GENERAL_SYSTEM_ERROR, cause.getMessage());
+        }
+    }
+}